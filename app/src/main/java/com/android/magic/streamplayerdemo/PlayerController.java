@@ -1,37 +1,27 @@
 package com.android.magic.streamplayerdemo;
 
 import android.content.Context;
-import android.util.Log;
 
+import com.android.magic.stream.player.MetadataListener;
 import com.android.magic.stream.player.StreamPlayer;
-import com.android.magic.stream.player.StreamPlayerError;
 import com.android.magic.stream.player.StreamPlayerFactory;
 import com.android.magic.stream.player.StreamPlayerListener;
-import com.android.magic.stream.player.MetadataListener;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Controller for the player.
  */
-public class PlayerController implements StreamPlayerListener, MetadataListener {
-
-    private static final String LOG_TAG = PlayerController.class.getSimpleName();
+public class PlayerController {
 
-    public interface PlayerListener {
-        void onPlay(String radioURL);
-
-        void onPlayerStop();
-
-        void onTrackChanged(String track);
+    /**
+     * Listener of the player states and of the track changes
+     */
+    public interface PlayerListener extends StreamPlayerListener, MetadataListener {
     }
 
     private StreamPlayer mStreamPlayer;
 
-
-    private List<PlayerListener> mPlayerListenerList;
-
     private static PlayerController mInstance;
 
     public static PlayerController getInstance(final Context context) {
@@ -43,23 +33,16 @@ public class PlayerController implements StreamPlayerListener, MetadataListener
 
     private PlayerController(Context context) {
         mStreamPlayer = StreamPlayerFactory.getStreamPlayerInstance(context);
-        mPlayerListenerList = new ArrayList<PlayerListener>();
     }
 
     public void registerListener(PlayerListener listener) {
-        if (mPlayerListenerList.isEmpty()) {
-            mStreamPlayer.registerStreamPlayerListener(this);
-            mStreamPlayer.registerTrackListener(this);
-        }
-        mPlayerListenerList.add(listener);
+        mStreamPlayer.registerStreamPlayerListener(listener);
+        mStreamPlayer.registerTrackListener(listener);
     }
 
     public void unregisterListener(PlayerListener listener) {
-        mPlayerListenerList.remove(listener);
-        if (mPlayerListenerList.isEmpty()) {
-            mStreamPlayer.unregisterStreamPlayerListener();
-            mStreamPlayer.unregisterTrackListener();
-        }
+        mStreamPlayer.unregisterStreamPlayerListener(listener);
+        mStreamPlayer.unregisterTrackListener(listener);
     }
 
     public String getPlayingUrl() {
@@ -70,6 +53,13 @@ public class PlayerController implements StreamPlayerListener, MetadataListener
         mStreamPlayer.play(url);
     }
 
+    /**
+     * Prepares the radios likely to be played next, so switching to them starts faster
+     */
+    public void preload(List<String> urls) {
+        mStreamPlayer.preload(urls);
+    }
+
     public void pause() {
         mStreamPlayer.pause();
     }
@@ -77,32 +67,4 @@ public class PlayerController implements StreamPlayerListener, MetadataListener
     public void stop() {
         mStreamPlayer.stop();
     }
-
-    @Override
-    public void onPlaying(String url) {
-        for (PlayerListener listener : mPlayerListenerList) {
-            listener.onPlay(url);
-        }
-    }
-
-    @Override
-    public void onError(StreamPlayerError error) {
-        Log.d(LOG_TAG, "error " + error.name());
-        onPlayerStop();
-    }
-
-    @Override
-    public void onPlayerStop() {
-        for (PlayerListener listener : mPlayerListenerList) {
-            listener.onPlayerStop();
-        }
-    }
-
-    @Override
-    public void onMetadataChanged(String metadata) {
-        Log.d(LOG_TAG, "track changed " + metadata + " listeners " + mPlayerListenerList.size());
-        for (PlayerListener listener : mPlayerListenerList) {
-            listener.onTrackChanged(metadata);
-        }
-    }
 }
@@ -9,6 +9,8 @@ import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
+import com.android.magic.stream.player.StreamPlayerError;
+
 import butterknife.ButterKnife;
 
 /**
@@ -90,18 +92,24 @@ public class PlayerView extends LinearLayout implements PlayerController.PlayerL
     }
 
     @Override
-    public void onPlay(String radioURL) {
+    public void onPlaying(String radioURL) {
         setPlayingURL(radioURL);
         mTrackView.setText("");
     }
 
+    @Override
+    public void onError(StreamPlayerError error) {
+        Log.d(PlayerView.class.getSimpleName(), "error " + error.name());
+        onPlayerStop();
+    }
+
     @Override
     public void onPlayerStop() {
         mPlayPauseButton.setImageResource(R.drawable.play_circle);
     }
 
     @Override
-    public void onTrackChanged(final String track) {
+    public void onMetadataChanged(final String track) {
         Log.d(PlayerView.class.getSimpleName(), "track changed " + track);
         mTrackView.setText(track);
     }
@@ -58,6 +58,7 @@ public class RadiosFragment extends android.support.v4.app.Fragment {
                             AdapterView<?> parent, View view, int position, long id) {
                         final String url = radios.get(position);
                         mPlayerController.play(url);
+                        mPlayerController.preload(getNeighbours(radios, position));
                     }
                 });
 
@@ -67,6 +68,20 @@ public class RadiosFragment extends android.support.v4.app.Fragment {
         return rootView;
     }
 
+    /**
+     * @return the radios before and after the one at the position
+     */
+    private static List<String> getNeighbours(List<String> radios, int position) {
+        List<String> neighbours = new ArrayList<String>();
+        if (position + 1 < radios.size()) {
+            neighbours.add(radios.get(position + 1));
+        }
+        if (position > 0) {
+            neighbours.add(radios.get(position - 1));
+        }
+        return neighbours;
+    }
+
     static class ViewHolder {
         @InjectView(R.id.radio_title)
         TextView title;
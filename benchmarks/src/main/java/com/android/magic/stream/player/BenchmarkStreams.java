@@ -0,0 +1,102 @@
+package com.android.magic.stream.player;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Random;
+
+/**
+ * Builds the inputs of the benchmarks: metadata strings and ICY streams
+ */
+/*package*/ final class BenchmarkStreams {
+
+    /**
+     * Kinds of metadata used as input
+     */
+    public static final String ASCII = "ascii";
+    public static final String NON_ASCII = "non-ascii";
+    public static final String LONG = "long";
+    public static final String GARBAGE = "garbage";
+
+    private static final int MAX_METADATA_LENGTH = 255 * 16;
+
+    private BenchmarkStreams() {
+    }
+
+    /**
+     * @return the raw bytes of a metadata block, without the length byte and the padding
+     */
+    public static byte[] metadata(final String kind) {
+        return metadata(kind, "So What");
+    }
+
+    /**
+     * @param title the title of the track, or the seed of the garbage
+     * @return the raw bytes of a metadata block, without the length byte and the padding
+     */
+    public static byte[] metadata(final String kind, final String title) {
+        if (ASCII.equals(kind)) {
+            return bytes("StreamTitle='Miles Davis - " + title + "';StreamUrl='http://example.com';");
+        } else if (NON_ASCII.equals(kind)) {
+            return bytes("StreamTitle='Sigur Rós - Hoppípolla / 坂本龍一 - " + title + "';"
+                    + "StreamUrl='';");
+        } else if (LONG.equals(kind)) {
+            StringBuilder block = new StringBuilder("StreamTitle='").append(title);
+            String suffix = "';";
+            while (block.length() < MAX_METADATA_LENGTH - suffix.length()) {
+                block.append(" - Artist; Title");
+            }
+            block.setLength(MAX_METADATA_LENGTH - suffix.length());
+            return bytes(block.append(suffix).toString());
+        } else if (GARBAGE.equals(kind)) {
+            byte[] garbage = new byte[512];
+            new Random(title.hashCode()).nextBytes(garbage);
+            return garbage;
+        }
+        throw new IllegalArgumentException("Unknown metadata kind " + kind);
+    }
+
+    /**
+     * Builds a stream with the headers sent within the stream, followed by blockCount blocks of
+     * audio, each one followed by a metadata block.
+     *
+     * @param metaInterval the number of audio bytes between two metadata blocks
+     * @param metadata     the raw metadata sent in every block
+     * @param blockCount   the number of audio and metadata blocks
+     */
+    public static byte[] icyStream(final int metaInterval, final byte[] metadata,
+                                   final int blockCount) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        byte[] headers = bytes("ICY 200 OK\r\n"
+                + "icy-notice1: <BR>This stream requires Winamp<BR>\r\n"
+                + "icy-name: Benchmark Radio\r\n"
+                + "icy-genre: Jazz\r\n"
+                + "icy-url: http://example.com\r\n"
+                + "content-type: audio/mpeg\r\n"
+                + "icy-pub: 1\r\n"
+                + "icy-metaint: " + metaInterval + "\r\n"
+                + "icy-br: 128\r\n"
+                + "\r\n");
+        stream.write(headers, 0, headers.length);
+
+        Random random = new Random(7);
+        byte[] audio = new byte[metaInterval];
+        int blocks = Math.min(255, (metadata.length + 15) / 16);
+        byte[] block = new byte[blocks * 16];
+        System.arraycopy(metadata, 0, block, 0, Math.min(metadata.length, block.length));
+        for (int i = 0; i < blockCount; i++) {
+            random.nextBytes(audio);
+            stream.write(audio, 0, audio.length);
+            stream.write(blocks);
+            stream.write(block, 0, block.length);
+        }
+        return stream.toByteArray();
+    }
+
+    private static byte[] bytes(final String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.android.magic.stream.player;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the in-line removal of the metadata from the audio, as done by the
+ * {@link StreamProxy} for every buffer received from the stream. Each invocation demuxes 32
+ * blocks of audio and metadata, in buffers of the size used by the proxy.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IcyMetadataDemuxerBenchmark {
+
+    private static final int BLOCK_COUNT = 32;
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    @Param({"8192", "16000", "32768"})
+    public int mMetaInterval;
+
+    @Param({BenchmarkStreams.ASCII, BenchmarkStreams.NON_ASCII, BenchmarkStreams.LONG,
+            BenchmarkStreams.GARBAGE})
+    public String mKind;
+
+    private byte[] mStream;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+
+    @Setup
+    public void setUp() {
+        byte[] stream = BenchmarkStreams.icyStream(mMetaInterval,
+                BenchmarkStreams.metadata(mKind), BLOCK_COUNT);
+        // the proxy receives the stream after the HTTP headers
+        int headersEnd = 0;
+        while (!(stream[headersEnd] == '\n' && stream[headersEnd - 2] == '\n')) {
+            headersEnd++;
+        }
+        mStream = new byte[stream.length - headersEnd - 1];
+        System.arraycopy(stream, headersEnd + 1, mStream, 0, mStream.length);
+    }
+
+    @Benchmark
+    public int demux(final Blackhole blackhole) {
+        IcyMetadataDemuxer demuxer = new IcyMetadataDemuxer(mMetaInterval,
+                new TrackMetadataListener() {
+                    @Override
+                    public void onTrackMetadata(final TrackMetadata metadata) {
+                        blackhole.consume(metadata);
+                    }
+                });
+        int audio = 0;
+        for (int offset = 0; offset < mStream.length; offset += BUFFER_SIZE) {
+            int length = Math.min(BUFFER_SIZE, mStream.length - offset);
+            System.arraycopy(mStream, offset, mBuffer, 0, length);
+            audio += demuxer.demux(mBuffer, 0, length);
+        }
+        return audio;
+    }
+}
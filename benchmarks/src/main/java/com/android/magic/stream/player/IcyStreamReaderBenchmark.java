@@ -0,0 +1,80 @@
+package com.android.magic.stream.player;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading one metadata block with the {@link IcyStreamReader}: reading the headers
+ * sent within the stream, skipping the audio and reading the metadata block. The network is
+ * replaced by an in-memory stream.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IcyStreamReaderBenchmark {
+
+    @Param({"8192", "16000", "32768"})
+    public int mMetaInterval;
+
+    @Param({BenchmarkStreams.ASCII, BenchmarkStreams.NON_ASCII, BenchmarkStreams.LONG,
+            BenchmarkStreams.GARBAGE})
+    public String mKind;
+
+    private final IcyStreamReader mReader = new IcyStreamReader();
+    private final MetadataParser mParser = new MetadataParser();
+    private ByteArrayInputStream mStream;
+    private ByteArrayInputStream mGarbage;
+
+    @Setup
+    public void setUp() {
+        mStream = new ByteArrayInputStream(BenchmarkStreams.icyStream(mMetaInterval,
+                BenchmarkStreams.metadata(mKind), 1));
+        // random bytes without the empty line ending the headers
+        byte[] garbage = new byte[IcyStreamReader.BUFFER_SIZE + 1];
+        new Random(mMetaInterval).nextBytes(garbage);
+        for (int i = 0; i < garbage.length; i++) {
+            if (garbage[i] == '\n') {
+                garbage[i] = 0;
+            }
+        }
+        mGarbage = new ByteArrayInputStream(garbage);
+    }
+
+    @Benchmark
+    public TrackMetadata readMetadata() throws IOException {
+        mStream.reset();
+        mReader.reset();
+        int metaInterval = mReader.readHeaders(mStream);
+        mReader.skipFully(mStream, metaInterval);
+        return mReader.readMetadata(mStream, mParser);
+    }
+
+    @Benchmark
+    public String rejectGarbageHeaders() {
+        mGarbage.reset();
+        mReader.reset();
+        try {
+            mReader.readHeaders(mGarbage);
+            throw new AssertionError("Garbage accepted as headers");
+        } catch (IOException e) {
+            return e.getMessage();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.android.magic.stream.player;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the parsing of a metadata block into a {@link TrackMetadata}: when the same block is
+ * received again, as when polling a stream whose track didn't change, and when every block is a
+ * new one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetadataParserBenchmark {
+
+    @Param({BenchmarkStreams.ASCII, BenchmarkStreams.NON_ASCII, BenchmarkStreams.LONG,
+            BenchmarkStreams.GARBAGE})
+    public String mKind;
+
+    private final MetadataParser mParser = new MetadataParser();
+    private byte[][] mBlocks;
+    private int mIndex;
+
+    @Setup
+    public void setUp() {
+        mBlocks = new byte[][]{
+                BenchmarkStreams.metadata(mKind, "So What"),
+                BenchmarkStreams.metadata(mKind, "Blue in Green")
+        };
+    }
+
+    @Benchmark
+    public TrackMetadata parseSameBlock() {
+        byte[] block = mBlocks[0];
+        return mParser.parse(block, 0, block.length);
+    }
+
+    @Benchmark
+    public TrackMetadata parseNewBlock() {
+        // alternates the blocks, so every block is different from the previous one
+        byte[] block = mBlocks[mIndex++ & 1];
+        return mParser.parse(block, 0, block.length);
+    }
+}
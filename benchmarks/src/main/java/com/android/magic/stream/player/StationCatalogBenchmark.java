@@ -0,0 +1,87 @@
+package com.android.magic.stream.player;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the searches in a {@link StationCatalog} of 30000 stations, as typed in a search box:
+ * a short prefix matching many stations, a longer one and two words, with and without a genre,
+ * and the opening of the catalog, which is done when the application starts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StationCatalogBenchmark {
+
+    private static final int STATION_COUNT = 30000;
+    private static final int LIMIT = 50;
+    private static final String[] WORDS = {"Radio", "FM", "Jazz", "Rock", "Classic", "Café",
+            "Info", "Music", "Hits", "Nova", "Paris", "Berlin", "Deep", "House", "Chill", "Love"};
+    private static final String[] GENRES = {"Jazz", "Rock", "Pop", "News", "Classical",
+            "Electronic", "Talk", "Ambient"};
+    private static final String[] COUNTRIES = {"France", "Germany", "Italy", "Spain",
+            "Netherlands", "Romania"};
+
+    @Param({"r", "radio", "deep hou"})
+    public String mQuery;
+
+    private File mFile;
+    private StationCatalog mCatalog;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(STATION_COUNT);
+        StationCatalogWriter writer = new StationCatalogWriter();
+        for (int i = 0; i < STATION_COUNT; i++) {
+            String name = WORDS[random.nextInt(WORDS.length)] + " "
+                    + WORDS[random.nextInt(WORDS.length)] + " " + i;
+            List<String> genres = Arrays.asList(GENRES[random.nextInt(GENRES.length)],
+                    GENRES[random.nextInt(GENRES.length)]);
+            writer.add(new CatalogEntry(name, "http://stream" + i + ".example.com/live", genres,
+                    COUNTRIES[random.nextInt(COUNTRIES.length)], 128));
+        }
+        mFile = File.createTempFile("catalog", ".index");
+        writer.write(mFile);
+        mCatalog = StationCatalog.open(mFile);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Benchmark
+    public List<CatalogEntry> search() {
+        return mCatalog.search(mQuery, null, null, LIMIT);
+    }
+
+    @Benchmark
+    public List<CatalogEntry> searchInGenre() {
+        return mCatalog.search(mQuery, "rock", null, LIMIT);
+    }
+
+    @Benchmark
+    public List<CatalogEntry> openAndSearch() throws IOException {
+        return StationCatalog.open(mFile).search(mQuery, null, null, LIMIT);
+    }
+}
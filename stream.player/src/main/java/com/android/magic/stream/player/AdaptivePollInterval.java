@@ -0,0 +1,65 @@
+package com.android.magic.stream.player;
+
+/**
+ * Computes the delay before the next metadata request, based on the result of the last one.
+ * <p/>
+ * Right after the track changed the metadata is requested again soon, since servers often send
+ * an empty title first and the real one a few seconds later. While the track doesn't change, the
+ * delay doubles up to {@link #MAX_STABLE_INTERVAL_MS}. When a request fails, the delay backs off
+ * exponentially up to {@link #MAX_ERROR_INTERVAL_MS}, so an unreachable server isn't requested
+ * at full rate. The first successful request resets the backoff.
+ * <p/>
+ * Not thread safe.
+ */
+/*package*/ class AdaptivePollInterval {
+
+    /**
+     * Delay after the track changed
+     */
+    public static final long CHANGED_INTERVAL_MS = 5 * 1000;
+
+    /**
+     * Maximum delay while the track doesn't change
+     */
+    public static final long MAX_STABLE_INTERVAL_MS = 30 * 1000;
+
+    /**
+     * Delay after the first failed request
+     */
+    public static final long ERROR_INTERVAL_MS = 15 * 1000;
+
+    /**
+     * Maximum delay after consecutive failed requests
+     */
+    public static final long MAX_ERROR_INTERVAL_MS = 5 * 60 * 1000;
+
+    private long mInterval = CHANGED_INTERVAL_MS;
+    private long mErrorInterval;
+
+    /**
+     * @return the delay before the next request, after a request that found a new track
+     */
+    public long onChanged() {
+        mErrorInterval = 0;
+        mInterval = CHANGED_INTERVAL_MS;
+        return mInterval;
+    }
+
+    /**
+     * @return the delay before the next request, after a request that found the same track
+     */
+    public long onUnchanged() {
+        mErrorInterval = 0;
+        mInterval = Math.min(mInterval * 2, MAX_STABLE_INTERVAL_MS);
+        return mInterval;
+    }
+
+    /**
+     * @return the delay before the next request, after a failed request
+     */
+    public long onError() {
+        mErrorInterval = mErrorInterval == 0 ? ERROR_INTERVAL_MS
+                : Math.min(mErrorInterval * 2, MAX_ERROR_INTERVAL_MS);
+        return mErrorInterval;
+    }
+}
@@ -0,0 +1,253 @@
+package com.android.magic.stream.player;
+
+import java.util.Locale;
+
+/**
+ * Cuts an MPEG audio (MP3) or an ADTS (AAC) stream at the boundaries of its frames, so the proxy
+ * can splice two streams without giving the player a broken frame, e.g. when it switches between
+ * the variants of a station.
+ * <p/>
+ * The audio passed to {@link #align(byte[], int, int)} comes out as whole frames only: the
+ * incomplete frame at the end is held back until the rest of it is received. After
+ * {@link #reset()}, the frame held back is dropped, so the previous stream ends at the end of a
+ * frame, and the bytes of the next stream are dropped until the first frame header, confirmed by
+ * the header of the frame following it.
+ * <p/>
+ * If no frame header is found in {@link #MAX_SYNC_SEARCH} bytes, the stream isn't what its
+ * content type says: the audio is passed as it is from then on.
+ * <p/>
+ * Not thread safe.
+ */
+/*package*/ class AudioFrameAligner {
+
+    /**
+     * The maximum length of a frame: the longest ADTS frame
+     */
+    public static final int MAX_FRAME_LENGTH = 8191;
+
+    /**
+     * The number of bytes searched for a frame header before giving up
+     */
+    public static final int MAX_SYNC_SEARCH = 64 * 1024;
+
+    private static final int MPEG_HEADER_LENGTH = 4;
+    private static final int ADTS_HEADER_LENGTH = 7;
+    private static final int NOT_FOUND = -1;
+
+    // kbps, by version (MPEG 1 or MPEG 2 and 2.5), layer (I, II, III) and bitrate index
+    private static final int[][][] MPEG_BITRATES = {
+            {
+                    {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+                    {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+                    {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320}
+            },
+            {
+                    {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+                    {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+                    {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}
+            }
+    };
+    // Hz, by version (MPEG 2.5, reserved, MPEG 2, MPEG 1) and sample rate index
+    private static final int[][] MPEG_SAMPLE_RATES = {
+            {11025, 12000, 8000},
+            null,
+            {22050, 24000, 16000},
+            {44100, 48000, 32000}
+    };
+
+    private final boolean mAdts;
+    private final int mHeaderLength;
+
+    // the frames aligned last and the bytes held back after them
+    private byte[] mData = new byte[0];
+    private int mFramesOffset;
+    private int mHeldOffset;
+    private int mHeld;
+    private boolean mSynced;
+    // the version, layer and sample rate of the frames, so a frame header is confirmed
+    private int mSignature;
+    private boolean mPassThrough;
+
+    private AudioFrameAligner(final boolean adts) {
+        mAdts = adts;
+        mHeaderLength = adts ? ADTS_HEADER_LENGTH : MPEG_HEADER_LENGTH;
+    }
+
+    /**
+     * @param contentType the content type of the stream
+     * @return an aligner for the frames of the stream or null if the frames of the content type
+     * aren't known
+     */
+    public static AudioFrameAligner forContentType(final String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        String type = contentType.toLowerCase(Locale.US);
+        if (type.startsWith("audio/mpeg") || type.startsWith("audio/mp3")) {
+            return new AudioFrameAligner(false);
+        } else if (type.startsWith("audio/aac")) {
+            return new AudioFrameAligner(true);
+        }
+        return null;
+    }
+
+    /**
+     * Aligns the audio received after the audio aligned before
+     *
+     * @param buffer the audio received
+     * @param offset the offset of the audio in the buffer
+     * @param length the number of bytes received
+     * @return the number of bytes of whole frames, from {@link #getFramesOffset()} in
+     * {@link #getFrames()}
+     */
+    public int align(final byte[] buffer, final int offset, final int length) {
+        int total = mHeld + length;
+        if (mData.length < total) {
+            byte[] data = new byte[total + MAX_FRAME_LENGTH];
+            System.arraycopy(mData, mHeldOffset, data, 0, mHeld);
+            mData = data;
+        } else if (mHeldOffset > 0) {
+            System.arraycopy(mData, mHeldOffset, mData, 0, mHeld);
+        }
+        System.arraycopy(buffer, offset, mData, mHeld, length);
+        mHeldOffset = 0;
+        mFramesOffset = 0;
+        if (mPassThrough) {
+            mHeld = 0;
+            return total;
+        }
+
+        int start = 0;
+        if (!mSynced) {
+            start = findFrame(total);
+            if (start == NOT_FOUND) {
+                if (total >= MAX_SYNC_SEARCH) {
+                    // not the audio of the content type
+                    mPassThrough = true;
+                    mHeld = 0;
+                    return total;
+                }
+                mHeld = total;
+                return 0;
+            }
+            mSynced = true;
+        }
+
+        int end = start;
+        while (end + mHeaderLength <= total) {
+            int frameLength = getFrameLength(end);
+            if (frameLength == NOT_FOUND || getSignature(end) != mSignature) {
+                // lost the frames, the rest is searched again
+                mSynced = false;
+                break;
+            }
+            if (end + frameLength > total) {
+                break;
+            }
+            end += frameLength;
+        }
+        mFramesOffset = start;
+        mHeldOffset = end;
+        mHeld = total - end;
+        return end - start;
+    }
+
+    /**
+     * @return the buffer of the frames aligned last
+     */
+    public byte[] getFrames() {
+        return mData;
+    }
+
+    /**
+     * @return the offset of the frames aligned last in {@link #getFrames()}
+     */
+    public int getFramesOffset() {
+        return mFramesOffset;
+    }
+
+    /**
+     * Drops the incomplete frame held back and searches for the first frame of the audio
+     * aligned next, e.g. when the audio of another stream follows
+     */
+    public void reset() {
+        mHeld = 0;
+        mHeldOffset = 0;
+        mSynced = false;
+    }
+
+    /**
+     * @return the position of the first frame header confirmed by the header following its
+     * frame, or {@link #NOT_FOUND} if there is none or it can't be confirmed yet
+     */
+    private int findFrame(final int length) {
+        for (int i = 0; i + mHeaderLength <= length; i++) {
+            int frameLength = getFrameLength(i);
+            if (frameLength == NOT_FOUND) {
+                continue;
+            }
+            int next = i + frameLength;
+            if (next + mHeaderLength > length) {
+                // waits for the next header
+                return NOT_FOUND;
+            }
+            if (getFrameLength(next) != NOT_FOUND && getSignature(next) == getSignature(i)) {
+                mSignature = getSignature(i);
+                return i;
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * @return the length of the frame whose header is at the position or {@link #NOT_FOUND} if
+     * there is no valid header at the position
+     */
+    private int getFrameLength(final int position) {
+        int b0 = mData[position] & 0xff;
+        int b1 = mData[position + 1] & 0xff;
+        int b2 = mData[position + 2] & 0xff;
+        if (b0 != 0xff) {
+            return NOT_FOUND;
+        }
+        if (mAdts) {
+            if ((b1 & 0xf6) != 0xf0 || ((b2 >> 2) & 0x0f) > 12) {
+                return NOT_FOUND;
+            }
+            int b3 = mData[position + 3] & 0xff;
+            int b4 = mData[position + 4] & 0xff;
+            int b5 = mData[position + 5] & 0xff;
+            int length = ((b3 & 0x03) << 11) | (b4 << 3) | (b5 >> 5);
+            return length >= ADTS_HEADER_LENGTH ? length : NOT_FOUND;
+        }
+
+        int version = (b1 >> 3) & 0x03;
+        int layer = (b1 >> 1) & 0x03;
+        int bitrateIndex = b2 >> 4;
+        int sampleRateIndex = (b2 >> 2) & 0x03;
+        if ((b1 & 0xe0) != 0xe0 || version == 1 || layer == 0 || bitrateIndex == 0
+                || bitrateIndex == 15 || sampleRateIndex == 3) {
+            return NOT_FOUND;
+        }
+        int padding = (b2 >> 1) & 0x01;
+        // layer is 3 for layer I, 1 for layer III
+        int bitrate = MPEG_BITRATES[version == 3 ? 0 : 1][3 - layer][bitrateIndex] * 1000;
+        int sampleRate = MPEG_SAMPLE_RATES[version][sampleRateIndex];
+        if (layer == 3) {
+            return (12 * bitrate / sampleRate + padding) * 4;
+        } else if (layer == 1 && version != 3) {
+            return 72 * bitrate / sampleRate + padding;
+        }
+        return 144 * bitrate / sampleRate + padding;
+    }
+
+    /**
+     * @return the bits of the header at the position that are the same in all the frames of a
+     * stream
+     */
+    private int getSignature(final int position) {
+        int b1 = mData[position + 1] & 0xff;
+        int b2 = mData[position + 2] & 0xff;
+        return mAdts ? (b1 & 0xf6) << 8 | (b2 & 0xfc) : (b1 & 0xfe) << 8 | (b2 & 0x0c);
+    }
+}
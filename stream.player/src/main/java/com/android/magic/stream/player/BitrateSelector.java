@@ -0,0 +1,117 @@
+package com.android.magic.stream.player;
+
+import java.util.List;
+
+/**
+ * Selects the variant of a station to play, from the throughput estimated by a
+ * {@link ThroughputEstimator}.
+ * <p/>
+ * The selection has hysteresis, so the player doesn't switch back and forth when the throughput
+ * is close to a bitrate: it switches up only when the throughput is well above the higher
+ * bitrate, {@link #UP_SAFETY_FACTOR} times, and down when it falls below
+ * {@link #DOWN_SAFETY_FACTOR} times the current bitrate. After a switch, the estimate has time to
+ * settle: the next switch down waits {@link #MIN_DOWN_SWITCH_INTERVAL_MS} and the next switch up
+ * {@link #MIN_UP_SWITCH_INTERVAL_MS}.
+ * <p/>
+ * When the buffer stays full, the stream is received only as fast as it's played and the
+ * throughput can't be measured. If the buffer is full {@link #PROBE_UP_INTERVAL_MS} after the
+ * last switch, the selector probes the next higher bitrate; if the network can't sustain it, the
+ * buffer drains, the throughput is measured again and the selector switches back down. A switch
+ * down always waits for a sample measured after the last switch, so an old estimate doesn't undo
+ * a probe.
+ * <p/>
+ * Not thread safe.
+ */
+/*package*/ class BitrateSelector {
+
+    public static final double UP_SAFETY_FACTOR = 1.5;
+    public static final double DOWN_SAFETY_FACTOR = 1.1;
+    public static final long MIN_UP_SWITCH_INTERVAL_MS = 15 * 1000;
+    public static final long MIN_DOWN_SWITCH_INTERVAL_MS = 5 * 1000;
+    public static final long PROBE_UP_INTERVAL_MS = 60 * 1000;
+    public static final float FULL_BUFFER_LEVEL = 0.9f;
+
+    private static final long NOT_STARTED = -1;
+
+    private final List<StationVariant> mVariants;
+    private final ThroughputEstimator mEstimator;
+    private int mCurrent;
+    private long mLastSwitchTime = NOT_STARTED;
+    private int mSamplesAtSwitch;
+
+    /**
+     * @param variants  the variants, from the lowest to the highest bitrate
+     * @param estimator the estimator of the throughput, possibly with the samples of previous
+     *                  streams
+     */
+    public BitrateSelector(final List<StationVariant> variants,
+                           final ThroughputEstimator estimator) {
+        mVariants = variants;
+        mEstimator = estimator;
+        // without an estimate, start with the lowest bitrate: it starts the fastest
+        mCurrent = estimator.hasEstimate()
+                ? highestBelow(estimator.getEstimateKbps() / UP_SAFETY_FACTOR) : 0;
+    }
+
+    /**
+     * @return the estimator of the throughput
+     */
+    public ThroughputEstimator getEstimator() {
+        return mEstimator;
+    }
+
+    /**
+     * @return the variant currently selected
+     */
+    public StationVariant getCurrent() {
+        return mVariants.get(mCurrent);
+    }
+
+    /**
+     * Selects the variant to play, switching if the throughput changed enough. The first call
+     * starts the interval before the first switch.
+     *
+     * @param now         the current time, in milliseconds, from a monotonic clock
+     * @param bufferLevel how full the buffer is, from 0 to 1
+     * @return the variant to play, the current one if there is no reason to switch
+     */
+    public StationVariant select(final long now, final float bufferLevel) {
+        if (mLastSwitchTime == NOT_STARTED) {
+            mLastSwitchTime = now;
+        }
+        long sinceSwitch = now - mLastSwitchTime;
+        double estimate = mEstimator.getEstimateKbps();
+        int selected = mCurrent;
+        boolean measured = mEstimator.getSampleCount() > mSamplesAtSwitch;
+        if (mCurrent > 0 && measured && sinceSwitch >= MIN_DOWN_SWITCH_INTERVAL_MS
+                && estimate < getCurrent().getBitrateKbps() * DOWN_SAFETY_FACTOR) {
+            selected = Math.min(mCurrent - 1, highestBelow(estimate / DOWN_SAFETY_FACTOR));
+        } else if (mCurrent < mVariants.size() - 1 && sinceSwitch >= MIN_UP_SWITCH_INTERVAL_MS) {
+            selected = Math.max(mCurrent, highestBelow(estimate / UP_SAFETY_FACTOR));
+            if (selected == mCurrent && bufferLevel >= FULL_BUFFER_LEVEL
+                    && sinceSwitch >= PROBE_UP_INTERVAL_MS) {
+                selected = mCurrent + 1;
+            }
+        }
+        if (selected != mCurrent) {
+            mCurrent = selected;
+            mLastSwitchTime = now;
+            mSamplesAtSwitch = mEstimator.getSampleCount();
+        }
+        return getCurrent();
+    }
+
+    /**
+     * @return the index of the highest variant whose bitrate is at most the given bitrate, or of
+     * the lowest variant
+     */
+    private int highestBelow(final double bitrateKbps) {
+        int index = 0;
+        for (int i = 1; i < mVariants.size(); i++) {
+            if (mVariants.get(i).getBitrateKbps() <= bitrateKbps) {
+                index = i;
+            }
+        }
+        return index;
+    }
+}
@@ -0,0 +1,19 @@
+package com.android.magic.stream.player;
+
+/**
+ * Listener of the buffering of the stream. Implement it in a {@link StreamPlayerListener} to also
+ * receive the buffering updates of the player.
+ * <p/>
+ * The player sends buffering updates often, so the updates sent before the listener could be
+ * notified are dropped and only the latest one is delivered.
+ */
+public interface BufferingListener {
+
+    /**
+     * Notifies when the buffering status of the player has changed
+     *
+     * @param percent the percentage of the content buffered, as reported by the
+     *                {@link android.media.MediaPlayer}
+     */
+    public void onBufferingUpdate(final int percent);
+}
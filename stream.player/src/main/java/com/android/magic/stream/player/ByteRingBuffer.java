@@ -0,0 +1,161 @@
+package com.android.magic.stream.player;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Fixed size FIFO of bytes, stored off the Java heap, with one writer and one reader.
+ * <p/>
+ * The reader blocks while the buffer is empty. When the buffer is full, the writer either blocks,
+ * so a fast writer is slowed down to the pace of the reader instead of making the buffer grow,
+ * or, for a buffer created with {@link #mapFile(File, int)}, overwrites the oldest bytes, so the
+ * writer never waits for the reader. Closing the buffer wakes up both: the reader gets the
+ * remaining bytes and then the end of the stream, the writer gets an {@link IOException}.
+ */
+/*package*/ class ByteRingBuffer {
+
+    private final ByteBuffer mBuffer;
+    private final int mCapacity;
+    private final boolean mOverwriteOldest;
+
+    // total number of bytes written and read, the positions in the buffer are modulo capacity
+    private long mWritten;
+    private long mRead;
+    private boolean mClosed;
+
+    /**
+     * Creates a buffer in memory, in a direct {@link ByteBuffer}. The writer blocks when the
+     * buffer is full.
+     *
+     * @param capacity the size of the buffer, in bytes
+     */
+    public ByteRingBuffer(final int capacity) {
+        this(ByteBuffer.allocateDirect(capacity), false);
+    }
+
+    private ByteRingBuffer(final ByteBuffer buffer, final boolean overwriteOldest) {
+        mBuffer = buffer;
+        mCapacity = buffer.capacity();
+        mOverwriteOldest = overwriteOldest;
+    }
+
+    /**
+     * Creates a buffer stored in a file mapped in memory. The writer never blocks: when the
+     * buffer is full, the oldest bytes are overwritten and the reader skips them.
+     *
+     * @param file     the file, created or truncated to the capacity
+     * @param capacity the size of the buffer, in bytes
+     * @throws IOException if the file cannot be mapped
+     */
+    public static ByteRingBuffer mapFile(final File file, final int capacity) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(capacity);
+            // the mapping stays valid after the file is closed
+            return new ByteRingBuffer(randomAccessFile.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, capacity), true);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Writes all the bytes, waiting for free space when the buffer is full
+     *
+     * @throws IOException          if the buffer is closed
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public synchronized void write(final byte[] source, int offset, int length)
+            throws IOException, InterruptedException {
+        while (length > 0) {
+            if (mOverwriteOldest && !mClosed && mWritten - mRead == mCapacity) {
+                // drop the oldest bytes to make room
+                mRead += Math.min(length, mCapacity - (int) (mWritten % mCapacity));
+            }
+            while (!mClosed && mWritten - mRead == mCapacity) {
+                wait();
+            }
+            if (mClosed) {
+                throw new IOException("Buffer closed");
+            }
+            int position = (int) (mWritten % mCapacity);
+            int count = Math.min(length, Math.min(mCapacity - (int) (mWritten - mRead),
+                    mCapacity - position));
+            mBuffer.position(position);
+            mBuffer.put(source, offset, count);
+            mWritten += count;
+            offset += count;
+            length -= count;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Reads at most length bytes, waiting for data when the buffer is empty
+     *
+     * @return the number of bytes read or -1 if the buffer is closed and empty
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public synchronized int read(final byte[] destination, final int offset, final int length)
+            throws InterruptedException {
+        while (!mClosed && mWritten == mRead) {
+            wait();
+        }
+        if (mWritten == mRead) {
+            return -1;
+        }
+        int position = (int) (mRead % mCapacity);
+        int count = Math.min(length, Math.min((int) (mWritten - mRead), mCapacity - position));
+        mBuffer.position(position);
+        mBuffer.get(destination, offset, count);
+        mRead += count;
+        notifyAll();
+        return count;
+    }
+
+    /**
+     * @return the number of bytes that can be read without blocking
+     */
+    public synchronized int available() {
+        return (int) (mWritten - mRead);
+    }
+
+    /**
+     * @return true if writing length bytes now would wait for the reader
+     */
+    public synchronized boolean isFull(final int length) {
+        return !mOverwriteOldest && !mClosed && mCapacity - (mWritten - mRead) < length;
+    }
+
+    /**
+     * Drops the oldest bytes, keeping at most count bytes to be read
+     *
+     * @param count the number of newest bytes to keep
+     */
+    public synchronized void keepLatest(final int count) {
+        mRead = Math.max(mRead, mWritten - count);
+        notifyAll();
+    }
+
+    /**
+     * @return the total number of bytes written in the buffer
+     */
+    public synchronized long getWrittenBytes() {
+        return mWritten;
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Closes the buffer and wakes up the reader and the writer
+     */
+    public synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,102 @@
+package com.android.magic.stream.player;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A station of a {@link StationCatalog}: its name, the url played, its genres and its country.
+ * <p/>
+ * Instances are immutable.
+ */
+public final class CatalogEntry {
+
+    private final String mName;
+    private final String mUrl;
+    private final List<String> mGenres;
+    private final String mCountry;
+    private final int mBitrateKbps;
+
+    /**
+     * @param name        the name of the station
+     * @param url         the url of the stream or of the playlist of the station
+     * @param genres      the genres of the station, maybe none
+     * @param country     the country of the station or null if it's unknown
+     * @param bitrateKbps the bitrate of the stream, in kbps, or 0 if it's unknown
+     */
+    public CatalogEntry(@NonNull final String name, @NonNull final String url,
+                        @NonNull final List<String> genres, @Nullable final String country,
+                        final int bitrateKbps) {
+        if (bitrateKbps < 0) {
+            throw new IllegalArgumentException("Invalid bitrate " + bitrateKbps);
+        }
+        mName = name;
+        mUrl = url;
+        mGenres = Collections.unmodifiableList(new ArrayList<String>(genres));
+        mCountry = country;
+        mBitrateKbps = bitrateKbps;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return the url to play
+     */
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public List<String> getGenres() {
+        return mGenres;
+    }
+
+    /**
+     * @return the country or null if it's unknown
+     */
+    @Nullable
+    public String getCountry() {
+        return mCountry;
+    }
+
+    /**
+     * @return the bitrate of the stream, in kbps, or 0 if it's unknown
+     */
+    public int getBitrateKbps() {
+        return mBitrateKbps;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CatalogEntry)) {
+            return false;
+        }
+        CatalogEntry other = (CatalogEntry) o;
+        return mName.equals(other.mName) && mUrl.equals(other.mUrl)
+                && mGenres.equals(other.mGenres)
+                && (mCountry == null ? other.mCountry == null : mCountry.equals(other.mCountry))
+                && mBitrateKbps == other.mBitrateKbps;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = mName.hashCode();
+        hash = 31 * hash + mUrl.hashCode();
+        hash = 31 * hash + mGenres.hashCode();
+        hash = 31 * hash + (mCountry != null ? mCountry.hashCode() : 0);
+        return 31 * hash + mBitrateKbps;
+    }
+
+    @Override
+    public String toString() {
+        return "CatalogEntry " + mName + " " + mUrl + " " + mGenres + " " + mCountry + " "
+                + mBitrateKbps;
+    }
+}
@@ -0,0 +1,189 @@
+package com.android.magic.stream.player;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Remembers the stream endpoints resolved from the urls played, e.g. the streams listed in a
+ * playlist, for a limited time, so playing the url again doesn't download the playlist again.
+ * <p/>
+ * The entries are saved in a file, to be used after the application is restarted. The times are
+ * wall clock times, since they outlive the process. The least recently used entries are dropped
+ * when the cache holds {@link #MAX_ENTRIES}.
+ * <p/>
+ * Thread safe. {@link #load()} and {@link #save()} block on the file system: call them on a
+ * background thread.
+ */
+/*package*/ class EndpointCache {
+
+    /**
+     * How long the endpoints are used before the playlist is downloaded again
+     */
+    public static final long DEFAULT_TTL_MS = 6 * 60 * 60 * 1000;
+    public static final int MAX_ENTRIES = 100;
+
+    private static final String SEPARATOR = " ";
+
+    private final File mFile;
+    private final long mTtlMs;
+    // serializes the reads and writes of the file
+    private final Object mFileLock = new Object();
+    private final Map<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private static final class Entry {
+        final long mExpiresAt;
+        final List<String> mEndpoints;
+
+        Entry(final long expiresAt, final List<String> endpoints) {
+            mExpiresAt = expiresAt;
+            mEndpoints = endpoints;
+        }
+    }
+
+    /**
+     * @param file  the file storing the entries
+     * @param ttlMs how long an entry is used, in milliseconds
+     */
+    public EndpointCache(final File file, final long ttlMs) {
+        mFile = file;
+        mTtlMs = ttlMs;
+    }
+
+    /**
+     * @param url the url played
+     * @return the endpoints resolved from the url or null if they aren't known or expired
+     */
+    public synchronized List<String> get(final String url) {
+        Entry entry = mEntries.get(url);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.mExpiresAt <= System.currentTimeMillis()) {
+            mEntries.remove(url);
+            return null;
+        }
+        return entry.mEndpoints;
+    }
+
+    /**
+     * @param url       the url played
+     * @param endpoints the endpoints resolved from the url, at least one
+     */
+    public synchronized void put(final String url, final List<String> endpoints) {
+        mEntries.put(url, new Entry(System.currentTimeMillis() + mTtlMs,
+                Collections.unmodifiableList(new ArrayList<String>(endpoints))));
+    }
+
+    /**
+     * Forgets the endpoints resolved from the url, e.g. because they failed
+     *
+     * @param url the url played
+     */
+    public synchronized void invalidate(final String url) {
+        mEntries.remove(url);
+    }
+
+    /**
+     * Reads the entries saved. The entries added since the cache was created are kept.
+     */
+    public void load() {
+        Properties properties = new Properties();
+        synchronized (mFileLock) {
+            InputStream input = null;
+            try {
+                input = new FileInputStream(mFile);
+                properties.load(input);
+            } catch (IOException e) {
+                // nothing saved yet
+                return;
+            } finally {
+                IoUtils.closeQuietly(input);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (Object key : properties.keySet()) {
+                String url = (String) key;
+                Entry entry = parseEntry(properties.getProperty(url));
+                if (entry != null && entry.mExpiresAt > now && !mEntries.containsKey(url)) {
+                    mEntries.put(url, entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the entries that haven't expired
+     */
+    public void save() {
+        Properties properties = new Properties();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Entry> entry = iterator.next();
+                if (entry.getValue().mExpiresAt <= now) {
+                    iterator.remove();
+                } else {
+                    properties.setProperty(entry.getKey(), formatEntry(entry.getValue()));
+                }
+            }
+        }
+
+        synchronized (mFileLock) {
+            OutputStream output = null;
+            try {
+                output = new FileOutputStream(mFile);
+                properties.store(output, null);
+            } catch (IOException e) {
+                // the endpoints will be resolved again after a restart
+            } finally {
+                IoUtils.closeQuietly(output);
+            }
+        }
+    }
+
+    /**
+     * @return the expiry time followed by the endpoints, which are urls and don't contain spaces
+     */
+    private static String formatEntry(final Entry entry) {
+        StringBuilder builder = new StringBuilder().append(entry.mExpiresAt);
+        for (String endpoint : entry.mEndpoints) {
+            builder.append(SEPARATOR).append(endpoint);
+        }
+        return builder.toString();
+    }
+
+    private static Entry parseEntry(final String value) {
+        String[] fields = value.split(SEPARATOR);
+        if (fields.length < 2) {
+            return null;
+        }
+        try {
+            List<String> endpoints = Arrays.asList(fields).subList(1, fields.length);
+            return new Entry(Long.parseLong(fields[0]),
+                    Collections.unmodifiableList(new ArrayList<String>(endpoints)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
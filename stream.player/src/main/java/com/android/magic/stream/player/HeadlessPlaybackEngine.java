@@ -0,0 +1,434 @@
+package com.android.magic.stream.player;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link PlaybackEngine} that consumes the streams without decoding or playing them, e.g. to
+ * run the connection, metadata and reconnection logic of the library in a load test on the JVM.
+ * <p/>
+ * The engine behaves like the {@link android.media.MediaPlayer} seen from the network: it buffers
+ * {@link #PREPARE_SECONDS} of audio before it reports the stream as prepared and playing, then
+ * consumes the buffer at the bitrate of the stream, announced in its icy-br header or
+ * {@link #DEFAULT_BITRATE_KBPS}. It stops reading the stream when {@link #BUFFER_SECONDS} are
+ * buffered, so a fast network isn't read faster than the audio would be played. When the buffer
+ * runs empty, it reports a stall, until {@link #REBUFFER_SECONDS} are buffered again. The errors
+ * are reported with the codes of the {@link android.media.MediaPlayer}.
+ * <p/>
+ * The commands run on a thread of the engine, the stream is read on a thread of the current
+ * stream and the client is notified through the given executor. The streams aren't prepared in
+ * advance.
+ * <p/>
+ * Doesn't depend on the Android framework.
+ */
+/*default*/ class HeadlessPlaybackEngine implements PlaybackEngine {
+
+    public static final int DEFAULT_BITRATE_KBPS = 128;
+    public static final int PREPARE_SECONDS = 2;
+    public static final int REBUFFER_SECONDS = 1;
+    public static final int BUFFER_SECONDS = 10;
+
+    // the codes of android.media.MediaPlayer
+    /*package*/ static final int MEDIA_ERROR_UNKNOWN = 1;
+    /*package*/ static final int MEDIA_ERROR_IO = -1004;
+    /*package*/ static final int MEDIA_ERROR_TIMED_OUT = -110;
+
+    // how often the playback position is advanced
+    private static final long TICK_MS = 50;
+    private static final int READ_SIZE = 8 * 1024;
+    private static final long NANOS_PER_MILLI = 1000 * 1000;
+    private static final long NOT_STARTED = Long.MIN_VALUE;
+
+    private final IMediaPlayerThreadClient mClient;
+    private final Executor mClientExecutor;
+    private final HttpTransport mTransport;
+    private final ScheduledExecutorService mCommands;
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    // accessed only on the commands thread, except for the reads of the volatile fields
+    private volatile PlayerState mState = PlayerState.IDLE;
+    private Stream mStream;
+    private ScheduledFuture<?> mTicks;
+    private long mPrepareStartTime;
+    private long mRebufferStartTime = NOT_STARTED;
+    private long mLastTickTime;
+
+    /**
+     * The stream played, read by its own thread into a buffer that only counts the bytes
+     */
+    private static final class Stream implements Runnable {
+        final String mUrl;
+        final HttpTransport mTransport;
+        final Thread mThread;
+
+        volatile HttpResponse mResponse;
+        volatile int mBytesPerSecond;
+        // the bytes received and consumed by the playback
+        volatile long mReceived;
+        volatile long mPlayed;
+        volatile boolean mEnded;
+        volatile IOException mError;
+        volatile boolean mClosed;
+
+        Stream(final String url, final HttpTransport transport) {
+            mUrl = url;
+            mTransport = transport;
+            mThread = new Thread(this, HeadlessPlaybackEngine.class.getSimpleName());
+            mThread.setDaemon(true);
+        }
+
+        long getBuffered() {
+            return mReceived - mPlayed;
+        }
+
+        @Override
+        public void run() {
+            HttpResponse response = null;
+            try {
+                response = mTransport.get(mUrl, null);
+                mResponse = response;
+                if (mClosed) {
+                    return;
+                }
+                if (!response.isSuccessful()) {
+                    throw new IOException("Unexpected response " + response.getStatusCode()
+                            + " for " + mUrl);
+                }
+                int bitrate = response.getBitrateKbps();
+                mBytesPerSecond = (bitrate > 0 ? bitrate : DEFAULT_BITRATE_KBPS) * 1000 / 8;
+
+                InputStream input = response.getBody();
+                byte[] discarded = new byte[READ_SIZE];
+                while (!mClosed) {
+                    if (getBuffered() >= (long) BUFFER_SECONDS * mBytesPerSecond) {
+                        // the buffer is full, as the player's would be
+                        Thread.sleep(TICK_MS);
+                        continue;
+                    }
+                    int read = input.read(discarded);
+                    if (read == -1) {
+                        mEnded = true;
+                        return;
+                    }
+                    mReceived += read;
+                }
+            } catch (IOException e) {
+                if (!mClosed) {
+                    mError = e;
+                }
+            } catch (InterruptedException e) {
+                // closed
+            } finally {
+                if (response != null) {
+                    response.close();
+                }
+            }
+        }
+
+        void close() {
+            mClosed = true;
+            HttpResponse response = mResponse;
+            if (response != null) {
+                response.close();
+            }
+            mThread.interrupt();
+        }
+    }
+
+    /**
+     * @param client         the client notified about the playback
+     * @param clientExecutor the executor notifying the client
+     * @param transport      the transport reading the streams
+     */
+    public HeadlessPlaybackEngine(final IMediaPlayerThreadClient client,
+                                  final Executor clientExecutor, final HttpTransport transport) {
+        mClient = client;
+        mClientExecutor = clientExecutor;
+        mTransport = transport;
+        mCommands = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(runnable, HeadlessPlaybackEngine.class.getSimpleName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public void start() {
+        // the commands thread starts with the first command
+    }
+
+    @Override
+    public void initializePlayer(final String station) {
+        final int generation = mGeneration.incrementAndGet();
+        send(generation, new Runnable() {
+            @Override
+            public void run() {
+                play(station);
+            }
+        });
+    }
+
+    @Override
+    public void preparePlayer(final String station) {
+        // not prepared in advance
+    }
+
+    @Override
+    public void preparePlayers(final List<String> stations) {
+        // not prepared in advance
+    }
+
+    @Override
+    public void releasePreparedPlayers() {
+        // nothing prepared in advance
+    }
+
+    @Override
+    public void startMediaPlayer() {
+        send(mGeneration.get(), new Runnable() {
+            @Override
+            public void run() {
+                if (mState == PlayerState.PAUSED) {
+                    startPlayback();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void pauseMediaPlayer(final boolean keepConnection) {
+        send(mGeneration.get(), new Runnable() {
+            @Override
+            public void run() {
+                if (mState == PlayerState.PLAYING) {
+                    // the stream is still received until the buffer is full, as by the player
+                    mRebufferStartTime = NOT_STARTED;
+                    setState(PlayerState.PAUSED);
+                } else if (mState == PlayerState.PREPARING) {
+                    release(PlayerState.IDLE);
+                } else {
+                    return;
+                }
+                notifyClient(new Runnable() {
+                    @Override
+                    public void run() {
+                        mClient.onStop();
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void stopMediaPlayer() {
+        send(mGeneration.incrementAndGet(), new Runnable() {
+            @Override
+            public void run() {
+                if (mState != PlayerState.IDLE) {
+                    release(PlayerState.IDLE);
+                    notifyClient(new Runnable() {
+                        @Override
+                        public void run() {
+                            mClient.onStop();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    @Override
+    public void resetMediaPlayer() {
+        send(mGeneration.incrementAndGet(), new Runnable() {
+            @Override
+            public void run() {
+                release(PlayerState.IDLE);
+            }
+        });
+    }
+
+    @Override
+    public void quit() {
+        send(mGeneration.incrementAndGet(), new Runnable() {
+            @Override
+            public void run() {
+                release(PlayerState.IDLE);
+                mCommands.shutdown();
+            }
+        });
+    }
+
+    @Override
+    public PlayerState getPlayerState() {
+        return mState;
+    }
+
+    /**
+     * Runs the command on the commands thread, unless a newer command playing or stopping a
+     * stream was queued meanwhile
+     */
+    private void send(final int generation, final Runnable command) {
+        try {
+            mCommands.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation == mGeneration.get()) {
+                        command.run();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // quit
+        }
+    }
+
+    private void play(final String station) {
+        // replaced without going through the idle state
+        releaseStream();
+        mPrepareStartTime = System.nanoTime();
+        mRebufferStartTime = NOT_STARTED;
+        mStream = new Stream(station, mTransport);
+        mStream.mThread.start();
+        setState(PlayerState.PREPARING);
+
+        final int generation = mGeneration.get();
+        mLastTickTime = System.nanoTime();
+        mTicks = mCommands.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == mGeneration.get()) {
+                    tick();
+                }
+            }
+        }, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Advances the playback by the time elapsed since the last tick and reports the changes
+     */
+    private void tick() {
+        Stream stream = mStream;
+        if (stream == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        long elapsedMs = (now - mLastTickTime) / NANOS_PER_MILLI;
+        mLastTickTime = now;
+
+        if (mState == PlayerState.PREPARING) {
+            boolean stopped = stream.mError != null || stream.mEnded;
+            if (stream.mBytesPerSecond > 0 && (stopped && stream.getBuffered() > 0
+                    || stream.getBuffered() >= (long) PREPARE_SECONDS * stream.mBytesPerSecond)) {
+                // a stream shorter than the prepare buffer is played until its end too
+                final long prepareMillis = (now - mPrepareStartTime) / NANOS_PER_MILLI;
+                notifyClient(new Runnable() {
+                    @Override
+                    public void run() {
+                        mClient.onPrepared(prepareMillis);
+                    }
+                });
+                startPlayback();
+            } else if (stopped) {
+                fail(stream.mError);
+            }
+        } else if (mState == PlayerState.PLAYING) {
+            if (mRebufferStartTime == NOT_STARTED) {
+                long consumed = Math.min(stream.getBuffered(),
+                        elapsedMs * stream.mBytesPerSecond / 1000);
+                stream.mPlayed += consumed;
+                if (stream.getBuffered() == 0) {
+                    if (stream.mError != null || stream.mEnded) {
+                        // the buffered audio was played until the end
+                        fail(stream.mError);
+                        return;
+                    }
+                    mRebufferStartTime = now;
+                    notifyClient(new Runnable() {
+                        @Override
+                        public void run() {
+                            mClient.onRebufferStart();
+                        }
+                    });
+                }
+            } else if (stream.getBuffered() >= (long) REBUFFER_SECONDS * stream.mBytesPerSecond
+                    || stream.mError != null || stream.mEnded) {
+                final long rebufferMillis = (now - mRebufferStartTime) / NANOS_PER_MILLI;
+                mRebufferStartTime = NOT_STARTED;
+                notifyClient(new Runnable() {
+                    @Override
+                    public void run() {
+                        mClient.onRebufferEnd(rebufferMillis);
+                    }
+                });
+            }
+        }
+    }
+
+    private void startPlayback() {
+        setState(PlayerState.PLAYING);
+        notifyClient(new Runnable() {
+            @Override
+            public void run() {
+                mClient.onPlaying();
+            }
+        });
+    }
+
+    private void fail(final IOException error) {
+        release(PlayerState.ERROR);
+        final int extra = error instanceof SocketTimeoutException ? MEDIA_ERROR_TIMED_OUT
+                : MEDIA_ERROR_IO;
+        notifyClient(new Runnable() {
+            @Override
+            public void run() {
+                mClient.onError(MEDIA_ERROR_UNKNOWN, extra);
+            }
+        });
+    }
+
+    private void release(final PlayerState state) {
+        releaseStream();
+        setState(state);
+    }
+
+    private void releaseStream() {
+        if (mTicks != null) {
+            mTicks.cancel(false);
+            mTicks = null;
+        }
+        if (mStream != null) {
+            mStream.close();
+            mStream = null;
+        }
+    }
+
+    private void setState(final PlayerState state) {
+        if (mState == state) {
+            return;
+        }
+        mState = state;
+        notifyClient(new Runnable() {
+            @Override
+            public void run() {
+                mClient.onStateChanged(state);
+            }
+        });
+    }
+
+    private void notifyClient(final Runnable notification) {
+        mClientExecutor.execute(notification);
+    }
+}
@@ -0,0 +1,74 @@
+package com.android.magic.stream.player;
+
+/**
+ * Histogram of durations, in milliseconds, with a fixed number of logarithmic buckets.
+ * <p/>
+ * Every power of two is split in {@link #SUB_BUCKETS} buckets of the same width, so a value is
+ * known with a precision of 12.5% whatever its magnitude, and values below {@link #SUB_BUCKETS}
+ * are exact. Recording a value only increments a counter: the histogram never allocates after it
+ * is created. Values above {@link #MAX_VALUE} are recorded as {@link #MAX_VALUE}.
+ */
+/*package*/ class Histogram {
+
+    /**
+     * Maximum value recorded, about 12 days in milliseconds
+     */
+    public static final long MAX_VALUE = (1L << 30) - 1;
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = bucketIndex(MAX_VALUE) + 1;
+
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax;
+
+    /**
+     * Records a value
+     *
+     * @param value the value, negative values are recorded as 0
+     */
+    public synchronized void record(long value) {
+        value = Math.max(0, Math.min(value, MAX_VALUE));
+        mCounts[bucketIndex(value)]++;
+        mCount++;
+        mSum += value;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    /**
+     * @return a copy of the values recorded so far
+     */
+    public synchronized HistogramSnapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        System.arraycopy(mCounts, 0, counts, 0, BUCKET_COUNT);
+        return new HistogramSnapshot(counts, mCount, mSum, mCount > 0 ? mMin : 0, mMax);
+    }
+
+    /*package*/
+    static int bucketIndex(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the highest value recorded in the bucket
+     */
+    /*package*/
+    static long bucketUpperBound(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lowerBound = (long) (SUB_BUCKETS + index % SUB_BUCKETS)
+                << (exponent - SUB_BUCKET_BITS);
+        return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
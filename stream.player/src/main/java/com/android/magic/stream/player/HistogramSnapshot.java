@@ -0,0 +1,94 @@
+package com.android.magic.stream.player;
+
+/**
+ * The values recorded by a histogram of durations, in milliseconds, at the time of the snapshot.
+ * The percentiles are estimated with a precision of 12.5%.
+ * <p/>
+ * Instances are immutable.
+ */
+public final class HistogramSnapshot {
+
+    private final long[] mCounts;
+    private final long mCount;
+    private final long mSum;
+    private final long mMin;
+    private final long mMax;
+
+    /*package*/ HistogramSnapshot(final long[] counts, final long count, final long sum,
+                                  final long min, final long max) {
+        mCounts = counts;
+        mCount = count;
+        mSum = sum;
+        mMin = min;
+        mMax = max;
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the smallest value recorded or 0 if no value was recorded
+     */
+    public long getMin() {
+        return mMin;
+    }
+
+    /**
+     * @return the largest value recorded or 0 if no value was recorded
+     */
+    public long getMax() {
+        return mMax;
+    }
+
+    /**
+     * @return the mean of the values recorded or 0 if no value was recorded
+     */
+    public double getMean() {
+        return mCount > 0 ? (double) mSum / mCount : 0;
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100, e.g. 99 for the 99th percentile
+     * @return the value below which the given percentage of the values fall, or 0 if no value
+     * was recorded
+     */
+    public long getPercentile(final double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mCount));
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.max(mMin, Math.min(Histogram.bucketUpperBound(i), mMax));
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * Appends the summary of the histogram as a JSON object
+     */
+    /*package*/ void appendJson(final StringBuilder json) {
+        json.append("{\"count\":").append(mCount)
+                .append(",\"min\":").append(mMin)
+                .append(",\"max\":").append(mMax)
+                .append(",\"mean\":").append(Math.round(getMean()))
+                .append(",\"p50\":").append(getPercentile(50))
+                .append(",\"p90\":").append(getPercentile(90))
+                .append(",\"p99\":").append(getPercentile(99))
+                .append('}');
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder json = new StringBuilder();
+        appendJson(json);
+        return json.toString();
+    }
+}
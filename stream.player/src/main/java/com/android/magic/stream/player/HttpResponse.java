@@ -0,0 +1,220 @@
+package com.android.magic.stream.player;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * A response of the {@link HttpTransport}: the status, the headers and the body of its
+ * connection, read as the body is read.
+ * <p/>
+ * Close the response when done. If the body was read entirely, or its rest is short and already
+ * received, e.g. the body of a redirect, the connection is left to the platform, which keeps it
+ * alive for the next request to the same host, otherwise it's closed. A stream never ends, so
+ * its connection is always closed. {@link #close()} never blocks: it can be called from another
+ * thread to interrupt a blocked read, e.g. to stop a stream.
+ */
+/*package*/ class HttpResponse {
+
+    private static final String ICY_BITRATE = "icy-br";
+    // the most bytes of a body read when it's closed, to keep its connection alive
+    private static final int MAX_DRAINED_BYTES = 8 * 1024;
+
+    private final HttpURLConnection mConnection;
+    private final URL mUrl;
+    private final int mStatusCode;
+    private final long mConnectTimeMs;
+    private Body mBody;
+    private boolean mClosed;
+
+    /*package*/ HttpResponse(final HttpURLConnection connection, final URL url,
+                             final int statusCode, final long connectTimeMs) {
+        mConnection = connection;
+        mUrl = url;
+        mStatusCode = statusCode;
+        mConnectTimeMs = connectTimeMs;
+    }
+
+    /**
+     * @return the url requested, after the redirects
+     */
+    public URL getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * @return how long the lookup of the host and the connection, with the TLS handshake, took,
+     * in milliseconds, about 0 if the response was received on a connection kept alive
+     */
+    public long getConnectTimeMs() {
+        return mConnectTimeMs;
+    }
+
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+
+    /**
+     * @return true if the status code is 2xx
+     */
+    public boolean isSuccessful() {
+        return mStatusCode >= 200 && mStatusCode < 300;
+    }
+
+    /**
+     * @param name the name of the header, in any case
+     * @return the value of the header or null if the response doesn't have it
+     */
+    public String getHeader(final String name) {
+        return mConnection.getHeaderField(name);
+    }
+
+    /**
+     * @param name the name of the header, in any case
+     * @return the number the header starts with, e.g. 128 for "128 kbps" or "128,128", or 0 if
+     * the response doesn't have the header or it doesn't start with a number
+     */
+    public int getIntHeader(final String name) {
+        String value = getHeader(name);
+        if (value == null) {
+            return 0;
+        }
+        String trimmed = value.trim();
+        int end = 0;
+        while (end < trimmed.length() && Character.isDigit(trimmed.charAt(end))) {
+            end++;
+        }
+        try {
+            return end > 0 ? Integer.parseInt(trimmed.substring(0, end)) : 0;
+        } catch (NumberFormatException e) {
+            // too large
+            return 0;
+        }
+    }
+
+    /**
+     * @return the bitrate announced in the icy-br header, in kbps, or 0 if there is none
+     */
+    public int getBitrateKbps() {
+        return getIntHeader(ICY_BITRATE);
+    }
+
+    /**
+     * @return the content type or null if the response doesn't have one
+     */
+    public String getContentType() {
+        return getHeader("Content-Type");
+    }
+
+    /**
+     * @return the body of the response, the error page if the status code isn't 2xx
+     * @throws IOException if the body cannot be read
+     */
+    public synchronized InputStream getBody() throws IOException {
+        if (mBody == null) {
+            InputStream input = isSuccessful() ? mConnection.getInputStream()
+                    : mConnection.getErrorStream();
+            mBody = new Body(input != null ? input : new ByteArrayInputStream(new byte[0]));
+        }
+        return mBody;
+    }
+
+    /**
+     * Releases the connection: leaves it to be kept alive if the body was read entirely or its
+     * rest could be read without blocking, closes it otherwise
+     */
+    public void close() {
+        Body body;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            body = mBody;
+        }
+        if (body == null) {
+            try {
+                body = (Body) getBody();
+            } catch (IOException e) {
+                body = null;
+            }
+        }
+        if (body != null && drain(body, mConnection.getContentLength())) {
+            IoUtils.closeQuietly(body);
+        } else {
+            // closes the socket, so a read blocked on another thread ends
+            mConnection.disconnect();
+        }
+    }
+
+    /**
+     * Reads the rest of the body if it's short and already received
+     *
+     * @param contentLength the length of the body or -1 if it isn't known
+     * @return true if the body was read entirely
+     */
+    private static boolean drain(final Body body, final int contentLength) {
+        if (body.mComplete) {
+            return true;
+        }
+        long remaining = contentLength - body.mRead;
+        if (contentLength < 0 || remaining > MAX_DRAINED_BYTES) {
+            return false;
+        }
+        try {
+            byte[] skipped = new byte[(int) Math.max(remaining, 1)];
+            while (remaining > 0) {
+                if (body.available() == 0) {
+                    // not received yet, the read would block
+                    return false;
+                }
+                int read = body.read(skipped, 0, (int) remaining);
+                if (read == -1) {
+                    break;
+                }
+                remaining -= read;
+            }
+            // the end of a body of known length, read without blocking
+            return body.read() == -1;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The body of a response, which knows when it was read until its end
+     */
+    private static final class Body extends FilterInputStream {
+
+        private volatile boolean mComplete;
+        private volatile long mRead;
+
+        Body(final InputStream input) {
+            super(input);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            mComplete = read == -1;
+            if (read != -1) {
+                mRead++;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length)
+                throws IOException {
+            int read = super.read(buffer, offset, length);
+            mComplete = read == -1;
+            if (read > 0) {
+                mRead += read;
+            }
+            return read;
+        }
+    }
+}
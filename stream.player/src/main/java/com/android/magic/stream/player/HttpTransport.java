@@ -0,0 +1,129 @@
+package com.android.magic.stream.player;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Sends the requests of the library: the stream connections, the metadata polls, the playlists
+ * and the probes, all with the timeouts set by {@link #setTimeouts(int, int)}.
+ * <p/>
+ * The requests go through {@link HttpURLConnection}, so they use the proxy of the system and the
+ * connections the platform keeps alive, see {@link HttpResponse#close()}. The hosts are looked up
+ * by the platform, which caches the lookups for a few seconds only; the library doesn't cache
+ * them longer, since {@link HttpURLConnection} can't be given the addresses to connect to. The
+ * redirects are followed, up to {@link #MAX_REDIRECTS}, from http to https too, but never from
+ * https to http.
+ * <p/>
+ * Only GET requests are sent. Thread safe. The requests block on the network: send them on a
+ * background thread. Doesn't depend on the Android framework.
+ */
+/*package*/ class HttpTransport {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 10 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 15 * 1000;
+    public static final int MAX_REDIRECTS = 5;
+
+    private static final String USER_AGENT = "StreamPlayer";
+    private static final String HTTPS = "https";
+    private static final long NANOS_PER_MILLI = 1000 * 1000;
+
+    private static HttpTransport sShared;
+
+    private volatile int mConnectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+    private volatile int mReadTimeoutMs = DEFAULT_READ_TIMEOUT_MS;
+
+    /**
+     * @return the transport shared by the library
+     */
+    public static synchronized HttpTransport shared() {
+        if (sShared == null) {
+            sShared = new HttpTransport();
+        }
+        return sShared;
+    }
+
+    /**
+     * Sets the timeouts of the next requests
+     *
+     * @param connectTimeoutMs the timeout of the connection, in milliseconds
+     * @param readTimeoutMs    how long a read waits for data, in milliseconds
+     */
+    public void setTimeouts(final int connectTimeoutMs, final int readTimeoutMs) {
+        if (connectTimeoutMs <= 0 || readTimeoutMs <= 0) {
+            throw new IllegalArgumentException("Invalid timeouts " + connectTimeoutMs + " "
+                    + readTimeoutMs);
+        }
+        mConnectTimeoutMs = connectTimeoutMs;
+        mReadTimeoutMs = readTimeoutMs;
+    }
+
+    /**
+     * Sends a GET request and reads the headers of the response. Close the response when done.
+     *
+     * @param url     the url requested
+     * @param headers the headers of the request, e.g. Icy-MetaData, or null
+     * @return the response, whatever its status code
+     * @throws IOException if the request cannot be sent or the response cannot be read, or if
+     *                     it's redirected from https to http
+     */
+    public HttpResponse get(final String url, final Map<String, String> headers)
+            throws IOException {
+        URL current = new URL(url);
+        for (int redirects = 0; ; redirects++) {
+            HttpResponse response = execute(current, headers);
+            String location = response.getHeader("Location");
+            if (!isRedirect(response.getStatusCode()) || location == null) {
+                return response;
+            }
+            response.close();
+            if (redirects == MAX_REDIRECTS) {
+                throw new ProtocolException("Too many redirects: " + url);
+            }
+            URL next = new URL(current, location);
+            if (HTTPS.equalsIgnoreCase(current.getProtocol())
+                    && !HTTPS.equalsIgnoreCase(next.getProtocol())) {
+                throw new ProtocolException("Redirect from " + current + " to " + next
+                        + " refused");
+            }
+            current = next;
+        }
+    }
+
+    private HttpResponse execute(final URL url, final Map<String, String> headers)
+            throws IOException {
+        String scheme = url.getProtocol().toLowerCase(Locale.US);
+        if (!"http".equals(scheme) && !HTTPS.equals(scheme)) {
+            throw new MalformedURLException("Unsupported protocol: " + url);
+        }
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            // the redirects are followed by get(), which refuses the ones to http
+            connection.setInstanceFollowRedirects(false);
+            connection.setConnectTimeout(mConnectTimeoutMs);
+            connection.setReadTimeout(mReadTimeoutMs);
+            connection.setRequestProperty("User-Agent", USER_AGENT);
+            if (headers != null) {
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    connection.setRequestProperty(header.getKey(), header.getValue());
+                }
+            }
+            long connectStart = System.nanoTime();
+            connection.connect();
+            long connectTimeMs = (System.nanoTime() - connectStart) / NANOS_PER_MILLI;
+            return new HttpResponse(connection, url, connection.getResponseCode(),
+                    connectTimeMs);
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    private static boolean isRedirect(final int code) {
+        return code == 301 || code == 302 || code == 303 || code == 307 || code == 308;
+    }
+}
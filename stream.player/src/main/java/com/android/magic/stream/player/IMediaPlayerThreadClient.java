@@ -1,7 +1,8 @@
 package com.android.magic.stream.player;
 
 /**
- * Listener of the thread that handles the {@link android.media.MediaPlayer}
+ * Listener of the {@link PlaybackEngine}, e.g. the thread that handles the
+ * {@link android.media.MediaPlayer}
  */
 /*default*/ interface IMediaPlayerThreadClient {
 
@@ -31,4 +32,42 @@ package com.android.magic.stream.player;
      * @param extra - the extra returned by {@link android.media.MediaPlayer}#onError
      */
     public void onError(int what, int extra);
-}
\ No newline at end of file
+
+    /**
+     * A callback made by a MediaPlayerThread onto its clients to indicate that the buffering
+     * status of the player has changed.
+     *
+     * @param percent - the percent returned by {@link android.media.MediaPlayer}#onBufferingUpdate
+     */
+    public void onBufferingUpdate(int percent);
+
+    /**
+     * A callback made by a MediaPlayerThread onto its clients to indicate that the state of the
+     * player has changed.
+     *
+     * @param state - the new state
+     */
+    public void onStateChanged(PlayerState state);
+
+    /**
+     * A callback made by a MediaPlayerThread onto its clients to indicate that a player created
+     * to play a stream is prepared. Not called for the players prepared in advance.
+     *
+     * @param prepareMillis - the time the player took to prepare
+     */
+    public void onPrepared(long prepareMillis);
+
+    /**
+     * A callback made by a MediaPlayerThread onto its clients to indicate that the playback
+     * stalled, waiting for data.
+     */
+    public void onRebufferStart();
+
+    /**
+     * A callback made by a MediaPlayerThread onto its clients to indicate that the playback
+     * resumed after a stall.
+     *
+     * @param rebufferMillis - the duration of the stall
+     */
+    public void onRebufferEnd(long rebufferMillis);
+}
@@ -0,0 +1,128 @@
+package com.android.magic.stream.player;
+
+/**
+ * Separates the ICY metadata blocks from the audio data of a shoutcast/icecast stream.
+ * <p/>
+ * When a client requests the stream with the "Icy-MetaData: 1" header, the server inserts a
+ * metadata block after every "icy-metaint" bytes of audio. A block starts with one length byte
+ * (the length of the metadata divided by 16) followed by the metadata itself, padded with 0.
+ * <p/>
+ * The demuxer removes these blocks in place from the buffers passed to {@link #demux(byte[], int,
+ * int)}, so only the audio data is left in the buffer, and notifies the {@link TrackMetadataListener}
+ * as soon as a complete metadata block was received. The state is kept between calls, so a block
+ * can be split across several buffers.
+ * <p/>
+ * Most servers send an empty block while the track doesn't change. A listener that also
+ * implements {@link BlockListener} is notified at the end of every block, the empty ones
+ * included, e.g. to know how late a track change can be detected.
+ */
+/*package*/ class IcyMetadataDemuxer {
+
+    /**
+     * Listener of the metadata block boundaries, implemented by the {@link TrackMetadataListener}
+     * given to the demuxer
+     */
+    public interface BlockListener {
+
+        /**
+         * Called at the end of every metadata block, empty or not, after
+         * {@link TrackMetadataListener#onTrackMetadata(TrackMetadata)} for a non empty block
+         */
+        public void onMetadataBlock();
+    }
+
+    private static final int METADATA_LENGTH_MULTIPLIER = 16;
+
+    private final int mMetaInterval;
+    private final TrackMetadataListener mListener;
+    private final MetadataParser mParser = new MetadataParser();
+    private final byte[] mMetadata = new byte[IcyStreamReader.MAX_METADATA_LENGTH];
+
+    // bytes of audio left until the next metadata block
+    private int mAudioRemaining;
+    // bytes of metadata left in the current block, -1 when the length byte is expected
+    private int mMetadataRemaining = -1;
+    private int mMetadataLength;
+    private long mAudioBytes;
+
+    /**
+     * @param metaInterval the value of the "icy-metaint" header
+     * @param listener     listener notified every time a non empty metadata block is received
+     */
+    public IcyMetadataDemuxer(final int metaInterval, final TrackMetadataListener listener) {
+        if (metaInterval <= 0) {
+            throw new IllegalArgumentException("Invalid metadata interval " + metaInterval);
+        }
+        mMetaInterval = metaInterval;
+        mListener = listener;
+        mAudioRemaining = metaInterval;
+    }
+
+    /**
+     * Removes the metadata from the buffer. The audio bytes are moved to the beginning of the
+     * given range.
+     *
+     * @param buffer the buffer containing the bytes received from the stream
+     * @param offset the offset of the first byte received
+     * @param length the number of bytes received
+     * @return the number of audio bytes left in the buffer, starting at offset
+     */
+    public int demux(final byte[] buffer, final int offset, final int length) {
+        final int end = offset + length;
+        int read = offset;
+        int write = offset;
+        while (read < end) {
+            if (mAudioRemaining > 0) {
+                int count = Math.min(mAudioRemaining, end - read);
+                if (write != read) {
+                    System.arraycopy(buffer, read, buffer, write, count);
+                }
+                read += count;
+                write += count;
+                mAudioRemaining -= count;
+                mAudioBytes += count;
+            } else if (mMetadataRemaining < 0) {
+                mMetadataLength = (buffer[read++] & 0xff) * METADATA_LENGTH_MULTIPLIER;
+                mMetadataRemaining = mMetadataLength;
+                if (mMetadataLength == 0) {
+                    // no metadata change
+                    endMetadataBlock();
+                }
+            } else {
+                int count = Math.min(mMetadataRemaining, end - read);
+                System.arraycopy(buffer, read, mMetadata, mMetadataLength - mMetadataRemaining,
+                        count);
+                read += count;
+                mMetadataRemaining -= count;
+                if (mMetadataRemaining == 0) {
+                    notifyMetadata();
+                    endMetadataBlock();
+                }
+            }
+        }
+        return write - offset;
+    }
+
+    /**
+     * @return the number of audio bytes demuxed so far. While the listener is notified, the audio
+     * bytes before the metadata block.
+     */
+    public long getAudioBytes() {
+        return mAudioBytes;
+    }
+
+    private void endMetadataBlock() {
+        mMetadataRemaining = -1;
+        mAudioRemaining = mMetaInterval;
+        if (mListener instanceof BlockListener) {
+            ((BlockListener) mListener).onMetadataBlock();
+        }
+    }
+
+    private void notifyMetadata() {
+        TrackMetadata metadata = mParser.parse(mMetadata, 0, mMetadataLength);
+        if (mListener != null) {
+            mListener.onTrackMetadata(metadata);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.android.magic.stream.player;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+/**
+ * Reads the parts of a shoutcast/icecast stream needed to get its metadata: the headers sent
+ * within the stream, the audio that has to be skipped and the metadata block.
+ * <p/>
+ * The stream is read in bulk into one buffer, allocated once and reused for every connection, so
+ * the memory used per connection is capped at {@link #BUFFER_SIZE} bytes. Headers longer than
+ * that are rejected. The reader is not thread safe.
+ */
+/*package*/ class IcyStreamReader {
+
+    /**
+     * Size of the read buffer, reused for every connection: the headers sent within the stream
+     * must fit in it
+     */
+    public static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Maximum length of a metadata block: the length byte is multiplied by 16
+     */
+    public static final int MAX_METADATA_LENGTH = 255 * 16;
+
+    private static final byte[] ICY_METAINT = "icy-metaint:".getBytes();
+    private static final int MAX_META_INTERVAL = 1 << 24;
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    // bytes read from the stream but not consumed yet are between position and limit
+    private int mPosition;
+    private int mLimit;
+
+    /**
+     * Drops the bytes buffered from the previous stream. Call it before reading a new stream.
+     */
+    public void reset() {
+        mPosition = 0;
+        mLimit = 0;
+    }
+
+    /**
+     * Reads the headers sent within the stream, up to and including the empty line that ends
+     * them, and returns the value of the "icy-metaint" header.
+     *
+     * @param stream the stream, positioned at the beginning of the headers
+     * @return the number of audio bytes between two metadata blocks or 0 if the stream doesn't
+     * have metadata
+     * @throws ProtocolException if the headers are longer than {@link #BUFFER_SIZE}, e.g. because
+     *                           the stream doesn't start with headers
+     * @throws IOException       if the stream ends before the end of the headers
+     */
+    public int readHeaders(final InputStream stream) throws IOException {
+        compact();
+
+        int metaInterval = 0;
+        int lineStart = mPosition;
+        int index = mPosition;
+        while (true) {
+            if (index == mLimit && !fill(stream)) {
+                if (mLimit == BUFFER_SIZE) {
+                    throw new ProtocolException("Headers too long");
+                }
+                throw new EOFException("Stream ended before the end of the headers");
+            }
+            if (mBuffer[index] == '\n') {
+                int lineEnd = index;
+                if (lineEnd > lineStart && mBuffer[lineEnd - 1] == '\r') {
+                    lineEnd--;
+                }
+                index++;
+                if (lineEnd == lineStart) {
+                    // empty line, end of headers
+                    mPosition = index;
+                    return metaInterval;
+                }
+                int value = parseMetaInterval(lineStart, lineEnd);
+                if (value > 0) {
+                    metaInterval = value;
+                }
+                lineStart = index;
+            } else {
+                index++;
+            }
+        }
+    }
+
+    /**
+     * Skips exactly count bytes of the stream.
+     *
+     * @param stream the stream
+     * @param count  the number of bytes to skip
+     * @throws EOFException if the stream ends before
+     */
+    public void skipFully(final InputStream stream, long count) throws IOException {
+        int buffered = (int) Math.min(count, mLimit - mPosition);
+        mPosition += buffered;
+        count -= buffered;
+
+        while (count > 0) {
+            long skipped = stream.skip(count);
+            if (skipped <= 0) {
+                // some streams can't skip, read in bulk instead
+                skipped = stream.read(mBuffer, 0, (int) Math.min(count, BUFFER_SIZE));
+                if (skipped == -1) {
+                    throw new EOFException("Stream ended while skipping audio");
+                }
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Reads a metadata block: the length byte followed by the metadata.
+     *
+     * @param stream the stream, positioned at the length byte
+     * @param parser the parser of the metadata
+     * @return the metadata, empty if the block is empty
+     * @throws EOFException if the stream ends before the end of the block
+     */
+    public TrackMetadata readMetadata(final InputStream stream, final MetadataParser parser)
+            throws IOException {
+        compact();
+        if (!require(stream, 1)) {
+            throw new EOFException("Stream ended before the metadata");
+        }
+        // the length byte is the length of the metadata divided by 16
+        int length = (mBuffer[mPosition++] & 0xff) * 16;
+        if (!require(stream, length)) {
+            throw new EOFException("Stream ended inside the metadata");
+        }
+
+        TrackMetadata metadata = parser.parse(mBuffer, mPosition, length);
+        mPosition += length;
+        return metadata;
+    }
+
+    /**
+     * Makes sure that at least count bytes are buffered
+     *
+     * @return false if the stream ended before
+     */
+    private boolean require(final InputStream stream, final int count) throws IOException {
+        if (BUFFER_SIZE - mPosition < count) {
+            compact();
+        }
+        while (mLimit - mPosition < count) {
+            if (!fill(stream)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads from the stream as many bytes as available, after the buffered bytes
+     *
+     * @return false if the buffer is full or the stream ended
+     */
+    private boolean fill(final InputStream stream) throws IOException {
+        if (mLimit == BUFFER_SIZE) {
+            return false;
+        }
+        int read = stream.read(mBuffer, mLimit, BUFFER_SIZE - mLimit);
+        if (read == -1) {
+            return false;
+        }
+        mLimit += read;
+        return true;
+    }
+
+    /**
+     * Moves the buffered bytes to the beginning of the buffer
+     */
+    private void compact() {
+        if (mPosition > 0) {
+            System.arraycopy(mBuffer, mPosition, mBuffer, 0, mLimit - mPosition);
+            mLimit -= mPosition;
+            mPosition = 0;
+        }
+    }
+
+    /**
+     * @return the value of the header if the line is an "icy-metaint" header, 0 otherwise
+     */
+    private int parseMetaInterval(final int start, final int end) {
+        if (end - start <= ICY_METAINT.length) {
+            return 0;
+        }
+        for (int i = 0; i < ICY_METAINT.length; i++) {
+            int b = mBuffer[start + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != ICY_METAINT[i]) {
+                return 0;
+            }
+        }
+
+        int value = 0;
+        for (int i = start + ICY_METAINT.length; i < end; i++) {
+            byte b = mBuffer[i];
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                if (value > MAX_META_INTERVAL) {
+                    return 0;
+                }
+            } else if (b != ' ' && b != '\t') {
+                return 0;
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,122 @@
+package com.android.magic.stream.player;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Remembers the url played last and the stream endpoint it was resolved to, e.g. the mirror of a
+ * playlist that was played, so the stream can be connected to when the application is restarted,
+ * before the url is played again.
+ * <p/>
+ * Thread safe. {@link #load()} and {@link #save()} block on the file system: call them on a
+ * background thread.
+ */
+/*package*/ class LastStation {
+
+    private static final String URL = "url";
+    private static final String ENDPOINT = "endpoint";
+
+    private final File mFile;
+    // serializes the reads and writes of the file
+    private final Object mFileLock = new Object();
+
+    private String mUrl;
+    private String mEndpoint;
+
+    /**
+     * @param file the file storing the station
+     */
+    public LastStation(final File file) {
+        mFile = file;
+    }
+
+    /**
+     * @return the url played last or null if none is known
+     */
+    public synchronized String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * @return the stream the url played last was resolved to or null if none is known
+     */
+    public synchronized String getEndpoint() {
+        return mEndpoint;
+    }
+
+    /**
+     * @param url      the url played
+     * @param endpoint the stream the url was resolved to, the url itself if it's a stream
+     * @return true if another url or endpoint was played before, so the station must be saved
+     */
+    public synchronized boolean set(final String url, final String endpoint) {
+        if (url.equals(mUrl) && endpoint.equals(mEndpoint)) {
+            return false;
+        }
+        mUrl = url;
+        mEndpoint = endpoint;
+        return true;
+    }
+
+    /**
+     * Reads the station saved, unless another one was played since the station was created
+     */
+    public void load() {
+        Properties properties = new Properties();
+        synchronized (mFileLock) {
+            InputStream input = null;
+            try {
+                input = new FileInputStream(mFile);
+                properties.load(input);
+            } catch (IOException e) {
+                // nothing saved yet
+                return;
+            } finally {
+                IoUtils.closeQuietly(input);
+            }
+        }
+
+        String url = properties.getProperty(URL);
+        String endpoint = properties.getProperty(ENDPOINT);
+        if (url == null || endpoint == null) {
+            return;
+        }
+        synchronized (this) {
+            if (mUrl == null) {
+                mUrl = url;
+                mEndpoint = endpoint;
+            }
+        }
+    }
+
+    /**
+     * Writes the station
+     */
+    public void save() {
+        Properties properties = new Properties();
+        synchronized (this) {
+            if (mUrl == null) {
+                return;
+            }
+            properties.setProperty(URL, mUrl);
+            properties.setProperty(ENDPOINT, mEndpoint);
+        }
+
+        synchronized (mFileLock) {
+            OutputStream output = null;
+            try {
+                output = new FileOutputStream(mFile);
+                properties.store(output, null);
+            } catch (IOException e) {
+                // the station isn't connected to in advance after a restart
+            } finally {
+                IoUtils.closeQuietly(output);
+            }
+        }
+    }
+}
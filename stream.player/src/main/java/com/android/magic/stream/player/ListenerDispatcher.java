@@ -0,0 +1,324 @@
+package com.android.magic.stream.player;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Delivers the events of the player to any number of listeners, each one on its own
+ * {@link Executor}, by default the main thread.
+ * <p/>
+ * The listeners are kept in copy-on-write lists, so registering and unregistering never block
+ * the delivery, and the thread sending an event only hands it to the executors: a slow listener
+ * never blocks the player or the metadata requests. The player states are delivered in order.
+ * The metadata and the buffering updates are coalesced per listener: if several are sent before
+ * the executor runs the delivery, e.g. within one frame of the main thread, only the latest one
+ * is delivered.
+ */
+/*package*/ class ListenerDispatcher implements StreamPlayerListener, MetadataListener,
+        BufferingListener, PlayerStateListener, TrackMetadataListener, RecordingListener {
+
+    private static final int NO_BUFFERING_UPDATE = -1;
+
+    /**
+     * Executor running the deliveries on the main thread
+     */
+    public static final Executor MAIN_THREAD = new Executor() {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(final Runnable runnable) {
+            mHandler.post(runnable);
+        }
+    };
+
+    private static final class Registration<L> {
+        final L mListener;
+        final Executor mExecutor;
+        volatile boolean mRemoved;
+        // the latest update not delivered yet
+        final AtomicReference<PendingMetadata> mPendingMetadata =
+                new AtomicReference<PendingMetadata>();
+        final AtomicInteger mPendingBuffering = new AtomicInteger(NO_BUFFERING_UPDATE);
+
+        Registration(final L listener, final Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
+        }
+    }
+
+    private static final class PendingMetadata {
+        final TrackMetadata mMetadata;
+
+        PendingMetadata(final TrackMetadata metadata) {
+            mMetadata = metadata;
+        }
+    }
+
+    private final CopyOnWriteArrayList<Registration<StreamPlayerListener>> mPlayerListeners =
+            new CopyOnWriteArrayList<Registration<StreamPlayerListener>>();
+    private final CopyOnWriteArrayList<Registration<MetadataListener>> mMetadataListeners =
+            new CopyOnWriteArrayList<Registration<MetadataListener>>();
+    // the metadata of the stream playing, if already received
+    private volatile TrackMetadata mLastMetadata;
+
+    /**
+     * Registers a listener of the player states. A {@link StreamPlayerListener} that also
+     * implements {@link BufferingListener}, {@link PlayerStateListener} or
+     * {@link RecordingListener} receives the buffering updates, the state changes or the
+     * recording failures.
+     *
+     * @param listener the listener, registered once even if added several times
+     * @param executor the executor notifying the listener
+     */
+    public void addPlayerListener(final StreamPlayerListener listener, final Executor executor) {
+        synchronized (mPlayerListeners) {
+            if (find(mPlayerListeners, listener) == null) {
+                mPlayerListeners.add(new Registration<StreamPlayerListener>(listener, executor));
+            }
+        }
+    }
+
+    /**
+     * Unregisters the listener. The events not delivered yet are dropped.
+     */
+    public void removePlayerListener(final StreamPlayerListener listener) {
+        synchronized (mPlayerListeners) {
+            remove(mPlayerListeners, find(mPlayerListeners, listener));
+        }
+    }
+
+    /**
+     * Unregisters all the listeners of the player states
+     */
+    public void removePlayerListeners() {
+        synchronized (mPlayerListeners) {
+            for (Registration<StreamPlayerListener> registration : mPlayerListeners) {
+                remove(mPlayerListeners, registration);
+            }
+        }
+    }
+
+    /**
+     * Registers a listener of the track changes. A {@link MetadataListener} that also implements
+     * {@link TrackMetadataListener} receives the whole metadata instead of the stream title.
+     *
+     * @param listener the listener, registered once even if added several times
+     * @param executor the executor notifying the listener
+     */
+    public void addMetadataListener(final MetadataListener listener, final Executor executor) {
+        synchronized (mMetadataListeners) {
+            if (find(mMetadataListeners, listener) == null) {
+                mMetadataListeners.add(new Registration<MetadataListener>(listener, executor));
+            }
+        }
+    }
+
+    /**
+     * Unregisters the listener. The events not delivered yet are dropped.
+     */
+    public void removeMetadataListener(final MetadataListener listener) {
+        synchronized (mMetadataListeners) {
+            remove(mMetadataListeners, find(mMetadataListeners, listener));
+            if (mMetadataListeners.isEmpty()) {
+                // the metadata isn't requested anymore
+                mLastMetadata = null;
+            }
+        }
+    }
+
+    /**
+     * Unregisters all the listeners of the track changes
+     */
+    public void removeMetadataListeners() {
+        synchronized (mMetadataListeners) {
+            for (Registration<MetadataListener> registration : mMetadataListeners) {
+                remove(mMetadataListeners, registration);
+            }
+            mLastMetadata = null;
+        }
+    }
+
+    /**
+     * @return true if at least one listener of the track changes is registered
+     */
+    public boolean hasMetadataListeners() {
+        return !mMetadataListeners.isEmpty();
+    }
+
+    /**
+     * @return the last metadata received for the stream playing or null
+     */
+    public TrackMetadata getLastMetadata() {
+        return mLastMetadata;
+    }
+
+    @Override
+    public void onPlaying(final String url) {
+        mLastMetadata = null;
+        for (final Registration<StreamPlayerListener> registration : mPlayerListeners) {
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!registration.mRemoved) {
+                        registration.mListener.onPlaying(url);
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onError(final StreamPlayerError error) {
+        for (final Registration<StreamPlayerListener> registration : mPlayerListeners) {
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!registration.mRemoved) {
+                        registration.mListener.onError(error);
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onPlayerStop() {
+        mLastMetadata = null;
+        for (final Registration<StreamPlayerListener> registration : mPlayerListeners) {
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!registration.mRemoved) {
+                        registration.mListener.onPlayerStop();
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onPlayerStateChanged(final PlayerState state) {
+        for (final Registration<StreamPlayerListener> registration : mPlayerListeners) {
+            if (!(registration.mListener instanceof PlayerStateListener)) {
+                continue;
+            }
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!registration.mRemoved) {
+                        ((PlayerStateListener) registration.mListener).onPlayerStateChanged(state);
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onMetadataChanged(final String metadata) {
+        onTrackMetadata(TrackMetadata.ofStreamTitle(metadata));
+    }
+
+    @Override
+    public void onTrackMetadata(final TrackMetadata metadata) {
+        mLastMetadata = metadata;
+        PendingMetadata pending = new PendingMetadata(metadata);
+        for (final Registration<MetadataListener> registration : mMetadataListeners) {
+            if (registration.mPendingMetadata.getAndSet(pending) != null) {
+                // the delivery isn't run yet, it will deliver this one
+                continue;
+            }
+            try {
+                registration.mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        // cleared before the listener runs, so one that throws doesn't block the
+                        // next updates
+                        PendingMetadata latest = registration.mPendingMetadata.getAndSet(null);
+                        if (latest == null || registration.mRemoved) {
+                            return;
+                        }
+                        if (registration.mListener instanceof TrackMetadataListener) {
+                            ((TrackMetadataListener) registration.mListener)
+                                    .onTrackMetadata(latest.mMetadata);
+                        } else {
+                            registration.mListener.onMetadataChanged(
+                                    latest.mMetadata.getStreamTitle());
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                // refused, e.g. the executor is shut down: the next updates aren't coalesced
+                // into this one
+                registration.mPendingMetadata.set(null);
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void onBufferingUpdate(final int percent) {
+        for (final Registration<StreamPlayerListener> registration : mPlayerListeners) {
+            if (!(registration.mListener instanceof BufferingListener)
+                    || registration.mPendingBuffering.getAndSet(percent)
+                    != NO_BUFFERING_UPDATE) {
+                continue;
+            }
+            try {
+                registration.mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        // cleared before the listener runs, like the metadata
+                        int latest = registration.mPendingBuffering.getAndSet(NO_BUFFERING_UPDATE);
+                        if (latest != NO_BUFFERING_UPDATE && !registration.mRemoved) {
+                            ((BufferingListener) registration.mListener).onBufferingUpdate(latest);
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                registration.mPendingBuffering.set(NO_BUFFERING_UPDATE);
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void onRecordingFailed(final IOException error) {
+        for (final Registration<StreamPlayerListener> registration : mPlayerListeners) {
+            if (!(registration.mListener instanceof RecordingListener)) {
+                continue;
+            }
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!registration.mRemoved) {
+                        ((RecordingListener) registration.mListener).onRecordingFailed(error);
+                    }
+                }
+            });
+        }
+    }
+
+    private static <L> Registration<L> find(final CopyOnWriteArrayList<Registration<L>> list,
+                                            final L listener) {
+        for (Registration<L> registration : list) {
+            if (registration.mListener == listener) {
+                return registration;
+            }
+        }
+        return null;
+    }
+
+    private static <L> void remove(final CopyOnWriteArrayList<Registration<L>> list,
+                                   final Registration<L> registration) {
+        if (registration != null) {
+            registration.mRemoved = true;
+            list.remove(registration);
+        }
+    }
+}
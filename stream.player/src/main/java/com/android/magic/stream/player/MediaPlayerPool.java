@@ -0,0 +1,171 @@
+package com.android.magic.stream.player;
+
+import android.media.MediaPlayer;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded pool of {@link android.media.MediaPlayer}s prepared in advance for the stations that
+ * are likely to be played next, so playing them doesn't wait for a cold prepare.
+ * <p/>
+ * When the pool is full, the least recently used player is released. A player that stayed in the
+ * pool for longer than {@link #MAX_AGE_MS} is considered stale, since the server might have
+ * closed a connection that isn't read, and is released instead of being used.
+ */
+/*package*/ class MediaPlayerPool {
+
+    /**
+     * Maximum time a prepared player is kept in the pool
+     */
+    public static final long MAX_AGE_MS = 2 * 60 * 1000;
+
+    private static final class Entry {
+        final MediaPlayer mPlayer;
+        final long mCreationTime;
+        boolean mPrepared;
+
+        Entry(final MediaPlayer player) {
+            mPlayer = player;
+            mCreationTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private final int mMaxSize;
+    // ordered from the least to the most recently used
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(4, 0.75f, true);
+
+    /**
+     * @param maxSize the maximum number of prepared players
+     */
+    public MediaPlayerPool(final int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * @return the maximum number of prepared players
+     */
+    public int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return true if the pool contains a player, prepared or preparing, for the url
+     */
+    public synchronized boolean contains(final String url) {
+        return mEntries.containsKey(url);
+    }
+
+    /**
+     * Adds a player that is preparing, releasing the least recently used player if the pool is
+     * full
+     *
+     * @param url    the url the player is preparing
+     * @param player the player
+     */
+    public synchronized void put(final String url, final MediaPlayer player) {
+        Entry previous = mEntries.put(url, new Entry(player));
+        if (previous != null) {
+            previous.mPlayer.release();
+        }
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (mEntries.size() > mMaxSize && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            eldest.mPlayer.release();
+        }
+    }
+
+    /**
+     * Marks the player as prepared
+     *
+     * @return false if the player isn't in the pool
+     */
+    public synchronized boolean setPrepared(final MediaPlayer player) {
+        for (Entry entry : mEntries.values()) {
+            if (entry.mPlayer == player) {
+                entry.mPrepared = true;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the pool contains a prepared player for the url
+     */
+    public synchronized boolean isPrepared(final String url) {
+        Entry entry = mEntries.get(url);
+        return entry != null && entry.mPrepared;
+    }
+
+    /**
+     * Removes the player prepared for the url from the pool. The caller becomes the owner of the
+     * player.
+     *
+     * @param url the url
+     * @return the player, prepared or still preparing, or null if there's no fresh player for the
+     * url
+     */
+    public synchronized MediaPlayer take(final String url) {
+        Entry entry = mEntries.remove(url);
+        if (entry == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() - entry.mCreationTime > MAX_AGE_MS) {
+            entry.mPlayer.release();
+            return null;
+        }
+        return entry.mPlayer;
+    }
+
+    /**
+     * Removes and releases the player, e.g. when it failed to prepare
+     *
+     * @return true if the player was in the pool
+     */
+    public synchronized boolean remove(final MediaPlayer player) {
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.mPlayer == player) {
+                iterator.remove();
+                player.release();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Releases the players of the urls that aren't in the list
+     *
+     * @param urls the urls to keep
+     */
+    public synchronized void retainAll(final List<String> urls) {
+        List<String> removed = new ArrayList<String>();
+        for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+            if (!urls.contains(entry.getKey())) {
+                removed.add(entry.getKey());
+            }
+        }
+        for (String url : removed) {
+            mEntries.remove(url).mPlayer.release();
+        }
+    }
+
+    /**
+     * Releases all the players
+     */
+    public synchronized void clear() {
+        for (Entry entry : mEntries.values()) {
+            entry.mPlayer.release();
+        }
+        mEntries.clear();
+    }
+}
@@ -1,26 +1,35 @@
 package com.android.magic.stream.player;
 
+import android.app.ActivityManager;
 import android.app.Service;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.media.MediaPlayer;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import rx.Scheduler;
 import rx.Subscription;
 import rx.functions.Action0;
-import rx.schedulers.Schedulers;
 
 /**
- * An extension of android.app.Service class which provides management to a MediaPlayerThread.
+ * An extension of android.app.Service class which provides management to a {@link PlaybackEngine},
+ * the {@link MediaPlayerThread} unless {@link #createPlaybackEngine()} is overridden.
  * <p/>
  * Add this service in the AndroidManifest file.
  */
@@ -30,23 +39,139 @@ public class MediaPlayerService extends Service implements IMediaPlayerThreadCli
 
     public static final String MEDIA_PLAYER_SERVICE = "stream.player.MediaPlayerService";
 
-    private static final int METADATA_REQUEST_TIME_INTERVAL_SECONDS = 15; // seconds
+    private static final String TIME_SHIFT_FILE = "stream.player.timeshift";
+    private static final String ENDPOINTS_FILE = "stream.player.endpoints";
+    private static final String MIRRORS_FILE = "stream.player.mirrors";
+    private static final String TRACK_HISTORY_FILE = "stream.player.tracks";
+    private static final String LAST_STATION_FILE = "stream.player.last";
 
-    private MediaPlayerThread mMediaPlayerThread;
+    private static final long NOT_MEASURED = -1;
+    // the reconnection attempts start again after the stream played this long
+    private static final long STABLE_PLAYBACK_MS = 30 * 1000;
+    // how long the connection opened in advance to the station played last is kept unused
+    private static final long PRECONNECT_MAX_AGE_MS = 60 * 1000;
+    private static final long STALL_CHECK_INTERVAL_MS = 1000;
+
+    // at most one prepared player for every 48 MB of the application's memory class
+    private static final int MAX_PREPARED_PLAYERS = 3;
+    private static final int MEMORY_CLASS_MB_PER_PREPARED_PLAYER = 48;
+
+    private PlaybackEngine mPlaybackEngine;
     private final Binder mBinder = new MediaPlayerBinder();
     private String mURL;
+    // the url connected, e.g. the stream listed in the playlist played
+    private String mStreamUrl;
     private String mCurrentTrack;
     private Subscription mTrackMetadataSubscription;
 
+    private boolean mInStreamMetadataEnabled;
+    private boolean mLocalProxyEnabled;
+    private int mTimeShiftSeconds;
+    private volatile StreamProxy mStreamProxy;
+    private volatile TrackMetadata mInStreamTrack;
+
     private StreamPlayerListener mListener;
-    private MetadataListener mMetadataListener;
+    private volatile MetadataListener mMetadataListener;
+
+    private final MetricsRecorder mMetrics = new MetricsRecorder();
+    // the station played, null when a single url is played
+    private Station mStation;
+    // shared by the stations, so a station starts with the bitrate the network allowed last
+    private final ThroughputEstimator mThroughputEstimator = new ThroughputEstimator();
+    private long mPlayRequestTime = NOT_MEASURED;
+    private long mPlayingSince = NOT_MEASURED;
+
+    private ReconnectPolicy mReconnectPolicy;
+    private int mReconnectAttempts;
+    private boolean mReconnectPending;
+    private final Handler mHandler = new Handler();
+    private final Runnable mReconnect = new Runnable() {
+        @Override
+        public void run() {
+            mReconnectPending = false;
+            if (mStation != null) {
+                connect(mStation);
+            } else {
+                resolveAndConnect(mURL, false);
+            }
+        }
+    };
+
+    private StallWatchdog mStallWatchdog;
+    private StreamRecorder mRecorder;
+    // notified on the thread of the proxy
+    private final RecordingListener mRecordingListener = new RecordingListener() {
+        @Override
+        public void onRecordingFailed(final IOException error) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Log.d(LOG_TAG, "recording failed", error);
+                    StreamPlayerListener listener = mListener;
+                    if (listener instanceof RecordingListener) {
+                        ((RecordingListener) listener).onRecordingFailed(error);
+                    }
+                }
+            });
+        }
+    };
+    private final Runnable mCheckStall = new Runnable() {
+        @Override
+        public void run() {
+            checkStall();
+        }
+    };
+
+    private PlaylistResolver mPlaylistResolver;
+    private MirrorRanking mMirrorRanking;
+    private TrackHistory mTrackHistory;
+    private LastStation mLastStation;
+    private int mPreconnectBytes;
+    private Preconnection mPreconnection;
+    private final Runnable mClosePreconnection = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(LOG_TAG, "pre-connection unused");
+            closePreconnection();
+        }
+    };
+    private boolean mResolving;
+    // incremented to drop the playlists resolved for the previous plays
+    private int mConnectGeneration;
+    // the resolution of the playlist and the race of its mirrors, in the background
+    private Future<?> mConnectTask;
+    private volatile MirrorRacer mMirrorRacer;
+    private volatile long mLastMetadataTime = NOT_MEASURED;
 
     private MusicIntentReceiver mReceiver = new MusicIntentReceiver();
 
     @Override
     public void onCreate() {
-        mMediaPlayerThread = new MediaPlayerThread(this, this);
-        mMediaPlayerThread.start();
+        mPlaybackEngine = createPlaybackEngine();
+        mPlaybackEngine.start();
+
+        final EndpointCache endpoints = new EndpointCache(new File(getCacheDir(), ENDPOINTS_FILE),
+                EndpointCache.DEFAULT_TTL_MS);
+        mPlaylistResolver = new PlaylistResolver(endpoints, HttpTransport.shared());
+        mMirrorRanking = new MirrorRanking(new File(getCacheDir(), MIRRORS_FILE));
+        // the history isn't a cache, the user would miss it
+        mTrackHistory = new TrackHistory(new File(getFilesDir(), TRACK_HISTORY_FILE));
+        mLastStation = new LastStation(new File(getFilesDir(), LAST_STATION_FILE));
+        runInBackground(new Action0() {
+            @Override
+            public void call() {
+                endpoints.load();
+                mMirrorRanking.load();
+                mTrackHistory.load();
+                mLastStation.load();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        preconnect();
+                    }
+                });
+            }
+        });
 
         IntentFilter intentFilter = new IntentFilter();
         registerReceiver(mReceiver, intentFilter);
@@ -77,12 +202,19 @@ public class MediaPlayerService extends Service implements IMediaPlayerThreadCli
     public
     @Nullable
     MediaPlayer getMediaPlayer() {
-        if (mMediaPlayerThread != null) {
-            return mMediaPlayerThread.getMediaPlayer();
+        if (mPlaybackEngine instanceof MediaPlayerThread) {
+            return ((MediaPlayerThread) mPlaybackEngine).getMediaPlayer();
         }
         return null;
     }
 
+    /**
+     * @return the engine playing the streams, not started yet
+     */
+    /*package*/ PlaybackEngine createPlaybackEngine() {
+        return new MediaPlayerThread(this, this, getMaxPreparedPlayers());
+    }
+
 
     @Override
     public IBinder onBind(Intent arg0) {
@@ -122,10 +254,20 @@ public class MediaPlayerService extends Service implements IMediaPlayerThreadCli
     public void addTrackListener(final MetadataListener listener) {
         Log.d(LOG_TAG, "addTrackListener");
         mMetadataListener = listener;
+        if (isPlaying() && mStreamProxy != null && mInStreamMetadataEnabled) {
+            // the track is known already, the listener is notified of it
+            mCurrentTrack = null;
+            onTrackRetrieved(listener, mInStreamTrack);
+        } else if (isPlaying()) {
+            // polls again now, so the listener is notified of the track at once
+            stopRetrievingMetadata();
+            getMetaData();
+        }
     }
 
     /**
-     * Removes the listener for the track change
+     * Removes the listener for the track change and stops requesting the metadata. The metadata
+     * found in the audio is still recorded in the track history.
      */
     public void removeTrackListener() {
         Log.d(LOG_TAG, "removeTrackListener");
@@ -137,22 +279,625 @@ public class MediaPlayerService extends Service implements IMediaPlayerThreadCli
     }
 
 
+    /**
+     * Enables or disables reading the metadata from the audio connection. When enabled, the
+     * player reads the stream through a local {@link StreamProxy} that strips the metadata from
+     * the audio, instead of polling the metadata over a second connection. Applies from the next
+     * call of {@link #initializePlayer(String)}.
+     *
+     * @param enabled true to read the metadata from the audio connection
+     */
+    public void setInStreamMetadataEnabled(final boolean enabled) {
+        mInStreamMetadataEnabled = enabled;
+    }
+
+    /**
+     * Enables or disables playing the stream through a local {@link StreamProxy} that buffers the
+     * audio in a fixed size buffer. Applies from the next call of
+     * {@link #initializePlayer(String)}.
+     *
+     * @param enabled true to play the stream through the proxy
+     */
+    public void setLocalProxyEnabled(final boolean enabled) {
+        mLocalProxyEnabled = enabled;
+    }
+
+    /**
+     * Enables or disables the time-shift: while paused, the stream keeps being recorded in a file
+     * mapped in memory and the playback resumes from where it was paused. Applies from the next
+     * call of {@link #initializePlayer(String)}.
+     *
+     * @param maxSeconds the maximum time-shift window, in seconds, or 0 to disable the time-shift
+     */
+    public void setTimeShiftWindow(final int maxSeconds) {
+        mTimeShiftSeconds = maxSeconds;
+    }
+
+    /**
+     * Drops the time-shifted audio, so the playback continues close to the live edge
+     */
+    public void jumpToLive() {
+        StreamProxy proxy = mStreamProxy;
+        if (proxy != null) {
+            proxy.jumpToLive();
+        }
+    }
+
+    /**
+     * @return the seconds of audio buffered by the local proxy or 0 if the stream isn't played
+     * through the proxy
+     */
+    public float getBufferedSeconds() {
+        StreamProxy proxy = mStreamProxy;
+        return proxy != null ? proxy.getBufferedSeconds() : 0;
+    }
+
+    /**
+     * Plays a url. When the url is a playlist, the first stream listed is played. The streams
+     * listed are remembered for {@link EndpointCache#DEFAULT_TTL_MS}, even after a restart, so
+     * the playlist isn't downloaded again when the url is played again.
+     *
+     * @param url the url of a stream or of a playlist
+     */
     public void initializePlayer(final String url) {
+        mStation = null;
         mURL = url;
-        mMediaPlayerThread.initializePlayer(mURL);
+        onPlayRequested(url);
+        resolveAndConnect(url, false);
+    }
+
+    /**
+     * Plays a station. When the station has several variants, the stream is played through the
+     * local {@link StreamProxy}, which switches between the variants as the throughput changes.
+     *
+     * @param station the station to play
+     */
+    public void initializePlayer(final Station station) {
+        mStation = station;
+        mURL = station.getVariants().get(0).getUrl();
+        onPlayRequested(mURL);
+        connect(station);
+    }
+
+    private void onPlayRequested(final String url) {
+        cancelPendingConnect();
+        mStreamUrl = null;
+        mReconnectAttempts = 0;
+        mMetrics.recordPlay(url);
+        mPlayRequestTime = SystemClock.elapsedRealtime();
+    }
+
+    private void connect(final Station station) {
+        List<StationVariant> variants = station.getVariants();
+        if (variants.size() == 1) {
+            connect(variants.get(0).getUrl(), null);
+            return;
+        }
+        // the estimate of the previous streams gives the bitrate to start with
+        BitrateSelector selector = new BitrateSelector(variants, mThroughputEstimator);
+        connect(selector.getCurrent().getUrl(), selector);
+    }
+
+    /**
+     * Connects to the stream of the url, resolving it first if it's a playlist. When the playlist
+     * lists several mirrors of the stream, the mirror that won the last race is connected to, or
+     * the mirrors are raced by a {@link MirrorRacer}. The playlists already resolved with a
+     * winning mirror are connected to immediately, the others are resolved and raced on the
+     * executor of the connections, until the next play or stop cancels them.
+     *
+     * @param url   the url played
+     * @param sniff true to download the url even if it doesn't look like a playlist, e.g. because
+     *              the player didn't support it
+     */
+    private void resolveAndConnect(final String url, final boolean sniff) {
+        if (!sniff && mPreconnection != null && mPreconnection.mUrl.equals(url)) {
+            // the stream played last, maybe resolved before the endpoints expired
+            connect(mPreconnection.mEndpoint, null);
+            return;
+        }
+        String dataSource = getCachedDataSource(url);
+        if (dataSource != null && !sniff) {
+            connect(dataSource, null);
+            return;
+        }
+
+        final int generation = mConnectGeneration;
+        mResolving = true;
+        mConnectTask = StreamPlayerSchedulers.connect().submit(new Runnable() {
+            @Override
+            public void run() {
+                String endpoint = null;
+                StreamPlayerError error = StreamPlayerError.PLAYER_IO_ERROR;
+                try {
+                    List<String> endpoints = mPlaylistResolver.resolve(url);
+                    if (Thread.currentThread().isInterrupted()) {
+                        // cancelled while resolving, the mirrors aren't raced
+                        return;
+                    }
+                    if (sniff && endpoints.get(0).equals(url)) {
+                        // not a playlist, the stream isn't supported
+                        error = StreamPlayerError.PLAYER_UNSUPPORTED;
+                    } else {
+                        endpoint = selectMirror(url, endpoints);
+                    }
+                } catch (IOException e) {
+                    Log.d(LOG_TAG, "unable to resolve " + url, e);
+                }
+                final String stream = endpoint;
+                final StreamPlayerError streamError = error;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mConnectGeneration) {
+                            // stopped or another url played meanwhile
+                            return;
+                        }
+                        mResolving = false;
+                        if (stream != null) {
+                            connect(stream, null);
+                        } else {
+                            onStreamError(streamError);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Selects the mirror to play, racing the mirrors if none won recently. Blocks during the race,
+     * which {@link #cancelPendingConnect()} cancels.
+     *
+     * @param url     the url played
+     * @param mirrors the streams resolved from the url
+     * @return the mirror to play
+     * @throws IOException if no mirror sent audio or the race was cancelled
+     */
+    private String selectMirror(final String url, final List<String> mirrors)
+            throws IOException {
+        if (mirrors.size() == 1) {
+            return mirrors.get(0);
+        }
+        String preferred = mMirrorRanking.getPreferred(url, mirrors);
+        if (preferred != null) {
+            return preferred;
+        }
+        MirrorRacer racer = new MirrorRacer(HttpTransport.shared());
+        mMirrorRacer = racer;
+        String winner;
+        try {
+            winner = racer.race(mMirrorRanking.rank(url, mirrors));
+        } finally {
+            if (mMirrorRacer == racer) {
+                mMirrorRacer = null;
+            }
+        }
+        Log.d(LOG_TAG, "mirror " + winner + " won for " + url);
+        mMirrorRanking.onWinner(url, winner);
+        mMirrorRanking.save();
+        return winner;
+    }
+
+    private void connect(final String url, final BitrateSelector selector) {
+        mStreamUrl = url;
+        closeStreamProxy();
+        mLastMetadataTime = NOT_MEASURED;
+
+        Preconnection preconnection = mPreconnection;
+        mPreconnection = null;
+        mHandler.removeCallbacks(mClosePreconnection);
+        if (preconnection != null && selector == null && preconnection.isUsableFor(url)) {
+            // the audio buffered in advance is played at once, with its metadata
+            Log.d(LOG_TAG, "playing the pre-connection to " + url);
+            mStreamProxy = preconnection.mProxy;
+            mStreamProxy.setRecorder(mRecorder);
+            mPlaybackEngine.initializePlayer(preconnection.mDataSource);
+            startStallWatchdog();
+            return;
+        }
+        if (preconnection != null) {
+            preconnection.mProxy.stop();
+        }
+        mInStreamTrack = null;
+
+        String dataSource = url;
+        if (isProxyNeeded() || selector != null) {
+            mStreamProxy = createStreamProxy(url);
+            mStreamProxy.setBitrateSelector(selector);
+            try {
+                dataSource = mStreamProxy.start();
+            } catch (IOException e) {
+                Log.d(LOG_TAG, "unable to start the stream proxy, playing the stream directly");
+                mStreamProxy = null;
+            }
+        }
+        mPlaybackEngine.initializePlayer(dataSource);
+        startStallWatchdog();
+    }
+
+    private StreamProxy createStreamProxy(final String url) {
+        StreamProxy proxy = new StreamProxy(url, StreamProxy.DEFAULT_BUFFER_SIZE,
+                mInStreamMetadataEnabled ? mInStreamMetadataListener : null);
+        if (mTimeShiftSeconds > 0) {
+            proxy.setTimeShift(new File(getCacheDir(), TIME_SHIFT_FILE), mTimeShiftSeconds);
+        }
+        proxy.setReconnectPolicy(mReconnectPolicy);
+        proxy.setRecorder(mRecorder);
+        return proxy;
+    }
+
+    /**
+     * Records the stream playing, and the next ones, into files named after the tracks, until
+     * {@link #stopRecording()}. The audio received through the local {@link StreamProxy} is
+     * written as it's received, without the metadata. A stream played directly is connected to
+     * again through the proxy. The oldest recordings of the directory are deleted when the
+     * recordings use more than the budget. A recording that can't be written is stopped and
+     * reported to the listener if it's a {@link RecordingListener}.
+     *
+     * @param directory the directory of the recordings, used for the recordings only
+     * @param maxBytes  the maximum number of bytes used by the recordings
+     */
+    public void startRecording(final File directory, final long maxBytes) {
+        stopRecording();
+        mRecorder = new StreamRecorder(directory, maxBytes, mRecordingListener);
+        mRecorder.setTitle(mInStreamTrack != null ? mInStreamTrack.getStreamTitle()
+                : mCurrentTrack);
+        if (mStreamProxy != null) {
+            mStreamProxy.setRecorder(mRecorder);
+        } else if (mStreamUrl != null && !isStopped()) {
+            // played directly, the audio isn't received by the service
+            connect(mStreamUrl, null);
+        }
+    }
+
+    /**
+     * Stops recording, the file of the track recording is closed
+     */
+    public void stopRecording() {
+        if (mRecorder == null) {
+            return;
+        }
+        if (mStreamProxy != null) {
+            mStreamProxy.setRecorder(null);
+        }
+        mRecorder.close();
+        mRecorder = null;
+    }
+
+    /**
+     * @return true if the stream is recorded, false if it isn't or the recording failed
+     */
+    public boolean isRecording() {
+        return mRecorder != null && !mRecorder.isClosed();
+    }
+
+    /**
+     * Connects to the station played last when the service starts, before it's played, and
+     * buffers its audio through a {@link StreamProxy} that stops reading the stream after the
+     * budget. When the station is played first, the buffered audio is played at once. The
+     * connection is closed when another station is played, when the playback is stopped or after
+     * {@link #PRECONNECT_MAX_AGE_MS}.
+     *
+     * @param maxBytes the maximum number of bytes read before the station is played or 0 to
+     *                 connect only when a station is played
+     */
+    public void setPreconnectBudget(final int maxBytes) {
+        mPreconnectBytes = maxBytes;
+        if (maxBytes > 0) {
+            preconnect();
+        } else {
+            closePreconnection();
+        }
+    }
+
+    /**
+     * Connects to the station played last, if the pre-connect is enabled and nothing was played
+     * since the service started
+     */
+    private void preconnect() {
+        String url = mLastStation.getUrl();
+        String endpoint = mLastStation.getEndpoint();
+        if (mPreconnectBytes <= 0 || mURL != null || mPreconnection != null || url == null) {
+            return;
+        }
+        StreamProxy proxy = createStreamProxy(endpoint);
+        proxy.setPrebufferBudget(mPreconnectBytes);
+        try {
+            mPreconnection = new Preconnection(url, endpoint, proxy, proxy.start());
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "unable to start the stream proxy, not pre-connecting");
+            return;
+        }
+        Log.d(LOG_TAG, "pre-connecting to " + endpoint + " for " + url);
+        mHandler.postDelayed(mClosePreconnection, PRECONNECT_MAX_AGE_MS);
+    }
+
+    private void closePreconnection() {
+        mHandler.removeCallbacks(mClosePreconnection);
+        if (mPreconnection != null) {
+            mPreconnection.mProxy.stop();
+            mPreconnection = null;
+        }
+    }
+
+    /**
+     * The connection opened in advance to the station played last, and the settings of the
+     * service when it was opened
+     */
+    private final class Preconnection {
+        final String mUrl;
+        final String mEndpoint;
+        final StreamProxy mProxy;
+        final String mDataSource;
+        final boolean mInStreamMetadataEnabled;
+        final int mTimeShiftSeconds;
+        final ReconnectPolicy mReconnectPolicy;
+
+        Preconnection(final String url, final String endpoint, final StreamProxy proxy,
+                      final String dataSource) {
+            mUrl = url;
+            mEndpoint = endpoint;
+            mProxy = proxy;
+            mDataSource = dataSource;
+            mInStreamMetadataEnabled = MediaPlayerService.this.mInStreamMetadataEnabled;
+            mTimeShiftSeconds = MediaPlayerService.this.mTimeShiftSeconds;
+            mReconnectPolicy = MediaPlayerService.this.mReconnectPolicy;
+        }
+
+        /**
+         * @return true if the stream is still received and the proxy was created with the
+         * current settings
+         */
+        boolean isUsableFor(final String endpoint) {
+            return mEndpoint.equals(endpoint) && !mProxy.hasFailed()
+                    && mInStreamMetadataEnabled == MediaPlayerService.this.mInStreamMetadataEnabled
+                    && mTimeShiftSeconds == MediaPlayerService.this.mTimeShiftSeconds
+                    && mReconnectPolicy == MediaPlayerService.this.mReconnectPolicy;
+        }
+    }
+
+    /**
+     * Reconnects automatically when the stream fails with a temporary error, e.g. when the
+     * network is lost for a moment. When the stream is played through the local proxy, the proxy
+     * also reconnects to the stream while the player plays the buffered audio, so short outages
+     * aren't heard. Applies to the proxy from the next call of
+     * {@link #initializePlayer(String)}.
+     *
+     * @param policy the policy of the reconnections or null to report the errors without
+     *               reconnecting
+     */
+    public void setReconnectPolicy(@Nullable final ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+        if (policy == null) {
+            cancelReconnect();
+        }
+    }
+
+    /**
+     * Fails the stream with {@link StreamPlayerError#STREAM_STALLED} when it connected but doesn't
+     * play, before the player times out. The error is retried like the network errors, by the
+     * {@link ReconnectPolicy}, and the streams listed in a playlist are resolved again. Applies
+     * from the next stream played.
+     *
+     * @param policy the deadlines and the minimum rate of the stream or null to wait for the
+     *               player to report the errors
+     */
+    public void setStallPolicy(@Nullable final StallPolicy policy) {
+        if (mStallWatchdog != null && mStallWatchdog.getPolicy() == policy) {
+            return;
+        }
+        stopStallWatchdog();
+        mStallWatchdog = policy != null ? new StallWatchdog(policy) : null;
+    }
+
+    private void startStallWatchdog() {
+        if (mStallWatchdog != null) {
+            mStallWatchdog.onPrepareStart(SystemClock.elapsedRealtime());
+            scheduleStallCheck();
+        }
+    }
+
+    private void scheduleStallCheck() {
+        mHandler.removeCallbacks(mCheckStall);
+        mHandler.postDelayed(mCheckStall, STALL_CHECK_INTERVAL_MS);
+    }
+
+    private void stopStallWatchdog() {
+        mHandler.removeCallbacks(mCheckStall);
+        if (mStallWatchdog != null) {
+            mStallWatchdog.stop();
+        }
+    }
+
+    /**
+     * Checks the stream while the player prepares or plays. The rate of the stream is only known
+     * when it's played through the local proxy and announces its bitrate.
+     */
+    private void checkStall() {
+        if (mStallWatchdog == null || !mStallWatchdog.isActive()) {
+            return;
+        }
+        StreamProxy proxy = mStreamProxy;
+        long receivedBytes = StallWatchdog.UNKNOWN;
+        long bitrateKbps = StallWatchdog.UNKNOWN;
+        if (proxy != null) {
+            receivedBytes = proxy.getReceivedBytes();
+            int announced = proxy.getAnnouncedBitrateKbps();
+            bitrateKbps = announced > 0 ? announced : StallWatchdog.UNKNOWN;
+        }
+        StallWatchdog.Stall stall = mStallWatchdog.check(SystemClock.elapsedRealtime(),
+                receivedBytes, bitrateKbps);
+        if (stall == null) {
+            scheduleStallCheck();
+            return;
+        }
+        if (stall == StallWatchdog.Stall.LOW_BYTE_RATE && proxy != null
+                && proxy.getBufferedSeconds() > 0) {
+            Log.d(LOG_TAG, "stream too slow, reconnecting: " + mStreamUrl);
+            // the player keeps playing the buffered audio
+            proxy.reconnect();
+            mStallWatchdog.onReconnect();
+            scheduleStallCheck();
+            return;
+        }
+        Log.d(LOG_TAG, "stream stalled: " + stall + " " + mStreamUrl);
+        mStallWatchdog.stop();
+        // the player would keep waiting for the stream, silently
+        mPlaybackEngine.resetMediaPlayer();
+        closeStreamProxy();
+        onStreamError(StreamPlayerError.STREAM_STALLED);
+    }
+
+    /**
+     * Reconnects later if the error is temporary and the reconnections of the policy aren't all
+     * used. The attempts start again once the stream played for {@link #STABLE_PLAYBACK_MS}.
+     *
+     * @return true if the stream will be reconnected
+     */
+    private boolean scheduleReconnect(final StreamPlayerError error) {
+        ReconnectPolicy policy = mReconnectPolicy;
+        if (policy == null || !error.isRetryable()) {
+            return false;
+        }
+        if (mPlayingSince != NOT_MEASURED
+                && SystemClock.elapsedRealtime() - mPlayingSince >= STABLE_PLAYBACK_MS) {
+            mReconnectAttempts = 0;
+        }
+        mPlayingSince = NOT_MEASURED;
+        if (mReconnectAttempts >= policy.getMaxAttempts()) {
+            return false;
+        }
+        long delay = policy.getDelayMillis(mReconnectAttempts++);
+        Log.d(LOG_TAG, "reconnecting in " + delay + " ms after " + error);
+        mReconnectPending = true;
+        mHandler.postDelayed(mReconnect, delay);
+        return true;
+    }
+
+    private void cancelReconnect() {
+        mReconnectPending = false;
+        mHandler.removeCallbacks(mReconnect);
+    }
+
+    /**
+     * Cancels the reconnection and the resolution of the playlist waiting to connect
+     */
+    private void cancelPendingConnect() {
+        cancelReconnect();
+        mResolving = false;
+        mConnectGeneration++;
+        if (mConnectTask != null) {
+            mConnectTask.cancel(true);
+            mConnectTask = null;
+        }
+        MirrorRacer racer = mMirrorRacer;
+        if (racer != null) {
+            // closes the connections to the mirrors at once
+            racer.cancel();
+        }
+    }
+
+    /**
+     * Forgets the streams resolved from the url played, because the stream played failed
+     */
+    private void invalidateEndpoints() {
+        final EndpointCache endpoints = mPlaylistResolver.getCache();
+        endpoints.invalidate(mURL);
+        mMirrorRanking.onFailure(mURL, mStreamUrl);
+        runInBackground(new Action0() {
+            @Override
+            public void call() {
+                endpoints.save();
+                mMirrorRanking.save();
+            }
+        });
+    }
+
+    private static void runInBackground(final Action0 action) {
+        final Scheduler.Worker worker = StreamPlayerSchedulers.background().createWorker();
+        worker.schedule(new Action0() {
+            @Override
+            public void call() {
+                try {
+                    action.call();
+                } finally {
+                    worker.unsubscribe();
+                }
+            }
+        });
+    }
+
+    /**
+     * Prepares a player for the url in advance, so that playing it starts without waiting for the
+     * player to prepare. Players are prepared in advance only when the stream is played directly,
+     * not through the local proxy, and only for the playlists already resolved.
+     *
+     * @param url the url likely to be played next
+     */
+    public void preparePlayer(final String url) {
+        String dataSource = getCachedDataSource(url);
+        if (!isProxyNeeded() && dataSource != null) {
+            mPlaybackEngine.preparePlayer(dataSource);
+        }
+    }
+
+    /**
+     * Prepares players for the urls in advance, in order, as many as the memory allows, and
+     * releases the players prepared for other urls
+     *
+     * @param urls the urls likely to be played next
+     */
+    public void preparePlayers(final List<String> urls) {
+        if (isProxyNeeded()) {
+            return;
+        }
+        List<String> dataSources = new ArrayList<String>(urls.size());
+        for (String url : urls) {
+            String dataSource = getCachedDataSource(url);
+            if (dataSource != null) {
+                dataSources.add(dataSource);
+            }
+        }
+        mPlaybackEngine.preparePlayers(dataSources);
+    }
+
+    /**
+     * @return the stream the player connects to when the url is played or null if the url is a
+     * playlist not resolved yet or whose mirrors must be raced
+     */
+    private String getCachedDataSource(final String url) {
+        List<String> endpoints = mPlaylistResolver.getCache().get(url);
+        if (endpoints == null) {
+            return PlaylistParser.isPlaylistUrl(url) ? null : url;
+        }
+        return endpoints.size() == 1 ? endpoints.get(0)
+                : mMirrorRanking.getPreferred(url, endpoints);
     }
 
     public void startMediaPlayer() {
-        mMediaPlayerThread.startMediaPlayer();
+        mPlaybackEngine.startMediaPlayer();
+    }
+
+    /**
+     * @return the state of the player
+     */
+    public PlayerState getPlayerState() {
+        return mPlaybackEngine.getPlayerState();
     }
 
     public boolean isPlaying() {
-        MediaPlayer player = mMediaPlayerThread.getMediaPlayer();
-        return player != null && player.isPlaying();
+        return mPlaybackEngine.getPlayerState() == PlayerState.PLAYING;
+    }
+
+    public boolean isPaused() {
+        return mPlaybackEngine.getPlayerState() == PlayerState.PAUSED;
     }
 
     public boolean isStopped() {
-        return mMediaPlayerThread.getMediaPlayer() == null;
+        PlayerState state = mPlaybackEngine.getPlayerState();
+        // waiting to connect isn't stopped
+        return (state == PlayerState.IDLE || state == PlayerState.ERROR) && !mReconnectPending
+                && !mResolving;
     }
 
     /**
@@ -160,7 +905,10 @@ public class MediaPlayerService extends Service implements IMediaPlayerThreadCli
      */
     public void pauseMediaPlayer() {
         Log.d("MediaPlayerService", "pauseMediaPlayer() called");
-        mMediaPlayerThread.pauseMediaPlayer();
+        cancelPendingConnect();
+        stopStallWatchdog();
+        // with time-shift the proxy keeps recording the stream
+        mPlaybackEngine.pauseMediaPlayer(mStreamProxy != null && mTimeShiftSeconds > 0);
         stopForeground(true);
         if (mTrackMetadataSubscription != null) {
             mTrackMetadataSubscription.unsubscribe();
@@ -172,8 +920,12 @@ public class MediaPlayerService extends Service implements IMediaPlayerThreadCli
      * Stops playback
      */
     public void stopMediaPlayer() {
+        cancelPendingConnect();
+        stopStallWatchdog();
+        closePreconnection();
         stopForeground(true);
-        mMediaPlayerThread.stopMediaPlayer();
+        mPlaybackEngine.stopMediaPlayer();
+        closeStreamProxy();
         if (mTrackMetadataSubscription != null) {
             mTrackMetadataSubscription.unsubscribe();
         }
@@ -181,36 +933,92 @@ public class MediaPlayerService extends Service implements IMediaPlayerThreadCli
     }
 
     public void resetMediaPlayer() {
+        cancelPendingConnect();
+        stopStallWatchdog();
         stopForeground(true);
-        mMediaPlayerThread.resetMediaPlayer();
+        mPlaybackEngine.resetMediaPlayer();
     }
 
 
     @Override
     public void onError(int what, int extra) {
+        stopStallWatchdog();
+        onStreamError(toStreamPlayerError(what, extra));
+    }
+
+    private void onStreamError(final StreamPlayerError error) {
+        mMetrics.recordError(mURL, error);
+        if (mStation == null && mStreamUrl != null && !mStreamUrl.equals(mURL)) {
+            // the stream listed in the playlist may have moved, the playlist is downloaded again
+            invalidateEndpoints();
+        } else if (mStation == null && error == StreamPlayerError.PLAYER_UNSUPPORTED
+                && mPlaylistResolver.getCache().get(mURL) == null) {
+            // maybe a playlist without the extension of a playlist
+            resolveAndConnect(mURL, true);
+            return;
+        }
+        if (scheduleReconnect(error)) {
+            return;
+        }
         if (mListener != null) {
-            if (what == MediaPlayer.MEDIA_ERROR_UNKNOWN) {
-                mListener.onError(StreamPlayerError.PLAYER_UNKNOWN_ERROR);
-                return;
-            }
+            mListener.onError(error);
+        }
+    }
 
-            switch (extra) {
-                case MediaPlayer.MEDIA_ERROR_IO:
-                    mListener.onError(StreamPlayerError.PLAYER_IO_ERROR);
-                    break;
-
-                case MediaPlayer.MEDIA_ERROR_TIMED_OUT:
-                    mListener.onError(StreamPlayerError.PLAYER_TIMED_OUT);
-                    break;
-
-                case MediaPlayer.MEDIA_ERROR_UNSUPPORTED:
-                case MediaPlayer.MEDIA_ERROR_MALFORMED:
-                    mListener.onError(StreamPlayerError.PLAYER_UNSUPPORTED);
-                    break;
-                default:
-                    mListener.onError(StreamPlayerError.PLAYER_UNKNOWN_ERROR);
-                    break;
-            }
+    private static StreamPlayerError toStreamPlayerError(int what, int extra) {
+        // the cause is in extra, what is usually MEDIA_ERROR_UNKNOWN
+        switch (extra) {
+            case MediaPlayer.MEDIA_ERROR_IO:
+                return StreamPlayerError.PLAYER_IO_ERROR;
+
+            case MediaPlayer.MEDIA_ERROR_TIMED_OUT:
+                return StreamPlayerError.PLAYER_TIMED_OUT;
+
+            case MediaPlayer.MEDIA_ERROR_UNSUPPORTED:
+            case MediaPlayer.MEDIA_ERROR_MALFORMED:
+                return StreamPlayerError.PLAYER_UNSUPPORTED;
+            default:
+                return StreamPlayerError.PLAYER_UNKNOWN_ERROR;
+        }
+    }
+
+    @Override
+    public void onPrepared(long prepareMillis) {
+        mMetrics.recordPrepareTime(mURL, prepareMillis);
+        if (mStallWatchdog != null) {
+            mStallWatchdog.onPrepared();
+        }
+    }
+
+    @Override
+    public void onRebufferStart() {
+        mMetrics.recordRebufferStart(mURL);
+        if (mStallWatchdog != null) {
+            mStallWatchdog.onRebufferStart(SystemClock.elapsedRealtime());
+        }
+    }
+
+    @Override
+    public void onRebufferEnd(long rebufferMillis) {
+        mMetrics.recordRebufferEnd(mURL, rebufferMillis);
+        if (mStallWatchdog != null) {
+            mStallWatchdog.onRebufferEnd();
+        }
+    }
+
+    @Override
+    public void onStateChanged(PlayerState state) {
+        StreamPlayerListener listener = mListener;
+        if (listener instanceof PlayerStateListener) {
+            ((PlayerStateListener) listener).onPlayerStateChanged(state);
+        }
+    }
+
+    @Override
+    public void onBufferingUpdate(int percent) {
+        StreamPlayerListener listener = mListener;
+        if (listener instanceof BufferingListener) {
+            ((BufferingListener) listener).onBufferingUpdate(percent);
         }
     }
 
@@ -221,17 +1029,33 @@ public class MediaPlayerService extends Service implements IMediaPlayerThreadCli
 
     @Override
     public void onPlaying() {
+        mPlayingSince = SystemClock.elapsedRealtime();
+        rememberStation();
+        if (mStallWatchdog != null) {
+            mStallWatchdog.onPlaying();
+            scheduleStallCheck();
+        }
+        if (mPlayRequestTime != NOT_MEASURED) {
+            mMetrics.recordTimeToFirstAudio(mURL,
+                    SystemClock.elapsedRealtime() - mPlayRequestTime);
+            mPlayRequestTime = NOT_MEASURED;
+        }
         if (mListener != null) {
             mListener.onPlaying(mURL);
         }
         stopRetrievingMetadata();
-        if (mMetadataListener != null) {
-            getMetaData(mMetadataListener);
+        if (mStreamProxy != null && mInStreamMetadataEnabled) {
+            // the metadata comes with the audio, usually before the player is prepared
+            onTrackRetrieved(mMetadataListener, mInStreamTrack);
+        } else if (mMetadataListener != null) {
+            // a second connection, only while someone listens
+            getMetaData();
         }
     }
 
     @Override
     public void onStop() {
+        stopStallWatchdog();
         if (mListener != null) {
             mListener.onPlayerStop();
         }
@@ -265,57 +1089,235 @@ public class MediaPlayerService extends Service implements IMediaPlayerThreadCli
 
     @Override
     public void onDestroy() {
+        cancelPendingConnect();
+        stopStallWatchdog();
+        stopRecording();
+        closePreconnection();
+        mPlaybackEngine.quit();
+        closeStreamProxy();
         super.onDestroy();
     }
 
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        mPlaybackEngine.releasePreparedPlayers();
+    }
+
+    @Override
+    public void onTrimMemory(final int level) {
+        super.onTrimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mPlaybackEngine.releasePreparedPlayers();
+        }
+    }
+
+    private boolean isProxyNeeded() {
+        return mLocalProxyEnabled || mInStreamMetadataEnabled || mTimeShiftSeconds > 0
+                || mRecorder != null;
+    }
+
+    /**
+     * @return the number of players that can be prepared in advance, based on the memory class of
+     * the device
+     */
+    private int getMaxPreparedPlayers() {
+        ActivityManager activityManager = (ActivityManager) getSystemService(
+                Context.ACTIVITY_SERVICE);
+        return Math.min(MAX_PREPARED_PLAYERS,
+                activityManager.getMemoryClass() / MEMORY_CLASS_MB_PER_PREPARED_PLAYER);
+    }
+
     public void stopRetrievingMetadata() {
         if (mTrackMetadataSubscription != null) {
             mTrackMetadataSubscription.unsubscribe();
         }
         mCurrentTrack = null;
+        mLastMetadataTime = NOT_MEASURED;
+    }
+
+    /**
+     * @return the playback metrics recorded since the service was created or the metrics were
+     * reset
+     */
+    public PlaybackMetrics getPlaybackMetrics() {
+        return mMetrics.snapshot();
+    }
+
+    /**
+     * Drops the playback metrics recorded so far
+     */
+    public void resetPlaybackMetrics() {
+        mMetrics.reset();
+    }
+
+    /**
+     * @param url       the url of the station
+     * @param maxTracks the maximum number of tracks returned
+     * @return the tracks played on the station, most recent first
+     */
+    public List<PlayedTrack> getRecentTracks(final String url, final int maxTracks) {
+        return mTrackHistory.getRecentTracks(url, maxTracks);
+    }
+
+    /**
+     * @param url the url of the station
+     * @return the last track played on the station or null if none is known
+     */
+    public PlayedTrack getLastKnownTrack(final String url) {
+        return mTrackHistory.getLastKnownTrack(url);
+    }
+
+    /**
+     * Remembers the station playing, to connect to it in advance after a restart. The stations
+     * with several variants are connected to through a {@link BitrateSelector}, not in advance.
+     */
+    private void rememberStation() {
+        if (mURL == null || mStreamUrl == null
+                || (mStation != null && mStation.getVariants().size() > 1)) {
+            return;
+        }
+        if (mLastStation.set(mURL, mStreamUrl)) {
+            runInBackground(new Action0() {
+                @Override
+                public void call() {
+                    mLastStation.save();
+                }
+            });
+        }
+    }
+
+    private void recordTrack(final String url, final String track) {
+        final long playedAt = System.currentTimeMillis();
+        runInBackground(new Action0() {
+            @Override
+            public void call() {
+                mTrackHistory.record(url, track, playedAt);
+            }
+        });
+    }
+
+    private void closeStreamProxy() {
+        if (mStreamProxy != null) {
+            mStreamProxy.stop();
+            mStreamProxy = null;
+        }
     }
 
     /**
-     * Request the metadata every
-     * {@link MediaPlayerService}#METADATA_REQUEST_TIME_INTERVAL_SECONDS = 15 and notify the track
-     * listener when the track has been changed
+     * Records the track in the history and notifies the track listener, if any, if the track has
+     * been changed while playing. The tracks are recorded from the metadata already received: in
+     * the audio or by the requests made for a track listener.
      *
-     * @param metadataListener listener that listens to track changed
+     * @param listener the listener of the track changes, notified of the whole metadata if it's a
+     *                 {@link TrackMetadataListener}, or null
+     * @param metadata the metadata retrieved or null if the stream doesn't send metadata
+     * @return true if the track has been changed
      */
-    private void getMetaData(final MetadataListener metadataListener) {
+    private boolean onTrackRetrieved(final MetadataListener listener,
+                                     final TrackMetadata metadata) {
+        String track = metadata != null ? metadata.getStreamTitle() : null;
+        if (isPlaying() && (track == null ? mCurrentTrack != null
+                : !track.equals(mCurrentTrack))) {
+            mCurrentTrack = track;
+            if (track != null && mURL != null) {
+                recordTrack(mURL, track);
+            }
+            if (listener instanceof TrackMetadataListener) {
+                ((TrackMetadataListener) listener).onTrackMetadata(
+                        metadata != null ? metadata : TrackMetadata.EMPTY);
+            } else if (listener != null) {
+                listener.onMetadataChanged(track);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Notifies the track listener if the track has been changed and records how late the change
+     * was detected: at most the time since the previous metadata received, the previous poll or,
+     * in-stream, the previous metadata block, empty or not
+     *
+     * @return true if the track has been changed
+     */
+    private boolean onMetadataReceived(final MetadataListener listener,
+                                       final TrackMetadata metadata) {
+        long now = SystemClock.elapsedRealtime();
+        boolean changed = onTrackRetrieved(listener, metadata);
+        if (changed && mLastMetadataTime != NOT_MEASURED) {
+            mMetrics.recordMetadataLag(mURL, now - mLastMetadataTime);
+        }
+        mLastMetadataTime = now;
+        return changed;
+    }
+
+    /**
+     * Receives the metadata found by the {@link StreamProxy} in the audio stream. The servers
+     * mostly send empty blocks while the track doesn't change, so the blocks received, empty or
+     * not, bound how late a change is detected.
+     */
+    private final class InStreamMetadataListener implements TrackMetadataListener,
+            IcyMetadataDemuxer.BlockListener {
+
+        @Override
+        public void onTrackMetadata(final TrackMetadata metadata) {
+            Log.d(LOG_TAG, "in-stream metadata: " + metadata);
+            mInStreamTrack = metadata;
+            onMetadataReceived(mMetadataListener, metadata);
+        }
+
+        @Override
+        public void onMetadataBlock() {
+            mLastMetadataTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private final InStreamMetadataListener mInStreamMetadataListener =
+            new InStreamMetadataListener();
+
+    /**
+     * Requests the metadata for the track listener, records the track changes and notifies the
+     * listener of them. The requests run on the scheduler shared by the library, at the intervals computed
+     * by an {@link AdaptivePollInterval}, until the subscription is cancelled.
+     */
+    private void getMetaData() {
         Log.d(LOG_TAG, "requesting medatada");
         URL url = null;
         try {
-            url = new URL(mURL);
+            url = new URL(mStreamUrl);
         } catch (MalformedURLException e) {
-
+            Log.d(LOG_TAG, "invalid stream url " + mStreamUrl);
+            return;
         }
         final MetaDataRetriever retriever = new MetaDataRetriever(url);
+        final AdaptivePollInterval interval = new AdaptivePollInterval();
 
-        mTrackMetadataSubscription = Schedulers.newThread().createWorker();
-        ((Scheduler.Worker) mTrackMetadataSubscription).schedule(
+        final Scheduler.Worker worker = StreamPlayerSchedulers.background().createWorker();
+        mTrackMetadataSubscription = worker;
+        worker.schedule(
                 new Action0() {
 
                     @Override
                     public void call() {
+                        long delay;
                         try {
-                            final String metadata = retriever.getMetadata();
+                            final TrackMetadata metadata = retriever.getTrackMetadata();
                             Log.d(LOG_TAG, "metadata retrieved: " + metadata);
-                            Log.d(LOG_TAG, "is playing " + isPlaying() + " current track " + mCurrentTrack);
-                            if (isPlaying() && !metadata.equals(mCurrentTrack)) {
-                                mCurrentTrack = metadata;
-                                metadataListener.onMetadataChanged(mCurrentTrack);
+                            if (worker.isUnsubscribed()) {
+                                return;
                             }
-
+                            delay = onMetadataReceived(mMetadataListener, metadata)
+                                    ? interval.onChanged() : interval.onUnchanged();
                         } catch (IOException exception) {
-
-                        } finally {
-                            // recurse until unsubscribed (schedule will do nothing if unsubscribed)
-                            ((Scheduler.Worker) mTrackMetadataSubscription).schedule(
-                                    this, METADATA_REQUEST_TIME_INTERVAL_SECONDS, TimeUnit.SECONDS);
+                            delay = interval.onError();
+                            Log.d(LOG_TAG, "metadata request failed, retrying in " + delay
+                                    + " ms", exception);
                         }
+                        // does nothing if unsubscribed
+                        worker.schedule(this, delay, TimeUnit.MILLISECONDS);
                     }
 
                 });
     }
-}
\ No newline at end of file
+}
@@ -5,129 +5,498 @@ import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnBufferingUpdateListener;
 import android.media.MediaPlayer.OnErrorListener;
+import android.media.MediaPlayer.OnInfoListener;
 import android.media.MediaPlayer.OnPreparedListener;
 import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
  * Player thread - handles the {@link android.media.MediaPlayer} instance and all the notifications
- * related to it
+ * related to it. The {@link PlaybackEngine} playing on the device.
+ * <p/>
+ * The thread runs a {@link Looper}: the public methods only queue a command, and the commands run
+ * one after the other on this thread, so the calls to the native player never block the caller.
+ * The players are created on this thread, so their notifications are received here too. The
+ * client is notified on the main thread.
+ * <p/>
+ * Every command playing or stopping a stream starts a new generation: the commands and the
+ * notifications of an older generation, still queued when the new one starts, are dropped. Each
+ * player is released exactly once, when it's replaced, stopped or fails.
  */
-/*default*/ class MediaPlayerThread extends Thread implements OnBufferingUpdateListener,
-        OnPreparedListener, OnErrorListener {
+/*default*/ class MediaPlayerThread extends Thread implements PlaybackEngine,
+        OnBufferingUpdateListener, OnPreparedListener, OnErrorListener, OnInfoListener,
+        Handler.Callback {
 
     private static final String LOG_TAG = MediaPlayerThread.class.getSimpleName();
 
-    private MediaPlayer mMediaPlayer = new MediaPlayer();
-    private IMediaPlayerThreadClient mClient;
-    private WifiManager.WifiLock mWifiLock;
+    private static final int MSG_PLAY = 1;
+    private static final int MSG_START = 2;
+    private static final int MSG_PAUSE = 3;
+    private static final int MSG_STOP = 4;
+    private static final int MSG_RESET = 5;
+    private static final int MSG_PREPARE = 6;
+    private static final int MSG_PREPARE_ALL = 7;
+    private static final int MSG_RELEASE_PREPARED = 8;
+    private static final int MSG_QUIT = 9;
 
-    public MediaPlayerThread(IMediaPlayerThreadClient client, Context context) {
+    // MediaPlayer.MEDIA_INFO_BUFFERING_START and END, sent from API 9
+    private static final int MEDIA_INFO_BUFFERING_START = 701;
+    private static final int MEDIA_INFO_BUFFERING_END = 702;
+    private static final long NOT_STARTED = -1;
+
+    // accessed only on this thread, except for the reads of the volatile fields
+    private volatile MediaPlayer mMediaPlayer;
+    private volatile PlayerState mState = PlayerState.IDLE;
+    private int mPlayerGeneration;
+    private long mPrepareStartTime = NOT_STARTED;
+    private long mRebufferStartTime = NOT_STARTED;
+
+    private final IMediaPlayerThreadClient mClient;
+    private final Handler mClientHandler = new Handler(Looper.getMainLooper());
+    private final WifiManager.WifiLock mWifiLock;
+    private final MediaPlayerPool mPool;
+
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    private final CountDownLatch mLooperReady = new CountDownLatch(1);
+    private Handler mHandler;
+
+    /**
+     * @param client      the client notified about the player's states
+     * @param context     the context
+     * @param maxPoolSize the maximum number of players prepared in advance
+     */
+    public MediaPlayerThread(IMediaPlayerThreadClient client, Context context, int maxPoolSize) {
+        super(MediaPlayerThread.class.getSimpleName());
         mClient = client;
+        mPool = new MediaPlayerPool(maxPoolSize);
         mWifiLock = ((WifiManager) context.getApplicationContext().getSystemService(
                 Context.WIFI_SERVICE)).createWifiLock(
                 WifiManager.WIFI_MODE_FULL, "streamplayer.lock");
+        mWifiLock.setReferenceCounted(false);
+    }
+
+    @Override
+    public void run() {
+        Looper.prepare();
+        mHandler = new Handler(this);
+        mLooperReady.countDown();
+        Looper.loop();
     }
 
     /**
-     * Initializes a StatefulMediaPlayer for streaming playback of the provided Radio
+     * Initializes a StatefulMediaPlayer for streaming playback of the provided Radio. The commands
+     * queued before are dropped.
      *
      * @param station The url representing the station to play
      */
+    @Override
     public void initializePlayer(final String station) {
+        send(MSG_PLAY, mGeneration.incrementAndGet(), 0, station);
+    }
 
-        if (mMediaPlayer != null && mMediaPlayer.isPlaying()) {
-            mMediaPlayer.reset();
-        }
-        mMediaPlayer = new MediaPlayer();
-        mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-        try {
-            mMediaPlayer.setDataSource(station);
-            mMediaPlayer.setOnErrorListener(this);
-            mMediaPlayer.setOnBufferingUpdateListener(this);
-            mMediaPlayer.setOnPreparedListener(this);
-            mMediaPlayer.prepareAsync();
-
-            mWifiLock.acquire();
-
-        } catch (IOException e) {
+    /**
+     * Prepares a player for the station, in advance, so that {@link #initializePlayer(String)}
+     * can start it without waiting
+     *
+     * @param station The url representing the station to prepare
+     */
+    @Override
+    public void preparePlayer(final String station) {
+        send(MSG_PREPARE, 0, 0, station);
+    }
 
-        }
+    /**
+     * Prepares players for the stations, in order, as long as the pool has room, and releases the
+     * players prepared for other stations
+     *
+     * @param stations the urls representing the stations likely to be played next
+     */
+    @Override
+    public void preparePlayers(final List<String> stations) {
+        send(MSG_PREPARE_ALL, 0, 0, new ArrayList<String>(stations));
     }
 
+    /**
+     * Releases the players prepared in advance
+     */
+    @Override
+    public void releasePreparedPlayers() {
+        send(MSG_RELEASE_PREPARED, 0, 0, null);
+    }
 
     /**
-     * Starts the contained StatefulMediaPlayer and foregrounds the service to support
-     * persisted background playback.
+     * Starts the contained StatefulMediaPlayer, if it's paused
      */
+    @Override
     public void startMediaPlayer() {
-        Log.d("MediaPlayerThread", "startMediaPlayer() called");
-
-        mMediaPlayer.start();
-        mWifiLock.acquire();
-
-        mClient.onPlaying();
+        send(MSG_START, mGeneration.get(), 0, null);
     }
 
     /**
      * Pauses the contained StatefulMediaPlayer
+     *
+     * @param keepConnection true if the stream is still received while paused, in which case the
+     *                       wifi lock is kept
      */
-    public void pauseMediaPlayer() {
-        Log.d("MediaPlayerThread", "pauseMediaPlayer() called");
-        mMediaPlayer.pause();
+    @Override
+    public void pauseMediaPlayer(final boolean keepConnection) {
+        send(MSG_PAUSE, mGeneration.get(), keepConnection ? 1 : 0, null);
+    }
 
-        mClient.onStop();
-        mWifiLock.release();
+    /**
+     * Stops and releases the contained StatefulMediaPlayer. The commands queued before are dropped.
+     */
+    @Override
+    public void stopMediaPlayer() {
+        send(MSG_STOP, mGeneration.incrementAndGet(), 0, null);
+    }
 
+    /**
+     * Releases the contained StatefulMediaPlayer, without notifying the client
+     */
+    @Override
+    public void resetMediaPlayer() {
+        send(MSG_RESET, mGeneration.incrementAndGet(), 0, null);
     }
 
     /**
-     * Stops the contained StatefulMediaPlayer.
+     * Releases all the players and stops the thread. No command is run afterwards.
      */
-    public void stopMediaPlayer() {
-        if (mMediaPlayer != null) {
-            if (mMediaPlayer.isPlaying()) {
-                mMediaPlayer.stop();
-            }
-            mMediaPlayer.release();
-            mMediaPlayer = null;
-        }
+    @Override
+    public void quit() {
+        send(MSG_QUIT, mGeneration.incrementAndGet(), 0, null);
+    }
 
-        mClient.onStop();
+    /**
+     * @return the state of the player, as of the last command or notification handled
+     */
+    @Override
+    public PlayerState getPlayerState() {
+        return mState;
+    }
 
-        if (mWifiLock.isHeld()) {
-            mWifiLock.release();
-        }
+    /**
+     * @return the current player or null. The player is owned by this thread, it must not be
+     * changed by the caller.
+     */
+    public MediaPlayer getMediaPlayer() {
+        return mMediaPlayer;
     }
 
-    public void resetMediaPlayer() {
-        mMediaPlayer.reset();
+    @Override
+    public boolean handleMessage(final Message message) {
+        switch (message.what) {
+            case MSG_PREPARE:
+                prepareInPool((String) message.obj);
+                return true;
+            case MSG_PREPARE_ALL:
+                @SuppressWarnings("unchecked")
+                List<String> stations = (List<String>) message.obj;
+                mPool.retainAll(stations);
+                for (int i = 0; i < stations.size() && i < mPool.getMaxSize(); i++) {
+                    prepareInPool(stations.get(i));
+                }
+                return true;
+            case MSG_RELEASE_PREPARED:
+                mPool.clear();
+                return true;
+            case MSG_QUIT:
+                release(PlayerState.IDLE);
+                mPool.clear();
+                Looper.myLooper().quit();
+                return true;
+            default:
+                break;
+        }
+
+        if (message.arg1 != mGeneration.get()) {
+            Log.d(LOG_TAG, "dropping stale command " + message.what);
+            return true;
+        }
+        switch (message.what) {
+            case MSG_PLAY:
+                play((String) message.obj, message.arg1);
+                break;
+            case MSG_START:
+                if (mState == PlayerState.PAUSED) {
+                    startPlayer();
+                }
+                break;
+            case MSG_PAUSE:
+                pause(message.arg2 == 1);
+                break;
+            case MSG_STOP:
+                if (mState != PlayerState.IDLE) {
+                    release(PlayerState.IDLE);
+                    notifyStop();
+                }
+                break;
+            case MSG_RESET:
+                release(PlayerState.IDLE);
+                break;
+            default:
+                return false;
+        }
+        return true;
     }
 
     @Override
-    public void onBufferingUpdate(MediaPlayer player, int percent) {
+    public void onBufferingUpdate(MediaPlayer player, final int percent) {
         Log.d(LOG_TAG, "buffering " + percent);
+        if (isCurrent(player)) {
+            mClientHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mClient.onBufferingUpdate(percent);
+                }
+            });
+        }
     }
 
     @Override
     public boolean onError(MediaPlayer player, int what, int extra) {
         Log.d(LOG_TAG, "onError " + what + " " + extra);
+        if (mPool.remove(player)) {
+            // a player prepared in advance failed, nobody is listening to it yet
+            return true;
+        }
+        if (!isCurrent(player)) {
+            return true;
+        }
 
-        mMediaPlayer.reset();
-        mClient.onError(what, extra);
+        release(PlayerState.ERROR);
+        notifyError(what, extra);
         return true;
     }
 
+    @Override
+    public boolean onInfo(MediaPlayer player, int what, int extra) {
+        if (!isCurrent(player) || mState != PlayerState.PLAYING) {
+            return false;
+        }
+        if (what == MEDIA_INFO_BUFFERING_START && mRebufferStartTime == NOT_STARTED) {
+            mRebufferStartTime = SystemClock.elapsedRealtime();
+            mClientHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mClient.onRebufferStart();
+                }
+            });
+        } else if (what == MEDIA_INFO_BUFFERING_END && mRebufferStartTime != NOT_STARTED) {
+            final long rebufferMillis = SystemClock.elapsedRealtime() - mRebufferStartTime;
+            mRebufferStartTime = NOT_STARTED;
+            mClientHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mClient.onRebufferEnd(rebufferMillis);
+                }
+            });
+        }
+        return false;
+    }
+
     @Override
     public void onPrepared(MediaPlayer player) {
-        startMediaPlayer();
+        if (isCurrent(player)) {
+            if (mPrepareStartTime != NOT_STARTED) {
+                final long prepareMillis = SystemClock.elapsedRealtime() - mPrepareStartTime;
+                mPrepareStartTime = NOT_STARTED;
+                mClientHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mClient.onPrepared(prepareMillis);
+                    }
+                });
+            }
+            if (mState == PlayerState.PREPARING) {
+                startPlayer();
+            }
+        } else {
+            mPool.setPrepared(player);
+        }
     }
 
-    public MediaPlayer getMediaPlayer() {
-        return mMediaPlayer;
+    /**
+     * @return true if the player is the current one and no newer command is queued
+     */
+    private boolean isCurrent(final MediaPlayer player) {
+        return player == mMediaPlayer && mPlayerGeneration == mGeneration.get();
+    }
+
+    private void play(final String station, final int generation) {
+        // replaced without going through the idle state
+        releasePlayer();
+        mPlayerGeneration = generation;
+        mPrepareStartTime = NOT_STARTED;
+        mRebufferStartTime = NOT_STARTED;
+
+        boolean prepared = mPool.isPrepared(station);
+        MediaPlayer pooledPlayer = mPool.take(station);
+        if (pooledPlayer != null) {
+            Log.d(LOG_TAG, "playing a pooled player, prepared " + prepared);
+            mMediaPlayer = pooledPlayer;
+            setState(PlayerState.PREPARING);
+            mWifiLock.acquire();
+            if (prepared) {
+                startPlayer();
+            }
+            // otherwise started when prepared
+            return;
+        }
+
+        long prepareStartTime = SystemClock.elapsedRealtime();
+        MediaPlayer player = createPlayer(station);
+        if (player == null) {
+            setState(PlayerState.ERROR);
+            notifyError(MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+            return;
+        }
+        mMediaPlayer = player;
+        mPrepareStartTime = prepareStartTime;
+        setState(PlayerState.PREPARING);
+        mWifiLock.acquire();
+    }
+
+    private void prepareInPool(final String station) {
+        if (mPool.getMaxSize() == 0 || mPool.contains(station)) {
+            return;
+        }
+        MediaPlayer player = createPlayer(station);
+        if (player != null) {
+            mPool.put(station, player);
+        }
     }
 
+    /**
+     * @return a player preparing the station or null if the station cannot be played
+     */
+    private MediaPlayer createPlayer(final String station) {
+        MediaPlayer player = new MediaPlayer();
+        player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+        try {
+            player.setDataSource(station);
+            player.setOnErrorListener(this);
+            player.setOnBufferingUpdateListener(this);
+            player.setOnPreparedListener(this);
+            player.setOnInfoListener(this);
+            player.prepareAsync();
+            return player;
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "unable to play " + station, e);
+        } catch (IllegalArgumentException e) {
+            Log.d(LOG_TAG, "unable to play " + station, e);
+        }
+        player.release();
+        return null;
+    }
+
+    private void startPlayer() {
+        Log.d(LOG_TAG, "start " + mState);
+        mMediaPlayer.start();
+        setState(PlayerState.PLAYING);
+        mWifiLock.acquire();
+        notifyPlaying();
+    }
+
+    private void pause(final boolean keepConnection) {
+        Log.d(LOG_TAG, "pause " + mState);
+        if (mState == PlayerState.PLAYING) {
+            mMediaPlayer.pause();
+            // a stall interrupted by the pause isn't measured
+            mRebufferStartTime = NOT_STARTED;
+            setState(PlayerState.PAUSED);
+        } else if (mState == PlayerState.PREPARING) {
+            // nothing to resume yet
+            release(PlayerState.IDLE);
+        } else {
+            return;
+        }
+        notifyStop();
+        if (!keepConnection && mWifiLock.isHeld()) {
+            mWifiLock.release();
+        }
+    }
+
+    /**
+     * Releases the current player, if any
+     *
+     * @param state the state after the release, {@link PlayerState#IDLE} or
+     *              {@link PlayerState#ERROR}
+     */
+    private void release(final PlayerState state) {
+        releasePlayer();
+        setState(state);
+    }
+
+    private void releasePlayer() {
+        MediaPlayer player = mMediaPlayer;
+        mMediaPlayer = null;
+        if (player != null) {
+            player.release();
+        }
+        if (mWifiLock.isHeld()) {
+            mWifiLock.release();
+        }
+    }
+
+    private void setState(final PlayerState state) {
+        if (mState == state) {
+            return;
+        }
+        mState = state;
+        mClientHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mClient.onStateChanged(state);
+            }
+        });
+    }
+
+    private void notifyPlaying() {
+        mClientHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mClient.onPlaying();
+            }
+        });
+    }
+
+    private void notifyStop() {
+        mClientHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mClient.onStop();
+            }
+        });
+    }
+
+    private void notifyError(final int what, final int extra) {
+        mClientHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mClient.onError(what, extra);
+            }
+        });
+    }
+
+    private void send(final int what, final int generation, final int arg, final Object object) {
+        try {
+            mLooperReady.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        mHandler.sendMessage(mHandler.obtainMessage(what, generation, arg, object));
+    }
 }
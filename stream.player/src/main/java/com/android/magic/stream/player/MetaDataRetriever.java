@@ -2,114 +2,99 @@ package com.android.magic.stream.player;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.ProtocolException;
 import java.net.URL;
-import java.net.URLConnection;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Collections;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Handles retrieving and parsing of the metadata to get the stream title.
+ * <p/>
+ * The requests go through the {@link HttpTransport} shared by the library. The stream never ends,
+ * so the connection of a request can't be kept alive: it's closed after the metadata block.
  */
 /*package*/ class MetaDataRetriever {
 
-    private static final String STREAM_TITLE = "StreamTitle";
+    private static final Map<String, String> ICY_HEADERS =
+            Collections.singletonMap("Icy-MetaData", "1");
 
     protected URL mStreamUrl;
-    private Map<String, String> mMetadata;
+    private final HttpTransport mTransport;
+    private final IcyStreamReader mReader = new IcyStreamReader();
+    private final MetadataParser mParser = new MetadataParser();
+    private TrackMetadata mMetadata;
     private boolean isError;
 
     public MetaDataRetriever(URL streamUrl) {
+        this(streamUrl, HttpTransport.shared());
+    }
+
+    public MetaDataRetriever(URL streamUrl, HttpTransport transport) {
+        mTransport = transport;
         setStreamUrl(streamUrl);
 
         isError = false;
     }
 
     public String getMetadata() throws IOException {
+        TrackMetadata metadata = getTrackMetadata();
+        return metadata != null ? metadata.getStreamTitle() : null;
+    }
+
+    /**
+     * Requests the metadata of the stream
+     *
+     * @return the metadata or null if the stream doesn't send metadata
+     * @throws IOException if the metadata couldn't be read
+     */
+    public TrackMetadata getTrackMetadata() throws IOException {
         retreiveMetadata();
 
-        return mMetadata.get(STREAM_TITLE);
+        return mMetadata;
     }
 
     private void retreiveMetadata() throws IOException {
-        URLConnection con = mStreamUrl.openConnection();
-        con.setRequestProperty("Icy-MetaData", "1");
-        con.setRequestProperty("Connection", "close");
-        con.setRequestProperty("Accept", null);
-        con.connect();
-
-        int metaDataOffset = 0;
-        Map<String, List<String>> headers = con.getHeaderFields();
-        InputStream stream = con.getInputStream();
-
-        if (headers.containsKey("icy-metaint")) {
-            // Headers are sent via HTTP
-            metaDataOffset = Integer.parseInt(headers.get("icy-metaint").get(0));
-        } else {
-            // Headers are sent within a stream
-            StringBuilder strHeaders = new StringBuilder();
-            char c;
-            while ((c = (char) stream.read()) != -1) {
-                strHeaders.append(c);
-                if (strHeaders.length() > 5 && (strHeaders.substring(
-                        (strHeaders.length() - 4), strHeaders.length()).equals("\r\n\r\n"))) {
-                    // end of headers
-                    break;
-                }
-            }
-
-            // Match headers to get mMetadata offset within a stream
-            Pattern p = Pattern.compile("\\r\\n(icy-metaint):\\s*(.*)\\r\\n");
-            Matcher m = p.matcher(strHeaders.toString());
-            if (m.find()) {
-                metaDataOffset = Integer.parseInt(m.group(2));
-            }
+        // the stream never ends, the connection is closed after the metadata
+        HttpResponse response = mTransport.get(mStreamUrl.toString(), ICY_HEADERS);
+        if (!response.isSuccessful()) {
+            response.close();
+            throw new IOException("Unexpected response " + response.getStatusCode());
         }
 
-        // In case no data was sent
-        if (metaDataOffset == 0) {
-            isError = true;
-            return;
-        }
-
-        // Read mMetadata
-        int b;
-        int count = 0;
-        int metaDataLength = 4080; // 4080 is the max length
-        boolean inData = false;
-        StringBuilder metaData = new StringBuilder();
-        // Stream position should be either at the beginning or right after headers
-        while ((b = stream.read()) != -1) {
-            count++;
-
-            // Length of the mMetadata
-            if (count == metaDataOffset + 1) {
-                metaDataLength = b * 16;
-            }
+        InputStream stream = response.getBody();
+        try {
+            mReader.reset();
 
-            if (count > metaDataOffset + 1 && count < (metaDataOffset + metaDataLength)) {
-                inData = true;
+            int metaDataOffset;
+            if (response.getHeader("icy-metaint") != null) {
+                // Headers are sent via HTTP
+                metaDataOffset = response.getIntHeader("icy-metaint");
             } else {
-                inData = false;
-            }
-            if (inData) {
-                if (b != 0) {
-                    metaData.append((char) b);
+                // Headers are sent within a stream, by the servers answering "ICY 200 OK" to
+                // connections that don't parse it
+                try {
+                    metaDataOffset = mReader.readHeaders(stream);
+                } catch (ProtocolException e) {
+                    // no headers, the audio starts at once
+                    metaDataOffset = 0;
                 }
             }
-            if (count > (metaDataOffset + metaDataLength)) {
-                break;
-            }
 
-        }
+            // In case no data was sent
+            if (metaDataOffset == 0) {
+                isError = true;
+                mMetadata = null;
+                return;
+            }
 
-        // Set the data
-        mMetadata = MetaDataRetriever.parseMetadata(metaData.toString());
+            // Stream position is at the beginning of the audio
+            mReader.skipFully(stream, metaDataOffset);
 
-        // Close
-        stream.close();
+            // Set the data
+            mMetadata = mReader.readMetadata(stream, mParser);
+        } finally {
+            response.close();
+        }
     }
 
     public void setStreamUrl(URL streamUrl) {
@@ -117,19 +102,4 @@ import java.util.regex.Pattern;
         this.mStreamUrl = streamUrl;
         this.isError = false;
     }
-
-    public static Map<String, String> parseMetadata(String metaString) {
-        Map<String, String> metadata = new HashMap();
-        String[] metaParts = metaString.split(";");
-        Pattern p = Pattern.compile("^([a-zA-Z]+)=\\'([^\\']*)\\'$");
-        Matcher m;
-        for (int i = 0; i < metaParts.length; i++) {
-            m = p.matcher(metaParts[i]);
-            if (m.find()) {
-                metadata.put(m.group(1), m.group(2));
-            }
-        }
-
-        return metadata;
-    }
-}
\ No newline at end of file
+}
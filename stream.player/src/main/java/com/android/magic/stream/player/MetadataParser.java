@@ -0,0 +1,238 @@
+package com.android.magic.stream.player;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Parses the raw bytes of an ICY metadata block, e.g.
+ * "StreamTitle='Miles Davis - So What';StreamUrl='';", into a {@link TrackMetadata}.
+ * <p/>
+ * The block is parsed in one pass, without regular expressions. A value ends with a quote
+ * followed by ";" and another key or by the end of the block, so titles containing quotes or
+ * semicolons are kept whole. The values are decoded as UTF-8 and, if they aren't valid UTF-8, as
+ * ISO-8859-1, the encoding used by older servers.
+ * <p/>
+ * The parser remembers the last block and the last value of every key: parsing the same block
+ * again returns the same {@link TrackMetadata} and an unchanged value reuses the same string, so
+ * polling a stream whose track didn't change doesn't allocate. The parser is not thread safe.
+ */
+/*package*/ class MetadataParser {
+
+    private static final byte KEY_VALUE_SEPARATOR = '=';
+    private static final byte FIELD_SEPARATOR = ';';
+    private static final byte QUOTE = '\'';
+    // servers send a handful of keys, the cache ignores the rest
+    private static final int MAX_CACHED_KEYS = 8;
+
+    private static final byte[] STREAM_TITLE = TrackMetadata.STREAM_TITLE.getBytes();
+    private static final byte[] STREAM_URL = TrackMetadata.STREAM_URL.getBytes();
+
+    private final CharsetDecoder mUtf8Decoder = Charset.forName("UTF-8").newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT);
+
+    private byte[] mLastBlock = new byte[0];
+    private TrackMetadata mLastMetadata;
+    // the last value parsed for every key: the raw bytes and the decoded string
+    private final Map<String, byte[]> mLastRawValues = new HashMap<String, byte[]>();
+    private final Map<String, String> mLastValues = new HashMap<String, String>();
+
+    /**
+     * Parses a metadata block
+     *
+     * @param block  the buffer containing the block, without the length byte
+     * @param offset the offset of the block
+     * @param length the length of the block, including the padding
+     * @return the metadata, empty if the block is empty or not valid
+     */
+    public TrackMetadata parse(final byte[] block, final int offset, final int length) {
+        int end = offset + length;
+        // the block is padded with 0
+        while (end > offset && block[end - 1] == 0) {
+            end--;
+        }
+        if (mLastMetadata != null && equals(block, offset, end, mLastBlock, 0,
+                mLastBlock.length)) {
+            return mLastMetadata;
+        }
+
+        Map<String, String> values = new LinkedHashMap<String, String>(4);
+        int position = offset;
+        while (position < end) {
+            int keyStart = position;
+            while (position < end && isKeyCharacter(block[position])) {
+                position++;
+            }
+            if (position == end) {
+                break;
+            }
+            if (block[position] != KEY_VALUE_SEPARATOR || position == keyStart) {
+                // not a key, skip to the next field
+                position = indexOf(block, position, end, FIELD_SEPARATOR) + 1;
+                continue;
+            }
+            int keyEnd = position++;
+
+            int valueStart;
+            int valueEnd;
+            if (position < end && block[position] == QUOTE) {
+                valueStart = ++position;
+                valueEnd = findQuotedValueEnd(block, valueStart, end);
+                // skip the quote and the separator
+                position = Math.min(valueEnd + 2, end);
+            } else {
+                valueStart = position;
+                valueEnd = indexOf(block, position, end, FIELD_SEPARATOR);
+                position = valueEnd + 1;
+            }
+
+            String key = key(block, keyStart, keyEnd);
+            values.put(key, value(key, block, valueStart, valueEnd));
+        }
+
+        int blockLength = end - offset;
+        if (mLastBlock.length != blockLength) {
+            mLastBlock = new byte[blockLength];
+        }
+        System.arraycopy(block, offset, mLastBlock, 0, blockLength);
+        mLastMetadata = new TrackMetadata(values);
+        return mLastMetadata;
+    }
+
+    /**
+     * @return the index of the quote closing the value starting at start: the first quote
+     * followed by ";" and a key, or by the end of the block
+     */
+    private static int findQuotedValueEnd(final byte[] block, final int start, final int end) {
+        int lastQuote = -1;
+        for (int i = start; i < end; i++) {
+            if (block[i] != QUOTE) {
+                continue;
+            }
+            lastQuote = i;
+            if (i + 1 == end) {
+                return i;
+            }
+            if (block[i + 1] == FIELD_SEPARATOR && isFieldStart(block, i + 2, end)) {
+                return i;
+            }
+        }
+        // value not terminated properly
+        return lastQuote >= 0 && lastQuote + 2 >= end ? lastQuote : end;
+    }
+
+    /**
+     * @return true if a key followed by "=" starts at position or if the block ends there
+     */
+    private static boolean isFieldStart(final byte[] block, int position, final int end) {
+        int keyStart = position;
+        while (position < end && isKeyCharacter(block[position])) {
+            position++;
+        }
+        return position == end ? keyStart == end
+                : block[position] == KEY_VALUE_SEPARATOR && position > keyStart;
+    }
+
+    private static boolean isKeyCharacter(final byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+    }
+
+    private static int indexOf(final byte[] block, final int start, final int end,
+                               final byte value) {
+        for (int i = start; i < end; i++) {
+            if (block[i] == value) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private String key(final byte[] block, final int start, final int end) {
+        if (equals(block, start, end, STREAM_TITLE, 0, STREAM_TITLE.length)) {
+            return TrackMetadata.STREAM_TITLE;
+        }
+        if (equals(block, start, end, STREAM_URL, 0, STREAM_URL.length)) {
+            return TrackMetadata.STREAM_URL;
+        }
+        for (String key : mLastValues.keySet()) {
+            if (key.length() == end - start && equalsAscii(block, start, key)) {
+                return key;
+            }
+        }
+        return decodeAscii(block, start, end);
+    }
+
+    /**
+     * Decodes the value, reusing the last string decoded for the key if the bytes are the same
+     */
+    private String value(final String key, final byte[] block, final int start, final int end) {
+        byte[] lastRawValue = mLastRawValues.get(key);
+        if (lastRawValue != null && equals(block, start, end, lastRawValue, 0,
+                lastRawValue.length)) {
+            return mLastValues.get(key);
+        }
+        String value = decode(block, start, end);
+        if (lastRawValue != null || mLastValues.size() < MAX_CACHED_KEYS) {
+            byte[] rawValue = new byte[end - start];
+            System.arraycopy(block, start, rawValue, 0, rawValue.length);
+            mLastRawValues.put(key, rawValue);
+            mLastValues.put(key, value);
+        }
+        return value;
+    }
+
+    private String decode(final byte[] block, final int start, final int end) {
+        boolean ascii = true;
+        for (int i = start; i < end && ascii; i++) {
+            ascii = block[i] >= 0;
+        }
+        if (ascii) {
+            return decodeAscii(block, start, end);
+        }
+        try {
+            mUtf8Decoder.reset();
+            CharBuffer chars = mUtf8Decoder.decode(ByteBuffer.wrap(block, start, end - start));
+            return chars.toString();
+        } catch (CharacterCodingException e) {
+            // not UTF-8, ISO-8859-1 maps every byte to the char with the same value
+            return decodeAscii(block, start, end);
+        }
+    }
+
+    private static String decodeAscii(final byte[] block, final int start, final int end) {
+        char[] chars = new char[end - start];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (block[start + i] & 0xff);
+        }
+        return new String(chars);
+    }
+
+    private static boolean equalsAscii(final byte[] block, final int start, final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (block[start + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equals(final byte[] a, final int aStart, final int aEnd,
+                                  final byte[] b, final int bStart, final int bEnd) {
+        if (aEnd - aStart != bEnd - bStart) {
+            return false;
+        }
+        for (int i = 0; i < aEnd - aStart; i++) {
+            if (a[aStart + i] != b[bStart + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
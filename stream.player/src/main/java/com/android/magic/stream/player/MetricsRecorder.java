@@ -0,0 +1,112 @@
+package com.android.magic.stream.player;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the playback metrics of every station and creates {@link PlaybackMetrics} snapshots.
+ * <p/>
+ * Recording only increments counters in memory allocated once per station, so it can be called
+ * from any thread, on every event.
+ */
+/*package*/ class MetricsRecorder {
+
+    private static final StreamPlayerError[] ERRORS = StreamPlayerError.values();
+
+    private static final class StationRecorder {
+        final AtomicLong mPlayCount = new AtomicLong();
+        final Histogram mTimeToFirstAudio = new Histogram();
+        final Histogram mPrepareTime = new Histogram();
+        final AtomicLong mRebufferCount = new AtomicLong();
+        final Histogram mRebufferDuration = new Histogram();
+        final Histogram mMetadataLag = new Histogram();
+        final AtomicLong[] mErrorCounts = new AtomicLong[ERRORS.length];
+
+        StationRecorder() {
+            for (int i = 0; i < mErrorCounts.length; i++) {
+                mErrorCounts[i] = new AtomicLong();
+            }
+        }
+
+        StationMetrics snapshot(final String url) {
+            Map<StreamPlayerError, Long> errorCounts =
+                    new EnumMap<StreamPlayerError, Long>(StreamPlayerError.class);
+            for (int i = 0; i < mErrorCounts.length; i++) {
+                long count = mErrorCounts[i].get();
+                if (count > 0) {
+                    errorCounts.put(ERRORS[i], count);
+                }
+            }
+            return new StationMetrics(url, mPlayCount.get(), mTimeToFirstAudio.snapshot(),
+                    mPrepareTime.snapshot(), mRebufferCount.get(), mRebufferDuration.snapshot(),
+                    mMetadataLag.snapshot(), errorCounts);
+        }
+    }
+
+    private volatile ConcurrentHashMap<String, StationRecorder> mStations =
+            new ConcurrentHashMap<String, StationRecorder>();
+    private volatile long mSinceTimestamp = System.currentTimeMillis();
+
+    public void recordPlay(final String url) {
+        station(url).mPlayCount.incrementAndGet();
+    }
+
+    public void recordTimeToFirstAudio(final String url, final long millis) {
+        station(url).mTimeToFirstAudio.record(millis);
+    }
+
+    public void recordPrepareTime(final String url, final long millis) {
+        station(url).mPrepareTime.record(millis);
+    }
+
+    public void recordRebufferStart(final String url) {
+        station(url).mRebufferCount.incrementAndGet();
+    }
+
+    public void recordRebufferEnd(final String url, final long millis) {
+        station(url).mRebufferDuration.record(millis);
+    }
+
+    public void recordMetadataLag(final String url, final long millis) {
+        station(url).mMetadataLag.record(millis);
+    }
+
+    public void recordError(final String url, final StreamPlayerError error) {
+        station(url).mErrorCounts[error.ordinal()].incrementAndGet();
+    }
+
+    /**
+     * @return the metrics recorded since the creation or the last reset
+     */
+    public PlaybackMetrics snapshot() {
+        Map<String, StationMetrics> stations = new LinkedHashMap<String, StationMetrics>();
+        for (Map.Entry<String, StationRecorder> station : mStations.entrySet()) {
+            stations.put(station.getKey(), station.getValue().snapshot(station.getKey()));
+        }
+        return new PlaybackMetrics(System.currentTimeMillis(), mSinceTimestamp, stations);
+    }
+
+    /**
+     * Drops the metrics recorded so far
+     */
+    public void reset() {
+        mStations = new ConcurrentHashMap<String, StationRecorder>();
+        mSinceTimestamp = System.currentTimeMillis();
+    }
+
+    private StationRecorder station(final String url) {
+        ConcurrentHashMap<String, StationRecorder> stations = mStations;
+        StationRecorder station = stations.get(url);
+        if (station == null) {
+            StationRecorder created = new StationRecorder();
+            station = stations.putIfAbsent(url, created);
+            if (station == null) {
+                station = created;
+            }
+        }
+        return station;
+    }
+}
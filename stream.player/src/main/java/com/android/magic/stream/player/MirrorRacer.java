@@ -0,0 +1,224 @@
+package com.android.magic.stream.player;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Finds the fastest of several mirrors of a stream, by connecting to them in parallel.
+ * <p/>
+ * The connections are staggered: the first mirror gets a head start of {@link #STAGGER_MS}
+ * before the second one is tried, and so on, and the next mirror is tried immediately when one
+ * fails. The first mirror sending audio wins and the other connections are closed. This way an
+ * alive first mirror is used without opening other connections, and a dead mirror delays the
+ * start by at most the stagger instead of a connection time out.
+ * <p/>
+ * The audio is recognized by its first bytes: an MP3 or AAC frame header, an ID3 tag or an Ogg
+ * page. A mirror answering with an HTML page, e.g. a captive portal, doesn't win.
+ * <p/>
+ * The race can be cancelled from another thread, e.g. when another stream is played, and stops
+ * when the racing thread is interrupted: the connections are closed.
+ * <p/>
+ * Doesn't depend on the Android framework.
+ */
+/*package*/ class MirrorRacer {
+
+    public static final long STAGGER_MS = 250;
+    public static final long TIMEOUT_MS = 10 * 1000;
+
+    // audio frames are found within the first bytes of a stream
+    private static final int AUDIO_PROBE_SIZE = 4 * 1024;
+
+    private final HttpTransport mTransport;
+    private final Object mLock = new Object();
+    private final List<HttpResponse> mResponses = new ArrayList<HttpResponse>();
+    private String mWinner;
+    private int mFailures;
+    private boolean mFinished;
+    private boolean mCancelled;
+
+    /**
+     * @param transport the transport connecting to the mirrors
+     */
+    public MirrorRacer(final HttpTransport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * Connects to the mirrors until one of them sends audio. Blocks until then.
+     *
+     * @param mirrors the urls of the mirrors, the most likely to win first
+     * @return the url of the mirror that sent audio first
+     * @throws InterruptedIOException if the race was cancelled or the thread interrupted
+     * @throws IOException            if no mirror sent audio
+     */
+    public String race(final List<String> mirrors) throws IOException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        try {
+            synchronized (mLock) {
+                for (int i = 0; i < mirrors.size() && !mCancelled; i++) {
+                    startAttempt(mirrors.get(i));
+                    long start = System.currentTimeMillis();
+                    int failures = mFailures;
+                    // the next mirror starts after the stagger or as soon as one fails
+                    while (mWinner == null && mFailures == failures && i < mirrors.size() - 1
+                            && !mCancelled) {
+                        long remaining = STAGGER_MS - (System.currentTimeMillis() - start);
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        mLock.wait(remaining);
+                    }
+                    if (mWinner != null) {
+                        return mWinner;
+                    }
+                }
+
+                while (mWinner == null && mFailures < mirrors.size() && !mCancelled) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    mLock.wait(remaining);
+                }
+                if (mCancelled) {
+                    throw new InterruptedIOException("Race cancelled: " + mirrors);
+                }
+                if (mWinner == null) {
+                    throw new IOException("No mirror sent audio: " + mirrors);
+                }
+                return mWinner;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Race interrupted: " + mirrors);
+        } finally {
+            finish();
+        }
+    }
+
+    /**
+     * Stops the race, from any thread: {@link #race(List)} throws and the connections are closed
+     */
+    public void cancel() {
+        synchronized (mLock) {
+            mCancelled = true;
+            mLock.notifyAll();
+        }
+        finish();
+    }
+
+    private void startAttempt(final String url) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean audio = false;
+                try {
+                    audio = connect(url);
+                } catch (IOException e) {
+                    // failed
+                }
+                synchronized (mLock) {
+                    if (audio && mWinner == null) {
+                        mWinner = url;
+                    } else {
+                        mFailures++;
+                    }
+                    mLock.notifyAll();
+                }
+            }
+        }, MirrorRacer.class.getSimpleName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return true if the mirror sent audio
+     */
+    private boolean connect(final String url) throws IOException {
+        synchronized (mLock) {
+            if (mFinished) {
+                return false;
+            }
+        }
+        HttpResponse response = mTransport.get(url, null);
+        synchronized (mLock) {
+            if (mFinished) {
+                response.close();
+                return false;
+            }
+            mResponses.add(response);
+        }
+        try {
+            String contentType = response.getContentType();
+            if (!response.isSuccessful()) {
+                return false;
+            }
+            if (contentType != null && contentType.toLowerCase(Locale.US).startsWith("text/")) {
+                return false;
+            }
+            InputStream input = response.getBody();
+            byte[] probe = new byte[AUDIO_PROBE_SIZE];
+            int length = 0;
+            int read;
+            while (length < probe.length
+                    && (read = input.read(probe, length, probe.length - length)) != -1) {
+                length += read;
+                if (isAudio(probe, length)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            // the stream never ends, the connection is closed
+            response.close();
+        }
+    }
+
+    /**
+     * Closes the connections still open, the race is over
+     */
+    private void finish() {
+        List<HttpResponse> responses;
+        synchronized (mLock) {
+            mFinished = true;
+            responses = new ArrayList<HttpResponse>(mResponses);
+            mResponses.clear();
+        }
+        for (HttpResponse response : responses) {
+            response.close();
+        }
+    }
+
+    /**
+     * @return true if the bytes contain an MP3 or AAC frame header, start with an ID3 tag or an
+     * Ogg page
+     */
+    /*package*/ static boolean isAudio(final byte[] bytes, final int length) {
+        if (startsWith(bytes, length, "ID3") || startsWith(bytes, length, "OggS")) {
+            return true;
+        }
+        // the frame sync: 11 bits set
+        for (int i = 0; i < length - 1; i++) {
+            if ((bytes[i] & 0xFF) == 0xFF && (bytes[i + 1] & 0xE0) == 0xE0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWith(final byte[] bytes, final int length, final String prefix) {
+        if (length < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (bytes[i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
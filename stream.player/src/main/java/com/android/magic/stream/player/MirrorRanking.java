@@ -0,0 +1,180 @@
+package com.android.magic.stream.player;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Ranks the mirrors of the urls played, from the results of the {@link MirrorRacer}: the last
+ * winner first, then the previous winners, most recent first. A mirror that failed is dropped from
+ * the ranking.
+ * <p/>
+ * The rankings are saved in a file, to be used after the application is restarted. The least
+ * recently used rankings are dropped when {@link #MAX_ENTRIES} urls are ranked.
+ * <p/>
+ * Thread safe. {@link #load()} and {@link #save()} block on the file system: call them on a
+ * background thread.
+ */
+/*package*/ class MirrorRanking {
+
+    public static final int MAX_ENTRIES = 100;
+
+    private static final String SEPARATOR = " ";
+
+    private final File mFile;
+    // serializes the reads and writes of the file
+    private final Object mFileLock = new Object();
+    private final Map<String, List<String>> mWinners =
+            new LinkedHashMap<String, List<String>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        final Map.Entry<String, List<String>> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    /**
+     * @param file the file storing the rankings
+     */
+    public MirrorRanking(final File file) {
+        mFile = file;
+    }
+
+    /**
+     * @param url     the url played
+     * @param mirrors the mirrors of the url
+     * @return the mirror that won the last race and didn't fail since or null if there is none
+     */
+    public synchronized String getPreferred(final String url, final List<String> mirrors) {
+        List<String> winners = mWinners.get(url);
+        if (winners == null) {
+            return null;
+        }
+        for (String winner : winners) {
+            if (mirrors.contains(winner)) {
+                return winner;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param url     the url played
+     * @param mirrors the mirrors of the url
+     * @return the mirrors, the previous winners first
+     */
+    public synchronized List<String> rank(final String url, final List<String> mirrors) {
+        List<String> ranked = new ArrayList<String>(mirrors.size());
+        List<String> winners = mWinners.get(url);
+        if (winners != null) {
+            for (String winner : winners) {
+                if (mirrors.contains(winner)) {
+                    ranked.add(winner);
+                }
+            }
+        }
+        for (String mirror : mirrors) {
+            if (!ranked.contains(mirror)) {
+                ranked.add(mirror);
+            }
+        }
+        return ranked;
+    }
+
+    /**
+     * @param url    the url played
+     * @param mirror the mirror that sent audio first
+     */
+    public synchronized void onWinner(final String url, final String mirror) {
+        List<String> winners = mWinners.get(url);
+        if (winners == null) {
+            winners = new ArrayList<String>();
+            mWinners.put(url, winners);
+        }
+        winners.remove(mirror);
+        winners.add(0, mirror);
+    }
+
+    /**
+     * @param url    the url played
+     * @param mirror the mirror that failed
+     */
+    public synchronized void onFailure(final String url, final String mirror) {
+        List<String> winners = mWinners.get(url);
+        if (winners != null) {
+            winners.remove(mirror);
+            if (winners.isEmpty()) {
+                mWinners.remove(url);
+            }
+        }
+    }
+
+    /**
+     * Reads the rankings saved. The rankings changed since the ranking was created are kept.
+     */
+    public void load() {
+        Properties properties = new Properties();
+        synchronized (mFileLock) {
+            InputStream input = null;
+            try {
+                input = new FileInputStream(mFile);
+                properties.load(input);
+            } catch (IOException e) {
+                // nothing saved yet
+                return;
+            } finally {
+                IoUtils.closeQuietly(input);
+            }
+        }
+
+        synchronized (this) {
+            for (Object key : properties.keySet()) {
+                String url = (String) key;
+                if (!mWinners.containsKey(url)) {
+                    mWinners.put(url, new ArrayList<String>(
+                            Arrays.asList(properties.getProperty(url).split(SEPARATOR))));
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the rankings
+     */
+    public void save() {
+        Properties properties = new Properties();
+        synchronized (this) {
+            for (Map.Entry<String, List<String>> entry : mWinners.entrySet()) {
+                StringBuilder winners = new StringBuilder();
+                for (String winner : entry.getValue()) {
+                    if (winners.length() > 0) {
+                        winners.append(SEPARATOR);
+                    }
+                    winners.append(winner);
+                }
+                properties.setProperty(entry.getKey(), winners.toString());
+            }
+        }
+
+        synchronized (mFileLock) {
+            OutputStream output = null;
+            try {
+                output = new FileOutputStream(mFile);
+                properties.store(output, null);
+            } catch (IOException e) {
+                // the mirrors will be raced again after a restart
+            } finally {
+                IoUtils.closeQuietly(output);
+            }
+        }
+    }
+}
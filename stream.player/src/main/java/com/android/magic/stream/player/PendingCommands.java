@@ -0,0 +1,116 @@
+package com.android.magic.stream.player;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The commands given to the {@link StreamPlayer} before it's bound to the
+ * {@link MediaPlayerService}, replayed in order once it's bound.
+ * <p/>
+ * The commands superseded by a later one are dropped when the later one is added: only the last
+ * command playing, pausing or stopping the playback is kept, a stream prepared twice is prepared
+ * once and a list of preloaded streams replaces the streams prepared or preloaded before. At most
+ * {@link #MAX_COMMANDS} are kept, the oldest one is dropped when there are more.
+ * <p/>
+ * Not thread safe: used on the main thread only.
+ */
+/*package*/ class PendingCommands {
+
+    public static final int MAX_COMMANDS = 16;
+
+    private static final String LOG_TAG = PendingCommands.class.getSimpleName();
+
+    /**
+     * The kinds of commands, deciding which commands supersede which
+     */
+    public enum Kind {
+        /**
+         * Plays, pauses or stops the playback, superseding the previous such commands
+         */
+        PLAYBACK,
+        /**
+         * Prepares a stream, superseding the previous preparation of the same stream
+         */
+        PREPARE,
+        /**
+         * Prepares a list of streams, superseding the previous preparations
+         */
+        PRELOAD
+    }
+
+    private static final class Command {
+        final Kind mKind;
+        final String mKey;
+        final Runnable mAction;
+
+        Command(final Kind kind, final String key, final Runnable action) {
+            mKind = kind;
+            mKey = key;
+            mAction = action;
+        }
+
+        boolean isSupersededBy(final Command command) {
+            switch (command.mKind) {
+                case PLAYBACK:
+                    return mKind == Kind.PLAYBACK;
+                case PREPARE:
+                    return mKind == Kind.PREPARE && mKey.equals(command.mKey);
+                case PRELOAD:
+                    return mKind == Kind.PREPARE || mKind == Kind.PRELOAD;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    private final LinkedList<Command> mCommands = new LinkedList<Command>();
+
+    /**
+     * Queues the command, dropping the commands it supersedes
+     *
+     * @param kind   the kind of the command
+     * @param key    the stream the command is about, for the {@link Kind#PREPARE} commands
+     * @param action runs the command, once bound
+     */
+    public void add(final Kind kind, final String key, final Runnable action) {
+        Command command = new Command(kind, key, action);
+        Iterator<Command> iterator = mCommands.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isSupersededBy(command)) {
+                iterator.remove();
+            }
+        }
+        mCommands.addLast(command);
+        if (mCommands.size() > MAX_COMMANDS) {
+            Command dropped = mCommands.removeFirst();
+            Log.w(LOG_TAG, "too many pending commands, dropped " + dropped.mKind);
+        }
+    }
+
+    public boolean isEmpty() {
+        return mCommands.isEmpty();
+    }
+
+    /**
+     * Runs the commands in the order they were added and forgets them
+     */
+    public void replay() {
+        // a command run may queue another one, e.g. if the service disconnects meanwhile
+        List<Command> commands = new ArrayList<Command>(mCommands);
+        mCommands.clear();
+        for (Command command : commands) {
+            command.mAction.run();
+        }
+    }
+
+    /**
+     * Forgets the commands without running them
+     */
+    public void clear() {
+        mCommands.clear();
+    }
+}
@@ -0,0 +1,80 @@
+package com.android.magic.stream.player;
+
+import java.util.List;
+
+/**
+ * Plays the streams for the {@link MediaPlayerService}: the {@link MediaPlayerThread} plays them
+ * with the {@link android.media.MediaPlayer}, the {@link HeadlessPlaybackEngine} consumes them
+ * without playing them, off the device.
+ * <p/>
+ * The methods only queue a command and return, the commands run one after the other. The
+ * commands playing or stopping a stream drop the commands queued before them. The engine reports
+ * the progress of the playback to its {@link IMediaPlayerThreadClient}.
+ */
+/*default*/ interface PlaybackEngine {
+
+    /**
+     * Starts the engine, before any command is queued
+     */
+    public void start();
+
+    /**
+     * Plays the stream, replacing the current one. The commands queued before are dropped.
+     *
+     * @param station the url of the stream
+     */
+    public void initializePlayer(String station);
+
+    /**
+     * Prepares the stream in advance, so that {@link #initializePlayer(String)} can start it
+     * without waiting. Ignored by the engines that can't prepare in advance.
+     *
+     * @param station the url of the stream
+     */
+    public void preparePlayer(String station);
+
+    /**
+     * Prepares the streams in advance, in order, as long as there is room, and releases the ones
+     * prepared for other streams
+     *
+     * @param stations the urls of the streams likely to be played next
+     */
+    public void preparePlayers(List<String> stations);
+
+    /**
+     * Releases the streams prepared in advance
+     */
+    public void releasePreparedPlayers();
+
+    /**
+     * Resumes the playback, if it's paused
+     */
+    public void startMediaPlayer();
+
+    /**
+     * Pauses the playback
+     *
+     * @param keepConnection true if the stream is still received while paused
+     */
+    public void pauseMediaPlayer(boolean keepConnection);
+
+    /**
+     * Stops the playback and notifies the client. The commands queued before are dropped.
+     */
+    public void stopMediaPlayer();
+
+    /**
+     * Stops the playback without notifying the client. The commands queued before are dropped.
+     */
+    public void resetMediaPlayer();
+
+    /**
+     * Releases everything and stops the engine. No command is run afterwards.
+     */
+    public void quit();
+
+    /**
+     * @return the state of the playback, as of the last command or notification handled
+     */
+    public PlayerState getPlayerState();
+}
@@ -0,0 +1,93 @@
+package com.android.magic.stream.player;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Snapshot of the quality of experience of the playback, per station: how long the audio takes
+ * to start, how often and how long it stalls, the errors and how late the track changes are
+ * detected. Use {@link #toJson()} to export it.
+ * <p/>
+ * Instances are immutable.
+ */
+public final class PlaybackMetrics {
+
+    private final long mTimestamp;
+    private final long mSinceTimestamp;
+    private final Map<String, StationMetrics> mStations;
+
+    /*package*/ PlaybackMetrics(final long timestamp, final long sinceTimestamp,
+                                final Map<String, StationMetrics> stations) {
+        mTimestamp = timestamp;
+        mSinceTimestamp = sinceTimestamp;
+        mStations = Collections.unmodifiableMap(stations);
+    }
+
+    /**
+     * @return the time of the snapshot, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * @return the time the metrics started being recorded, in milliseconds since the epoch
+     */
+    public long getSinceTimestamp() {
+        return mSinceTimestamp;
+    }
+
+    /**
+     * @return the metrics of every station played, by url
+     */
+    public Map<String, StationMetrics> getStations() {
+        return mStations;
+    }
+
+    /**
+     * @return the metrics of the station or null if the station wasn't played
+     */
+    public StationMetrics getStation(final String url) {
+        return mStations.get(url);
+    }
+
+    /**
+     * @return the metrics as a JSON object
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"timestamp\":").append(mTimestamp)
+                .append(",\"since\":").append(mSinceTimestamp)
+                .append(",\"stations\":[");
+        boolean first = true;
+        for (StationMetrics station : mStations.values()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            station.appendJson(json);
+        }
+        return json.append("]}").toString();
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+
+    /*package*/
+    static void appendJsonString(final StringBuilder json, final String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,74 @@
+package com.android.magic.stream.player;
+
+import android.support.annotation.NonNull;
+
+/**
+ * A track played on a station, as announced by the stream title of its metadata, and when it
+ * started.
+ * <p/>
+ * Instances are immutable.
+ */
+public final class PlayedTrack {
+
+    private final TrackMetadata mMetadata;
+    private final long mPlayedAt;
+
+    /**
+     * @param streamTitle the stream title, usually "artist - title"
+     * @param playedAt    when the track started, in milliseconds since the epoch
+     */
+    /*package*/ PlayedTrack(@NonNull final String streamTitle, final long playedAt) {
+        mMetadata = TrackMetadata.ofStreamTitle(streamTitle);
+        mPlayedAt = playedAt;
+    }
+
+    /**
+     * @return the stream title, usually "artist - title"
+     */
+    public String getStreamTitle() {
+        return mMetadata.getStreamTitle();
+    }
+
+    /**
+     * @return the artist, or null if the stream title doesn't contain it
+     */
+    public String getArtist() {
+        return mMetadata.getArtist();
+    }
+
+    /**
+     * @return the title of the track
+     */
+    public String getTitle() {
+        return mMetadata.getTitle();
+    }
+
+    /**
+     * @return when the track started, in milliseconds since the epoch
+     */
+    public long getPlayedAt() {
+        return mPlayedAt;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PlayedTrack)) {
+            return false;
+        }
+        PlayedTrack other = (PlayedTrack) o;
+        return mPlayedAt == other.mPlayedAt && mMetadata.equals(other.mMetadata);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * mMetadata.hashCode() + (int) (mPlayedAt ^ (mPlayedAt >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "PlayedTrack " + getStreamTitle() + " at " + mPlayedAt;
+    }
+}
@@ -0,0 +1,32 @@
+package com.android.magic.stream.player;
+
+/**
+ * States of the player, emitted by {@link StreamPlayer#observePlayerState()}
+ */
+public enum PlayerState {
+
+    /**
+     * No stream is playing, the player is released
+     */
+    IDLE,
+
+    /**
+     * The player connects to the stream and buffers the first audio
+     */
+    PREPARING,
+
+    /**
+     * The stream is playing
+     */
+    PLAYING,
+
+    /**
+     * The stream is paused, the player is kept prepared
+     */
+    PAUSED,
+
+    /**
+     * The player failed, it is released
+     */
+    ERROR
+}
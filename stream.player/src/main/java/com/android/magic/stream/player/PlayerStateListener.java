@@ -0,0 +1,16 @@
+package com.android.magic.stream.player;
+
+/**
+ * Listener notified when the state of the player changes. Implement it in a
+ * {@link StreamPlayerListener} registered in the {@link MediaPlayerService} to also receive the
+ * states.
+ */
+/*package*/ interface PlayerStateListener {
+
+    /**
+     * Notifies when the state of the player has changed
+     *
+     * @param state the new state
+     */
+    public void onPlayerStateChanged(final PlayerState state);
+}
@@ -0,0 +1,306 @@
+package com.android.magic.stream.player;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Parses the playlist files linking to the streams of a station: PLS, M3U, M3U8 and XSPF.
+ * <p/>
+ * The format is detected from the content, not from the url or the content type, which are often
+ * wrong. The playlist is read line by line, or tag by tag for XSPF, and never held in memory
+ * entirely. The relative urls are resolved against the url of the playlist.
+ * <p/>
+ * HLS playlists, M3U8 files with #EXT-X- tags, list the segments of a stream that the
+ * {@link android.media.MediaPlayer} plays itself. The url of such a playlist is returned as the
+ * only endpoint.
+ * <p/>
+ * Doesn't depend on the Android framework.
+ */
+/*package*/ final class PlaylistParser {
+
+    /**
+     * Playlists are small, a larger file is probably a stream
+     */
+    public static final int MAX_PLAYLIST_SIZE = 64 * 1024;
+
+    private static final String CHARSET = "UTF-8";
+    private static final char BYTE_ORDER_MARK = '\uFEFF';
+
+    private static final String PLS_HEADER = "[playlist]";
+    private static final String PLS_FILE = "file";
+    private static final String M3U_HLS_TAG = "#EXT-X-";
+    private static final String XSPF_LOCATION = "location";
+
+    private static final String[] PLAYLIST_EXTENSIONS = {".pls", ".m3u", ".m3u8", ".xspf"};
+    private static final String[] PLAYLIST_CONTENT_TYPES = {
+            "audio/x-scpls",
+            "audio/scpls",
+            "audio/x-mpegurl",
+            "audio/mpegurl",
+            "application/x-mpegurl",
+            "application/vnd.apple.mpegurl",
+            "application/xspf+xml"
+    };
+
+    private PlaylistParser() {
+    }
+
+    /**
+     * @return true if the path of the url ends with the extension of a playlist
+     */
+    public static boolean isPlaylistUrl(final String url) {
+        String path;
+        try {
+            path = new URL(url).getPath().toLowerCase(Locale.US);
+        } catch (MalformedURLException e) {
+            return false;
+        }
+        for (String extension : PLAYLIST_EXTENSIONS) {
+            if (path.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the content type is the type of a playlist
+     */
+    public static boolean isPlaylistContentType(final String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase(Locale.US);
+        for (String playlistType : PLAYLIST_CONTENT_TYPES) {
+            if (type.startsWith(playlistType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses a playlist
+     *
+     * @param input       the content of the playlist, at most {@link #MAX_PLAYLIST_SIZE} bytes are
+     *                    read
+     * @param playlistUrl the url of the playlist, to resolve the relative urls
+     * @return the urls of the streams, in the order of the playlist, possibly empty
+     * @throws IOException if the playlist cannot be read
+     */
+    public static List<String> parse(final InputStream input, final String playlistUrl)
+            throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new BoundedInputStream(input, MAX_PLAYLIST_SIZE), CHARSET));
+        String first = nextNonEmptyLine(reader);
+        List<String> urls = new ArrayList<String>();
+        if (first == null) {
+            return urls;
+        }
+        if (first.charAt(0) == BYTE_ORDER_MARK) {
+            first = first.substring(1).trim();
+        }
+        if (first.regionMatches(true, 0, PLS_HEADER, 0, PLS_HEADER.length())) {
+            parsePls(reader, playlistUrl, urls);
+        } else if (first.startsWith("<")) {
+            parseXspf(first, reader, playlistUrl, urls);
+        } else if (!parseM3u(first, reader, playlistUrl, urls)) {
+            urls.clear();
+            urls.add(playlistUrl);
+        }
+        return urls;
+    }
+
+    /**
+     * Parses the "FileN=url" entries, ignoring the titles and lengths
+     */
+    private static void parsePls(final BufferedReader reader, final String playlistUrl,
+                                 final List<String> urls) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            int equals = line.indexOf('=');
+            if (equals > PLS_FILE.length()
+                    && line.regionMatches(true, 0, PLS_FILE, 0, PLS_FILE.length())) {
+                addUrl(line.substring(equals + 1).trim(), playlistUrl, urls);
+            }
+        }
+    }
+
+    /**
+     * Parses the lines that aren't comments or tags
+     *
+     * @return false if the playlist is an HLS playlist
+     */
+    private static boolean parseM3u(final String first, final BufferedReader reader,
+                                    final String playlistUrl, final List<String> urls)
+            throws IOException {
+        String line = first;
+        do {
+            line = line.trim();
+            if (line.startsWith(M3U_HLS_TAG)) {
+                return false;
+            }
+            if (line.length() > 0 && line.charAt(0) != '#') {
+                addUrl(line, playlistUrl, urls);
+            }
+        } while ((line = reader.readLine()) != null);
+        return true;
+    }
+
+    /**
+     * Parses the text of the location elements. The other elements are skipped without being
+     * parsed.
+     */
+    private static void parseXspf(final String first, final Reader reader,
+                                  final String playlistUrl, final List<String> urls)
+            throws IOException {
+        Reader input = new PrefixedReader(first, reader);
+        StringBuilder tag = new StringBuilder();
+        StringBuilder text = new StringBuilder();
+        boolean inTag = false;
+        boolean inLocation = false;
+        int c;
+        while ((c = input.read()) != -1) {
+            if (c == '<') {
+                inTag = true;
+                tag.setLength(0);
+            } else if (c == '>' && inTag) {
+                inTag = false;
+                String name = tag.toString().trim();
+                if (name.equalsIgnoreCase(XSPF_LOCATION)) {
+                    inLocation = true;
+                    text.setLength(0);
+                } else if (inLocation && name.equalsIgnoreCase("/" + XSPF_LOCATION)) {
+                    inLocation = false;
+                    addUrl(decodeEntities(text.toString().trim()), playlistUrl, urls);
+                }
+            } else if (inTag) {
+                tag.append((char) c);
+            } else if (inLocation) {
+                text.append((char) c);
+            }
+        }
+    }
+
+    private static void addUrl(final String entry, final String playlistUrl,
+                               final List<String> urls) {
+        if (entry.length() == 0) {
+            return;
+        }
+        if (entry.indexOf("://") > 0) {
+            // absolute, maybe with a scheme unknown to java.net.URL, e.g. rtsp
+            urls.add(entry);
+            return;
+        }
+        try {
+            urls.add(new URL(new URL(playlistUrl), entry).toString());
+        } catch (MalformedURLException e) {
+            // not an url, e.g. a local file of the playlist's author
+        }
+    }
+
+    private static String decodeEntities(final String text) {
+        return text.replace("&lt;", "<")
+                .replace("&gt;", ">")
+                .replace("&quot;", "\"")
+                .replace("&apos;", "'")
+                .replace("&amp;", "&");
+    }
+
+    private static String nextNonEmptyLine(final BufferedReader reader) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.length() > 0) {
+                return line;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads a string and then the rest of a reader
+     */
+    private static final class PrefixedReader extends Reader {
+
+        private final String mPrefix;
+        private final Reader mReader;
+        private int mPosition;
+
+        PrefixedReader(final String prefix, final Reader reader) {
+            mPrefix = prefix;
+            mReader = reader;
+        }
+
+        @Override
+        public int read(final char[] buffer, final int offset, final int length)
+                throws IOException {
+            if (mPosition < mPrefix.length()) {
+                int count = Math.min(length, mPrefix.length() - mPosition);
+                mPrefix.getChars(mPosition, mPosition + count, buffer, offset);
+                mPosition += count;
+                return count;
+            }
+            return mReader.read(buffer, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mReader.close();
+        }
+    }
+
+    /**
+     * Ends the stream after a maximum number of bytes, so a stream mistaken for a playlist isn't
+     * read forever
+     */
+    private static final class BoundedInputStream extends InputStream {
+
+        private final InputStream mInput;
+        private int mRemaining;
+
+        BoundedInputStream(final InputStream input, final int maxBytes) {
+            mInput = input;
+            mRemaining = maxBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int b = mInput.read();
+            if (b != -1) {
+                mRemaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length)
+                throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int read = mInput.read(buffer, offset, Math.min(length, mRemaining));
+            if (read > 0) {
+                mRemaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mInput.close();
+        }
+    }
+}
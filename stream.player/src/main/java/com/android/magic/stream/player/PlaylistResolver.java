@@ -0,0 +1,122 @@
+package com.android.magic.stream.player;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Resolves the urls played into the urls of the streams: a playlist is downloaded and parsed by
+ * the {@link PlaylistParser}, the url of a stream is its own endpoint. The endpoints are kept in
+ * an {@link EndpointCache}, so a url is resolved once until its entry expires or is invalidated.
+ * <p/>
+ * A playlist may link to other playlists, which are resolved too, up to {@link #MAX_DEPTH}
+ * levels. The playlists are downloaded through the {@link HttpTransport}, which keeps the
+ * connections alive, so the playlists of the same host are downloaded on the same connection.
+ * <p/>
+ * Thread safe. The methods block on the network: call them on a background thread.
+ */
+/*package*/ class PlaylistResolver {
+
+    public static final int MAX_DEPTH = 3;
+
+    private static final String[] STREAM_CONTENT_TYPES = {"audio/", "video/", "application/ogg"};
+
+    private final EndpointCache mCache;
+    private final HttpTransport mTransport;
+
+    /**
+     * @param cache     the cache of the endpoints resolved
+     * @param transport the transport downloading the playlists
+     */
+    public PlaylistResolver(final EndpointCache cache, final HttpTransport transport) {
+        mCache = cache;
+        mTransport = transport;
+    }
+
+    /**
+     * @return the cache of the endpoints resolved
+     */
+    public EndpointCache getCache() {
+        return mCache;
+    }
+
+    /**
+     * Resolves the url, from the cache if it was resolved recently
+     *
+     * @param url the url played
+     * @return the urls of the streams, at least one, the url itself if it's a stream
+     * @throws IOException if the url cannot be downloaded or the playlist lists no stream
+     */
+    public List<String> resolve(final String url) throws IOException {
+        List<String> endpoints = mCache.get(url);
+        if (endpoints != null) {
+            return endpoints;
+        }
+        endpoints = fetch(url, 1);
+        if (endpoints.isEmpty()) {
+            throw new IOException("No stream in the playlist " + url);
+        }
+        mCache.put(url, endpoints);
+        mCache.save();
+        return endpoints;
+    }
+
+    private List<String> fetch(final String url, final int depth) throws IOException {
+        List<String> entries;
+        HttpResponse response = mTransport.get(url, null);
+        try {
+            if (!response.isSuccessful()) {
+                throw new IOException("Unexpected response " + response.getStatusCode() + " for "
+                        + url);
+            }
+            String contentType = response.getContentType();
+            boolean playlist = PlaylistParser.isPlaylistContentType(contentType)
+                    || (PlaylistParser.isPlaylistUrl(url) && !isStreamContentType(contentType));
+            if (!playlist) {
+                return Collections.singletonList(url);
+            }
+            // the relative urls are relative to the playlist's url, after the redirects
+            entries = PlaylistParser.parse(response.getBody(), response.getUrl().toString());
+        } finally {
+            // released before the nested playlists are downloaded, which may reuse it
+            response.close();
+        }
+
+        List<String> endpoints = new ArrayList<String>(entries.size());
+        for (String entry : entries) {
+            if (depth < MAX_DEPTH && !entry.equals(url) && PlaylistParser.isPlaylistUrl(entry)) {
+                try {
+                    addAll(endpoints, fetch(entry, depth + 1));
+                } catch (IOException e) {
+                    // the other entries may work
+                }
+            } else if (!endpoints.contains(entry)) {
+                endpoints.add(entry);
+            }
+        }
+        return endpoints;
+    }
+
+    private static void addAll(final List<String> endpoints, final List<String> entries) {
+        for (String entry : entries) {
+            if (!endpoints.contains(entry)) {
+                endpoints.add(entry);
+            }
+        }
+    }
+
+    private static boolean isStreamContentType(final String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase(Locale.US);
+        for (String streamType : STREAM_CONTENT_TYPES) {
+            if (type.startsWith(streamType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
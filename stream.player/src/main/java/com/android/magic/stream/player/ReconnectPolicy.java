@@ -0,0 +1,67 @@
+package com.android.magic.stream.player;
+
+import java.util.Random;
+
+/**
+ * How the player reconnects after the connection to the stream is lost.
+ * <p/>
+ * The reconnections are delayed with an exponential backoff: the delay starts at the initial
+ * delay and doubles after every attempt, up to the maximum delay. Each delay is randomized
+ * between half and all of its value, so the players disconnected by the same outage don't
+ * reconnect to the server all at once. After the maximum number of attempts, the error is
+ * reported to the {@link StreamPlayerListener}.
+ * <p/>
+ * Only the errors that are likely to be temporary are retried, see
+ * {@link StreamPlayerError#isRetryable()}.
+ * <p/>
+ * Instances are immutable and thread safe.
+ */
+public final class ReconnectPolicy {
+
+    /**
+     * Up to 6 attempts over about a minute
+     */
+    public static final ReconnectPolicy DEFAULT = new ReconnectPolicy(6, 1000, 30 * 1000);
+
+    private final int mMaxAttempts;
+    private final long mInitialDelayMillis;
+    private final long mMaxDelayMillis;
+    private final Random mRandom = new Random();
+
+    /**
+     * @param maxAttempts        the maximum number of consecutive reconnections
+     * @param initialDelayMillis the delay before the first reconnection, in milliseconds
+     * @param maxDelayMillis     the maximum delay before a reconnection, in milliseconds
+     */
+    public ReconnectPolicy(final int maxAttempts, final long initialDelayMillis,
+                           final long maxDelayMillis) {
+        if (maxAttempts < 0 || initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis) {
+            throw new IllegalArgumentException("Invalid reconnect policy " + maxAttempts + " "
+                    + initialDelayMillis + " " + maxDelayMillis);
+        }
+        mMaxAttempts = maxAttempts;
+        mInitialDelayMillis = initialDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * @return the maximum number of consecutive reconnections
+     */
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * @param attempt the number of reconnections already attempted, from 0
+     * @return the randomized delay before the reconnection, in milliseconds
+     */
+    public long getDelayMillis(final int attempt) {
+        long delay = mInitialDelayMillis;
+        for (int i = 0; i < attempt && delay < mMaxDelayMillis; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, mMaxDelayMillis);
+        long half = delay / 2;
+        return half + (long) (mRandom.nextDouble() * (delay - half));
+    }
+}
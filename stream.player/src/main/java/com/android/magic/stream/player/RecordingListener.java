@@ -0,0 +1,18 @@
+package com.android.magic.stream.player;
+
+import java.io.IOException;
+
+/**
+ * Listener of the recording of the stream. Implement it in a {@link StreamPlayerListener} to also
+ * be notified when the recording fails.
+ */
+public interface RecordingListener {
+
+    /**
+     * Notifies when the recording can't be written, e.g. because the disk is full. The recording
+     * is stopped, the files written until then are kept.
+     *
+     * @param error the error writing the recording
+     */
+    public void onRecordingFailed(final IOException error);
+}
@@ -0,0 +1,68 @@
+package com.android.magic.stream.player;
+
+/**
+ * When the player gives up on a stream that connected but doesn't play, instead of waiting for
+ * the {@link android.media.MediaPlayer} to time out, which can take more than 30 seconds.
+ * <p/>
+ * A stream is stalled when the player isn't prepared before the prepare deadline, when the player
+ * waits for data for longer than the rebuffer deadline or, when the stream is played through the
+ * local proxy, when the stream received over the rate window is well below the bitrate the stream
+ * announced. A stream received too slowly while the proxy still has buffered audio is only
+ * reconnected by the proxy, the player keeps playing. Otherwise a stalled stream fails with
+ * {@link StreamPlayerError#STREAM_STALLED}, which is retried by the {@link ReconnectPolicy}.
+ * <p/>
+ * Instances are immutable and thread safe.
+ */
+public final class StallPolicy {
+
+    /**
+     * A prepare deadline of 10 seconds, a rebuffer deadline of 8 seconds and a stream received
+     * at less than half its bitrate over 10 seconds
+     */
+    public static final StallPolicy DEFAULT = new StallPolicy(10 * 1000, 8 * 1000, 10 * 1000,
+            0.5f);
+
+    private final long mPrepareDeadlineMillis;
+    private final long mRebufferDeadlineMillis;
+    private final long mRateWindowMillis;
+    private final float mMinRateRatio;
+
+    /**
+     * @param prepareDeadlineMillis  how long the player may take to prepare, from the connection
+     *                               to the stream, in milliseconds
+     * @param rebufferDeadlineMillis how long the player may wait for data while playing, in
+     *                               milliseconds
+     * @param rateWindowMillis       how long the stream is received before its rate is compared
+     *                               to its bitrate, in milliseconds
+     * @param minRateRatio           the minimum rate of the stream, as a ratio of its bitrate,
+     *                               e.g. 0.5 for half of the bitrate
+     */
+    public StallPolicy(final long prepareDeadlineMillis, final long rebufferDeadlineMillis,
+                       final long rateWindowMillis, final float minRateRatio) {
+        if (prepareDeadlineMillis <= 0 || rebufferDeadlineMillis <= 0 || rateWindowMillis <= 0
+                || minRateRatio < 0 || minRateRatio >= 1) {
+            throw new IllegalArgumentException("Invalid stall policy " + prepareDeadlineMillis
+                    + " " + rebufferDeadlineMillis + " " + rateWindowMillis + " " + minRateRatio);
+        }
+        mPrepareDeadlineMillis = prepareDeadlineMillis;
+        mRebufferDeadlineMillis = rebufferDeadlineMillis;
+        mRateWindowMillis = rateWindowMillis;
+        mMinRateRatio = minRateRatio;
+    }
+
+    public long getPrepareDeadlineMillis() {
+        return mPrepareDeadlineMillis;
+    }
+
+    public long getRebufferDeadlineMillis() {
+        return mRebufferDeadlineMillis;
+    }
+
+    public long getRateWindowMillis() {
+        return mRateWindowMillis;
+    }
+
+    public float getMinRateRatio() {
+        return mMinRateRatio;
+    }
+}
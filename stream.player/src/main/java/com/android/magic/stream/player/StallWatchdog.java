@@ -0,0 +1,171 @@
+package com.android.magic.stream.player;
+
+/**
+ * Detects the stalls of the stream playing, following a {@link StallPolicy}: a prepare missing
+ * its deadline, a rebuffer missing its deadline or a stream received well below its bitrate.
+ * <p/>
+ * The watchdog only keeps the times of the events and a few samples of the bytes received, the
+ * player checks it periodically, e.g. every second. The times are in milliseconds, from any
+ * monotonic clock.
+ * <p/>
+ * Not thread safe: used on the thread of the player only.
+ */
+/*package*/ class StallWatchdog {
+
+    /**
+     * The causes of a stall
+     */
+    public enum Stall {
+        /**
+         * The player isn't prepared before the prepare deadline
+         */
+        PREPARE_TIMEOUT,
+        /**
+         * The player waits for data for longer than the rebuffer deadline
+         */
+        REBUFFER_TIMEOUT,
+        /**
+         * The stream is received well below its bitrate
+         */
+        LOW_BYTE_RATE
+    }
+
+    /**
+     * The bytes received or the bitrate aren't known, e.g. when the stream is played directly
+     */
+    public static final long UNKNOWN = -1;
+
+    private static final long NOT_STARTED = -1;
+    // the samples of the bytes received, enough for a rate window checked every 250 ms
+    private static final int MAX_SAMPLES = 64;
+
+    private final StallPolicy mPolicy;
+
+    private long mPrepareStart = NOT_STARTED;
+    private long mRebufferStart = NOT_STARTED;
+    private boolean mPlaying;
+
+    // ring of the samples, the oldest at mFirstSample
+    private final long[] mSampleTimes = new long[MAX_SAMPLES];
+    private final long[] mSampleBytes = new long[MAX_SAMPLES];
+    private int mFirstSample;
+    private int mSampleCount;
+
+    /**
+     * @param policy the deadlines and the minimum rate
+     */
+    public StallWatchdog(final StallPolicy policy) {
+        mPolicy = policy;
+    }
+
+    public StallPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * The player started to prepare the stream
+     */
+    public void onPrepareStart(final long now) {
+        stop();
+        mPrepareStart = now;
+    }
+
+    public void onPrepared() {
+        mPrepareStart = NOT_STARTED;
+    }
+
+    /**
+     * The player started or resumed playing, the rate is measured from now on
+     */
+    public void onPlaying() {
+        mPrepareStart = NOT_STARTED;
+        mRebufferStart = NOT_STARTED;
+        mPlaying = true;
+        mSampleCount = 0;
+    }
+
+    /**
+     * The stream was reconnected while the player plays, the rate is measured again from now on
+     */
+    public void onReconnect() {
+        mSampleCount = 0;
+    }
+
+    public void onRebufferStart(final long now) {
+        if (mPlaying && mRebufferStart == NOT_STARTED) {
+            mRebufferStart = now;
+        }
+    }
+
+    public void onRebufferEnd() {
+        mRebufferStart = NOT_STARTED;
+    }
+
+    /**
+     * The player was paused or stopped, nothing is checked until it prepares or plays again
+     */
+    public void stop() {
+        mPrepareStart = NOT_STARTED;
+        mRebufferStart = NOT_STARTED;
+        mPlaying = false;
+        mSampleCount = 0;
+    }
+
+    /**
+     * @return true if the player is preparing or playing, so it must be checked
+     */
+    public boolean isActive() {
+        return mPrepareStart != NOT_STARTED || mPlaying;
+    }
+
+    /**
+     * @param now           the time of the check
+     * @param receivedBytes the number of bytes of the stream received so far or {@link #UNKNOWN}
+     * @param bitrateKbps   the bitrate announced by the stream or {@link #UNKNOWN}
+     * @return the cause of the stall or null if the stream isn't stalled
+     */
+    public Stall check(final long now, final long receivedBytes, final long bitrateKbps) {
+        if (mPrepareStart != NOT_STARTED
+                && now - mPrepareStart >= mPolicy.getPrepareDeadlineMillis()) {
+            return Stall.PREPARE_TIMEOUT;
+        }
+        if (!mPlaying) {
+            return null;
+        }
+        if (mRebufferStart != NOT_STARTED
+                && now - mRebufferStart >= mPolicy.getRebufferDeadlineMillis()) {
+            return Stall.REBUFFER_TIMEOUT;
+        }
+        if (receivedBytes == UNKNOWN || bitrateKbps <= 0) {
+            return null;
+        }
+
+        addSample(now, receivedBytes);
+        // the oldest sample still covering the window
+        long window = mPolicy.getRateWindowMillis();
+        while (mSampleCount > 1
+                && now - mSampleTimes[(mFirstSample + 1) % MAX_SAMPLES] >= window) {
+            mFirstSample = (mFirstSample + 1) % MAX_SAMPLES;
+            mSampleCount--;
+        }
+        long elapsed = now - mSampleTimes[mFirstSample];
+        if (elapsed < window) {
+            return null;
+        }
+        // bits per millisecond are kilobits per second
+        float rateKbps = (receivedBytes - mSampleBytes[mFirstSample]) * 8f / elapsed;
+        return rateKbps < mPolicy.getMinRateRatio() * bitrateKbps ? Stall.LOW_BYTE_RATE : null;
+    }
+
+    private void addSample(final long now, final long receivedBytes) {
+        if (mSampleCount == MAX_SAMPLES) {
+            // checked too often for the window, the oldest sample is dropped
+            mFirstSample = (mFirstSample + 1) % MAX_SAMPLES;
+            mSampleCount--;
+        }
+        int index = (mFirstSample + mSampleCount) % MAX_SAMPLES;
+        mSampleTimes[index] = now;
+        mSampleBytes[index] = receivedBytes;
+        mSampleCount++;
+    }
+}
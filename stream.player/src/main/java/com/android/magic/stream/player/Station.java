@@ -0,0 +1,81 @@
+package com.android.magic.stream.player;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A station whose program is published in several bitrates. When a station has more than one
+ * {@link StationVariant}, the player measures the throughput of the connection and switches
+ * between the variants, so the playback doesn't stall on slow networks and uses the best quality
+ * on fast ones.
+ * <p/>
+ * The variants must use the same audio format, e.g. MP3, since the player switches between them
+ * without being restarted.
+ * <p/>
+ * Instances are immutable.
+ */
+public final class Station {
+
+    private final String mId;
+    private final List<StationVariant> mVariants;
+
+    /**
+     * @param id       the id of the station, e.g. its name
+     * @param variants the variants of the station, at least one
+     */
+    public Station(@NonNull final String id, @NonNull final List<StationVariant> variants) {
+        if (variants.isEmpty()) {
+            throw new IllegalArgumentException("A station needs at least one variant");
+        }
+        mId = id;
+        List<StationVariant> sorted = new ArrayList<StationVariant>(variants);
+        Collections.sort(sorted, new Comparator<StationVariant>() {
+            @Override
+            public int compare(final StationVariant lhs, final StationVariant rhs) {
+                return lhs.getBitrateKbps() < rhs.getBitrateKbps() ? -1
+                        : (lhs.getBitrateKbps() == rhs.getBitrateKbps() ? 0 : 1);
+            }
+        });
+        mVariants = Collections.unmodifiableList(sorted);
+    }
+
+    /**
+     * @return the id of the station
+     */
+    public String getId() {
+        return mId;
+    }
+
+    /**
+     * @return the variants of the station, from the lowest to the highest bitrate
+     */
+    public List<StationVariant> getVariants() {
+        return mVariants;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Station)) {
+            return false;
+        }
+        Station other = (Station) o;
+        return mId.equals(other.mId) && mVariants.equals(other.mVariants);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * mId.hashCode() + mVariants.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "Station " + mId + " " + mVariants;
+    }
+}
@@ -0,0 +1,378 @@
+package com.android.magic.stream.player;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A directory of stations, searchable by the prefixes of the words of their names and filtered by
+ * genre and country.
+ * <p/>
+ * The catalog is an index file written by a {@link StationCatalogWriter} and mapped in memory:
+ * opening it reads the header only, the pages of the file are loaded by the system when a search
+ * reads them and the stations are decoded only when they are returned. A search looks up sorted
+ * tables with binary searches, so it takes microseconds even for tens of thousands of stations,
+ * and doesn't depend on the size of the Java heap.
+ * <p/>
+ * The index file contains, after the header:
+ * <ul>
+ * <li>the stations, sorted by name, in records of fixed size</li>
+ * <li>the words of the names, sorted, each one with the station it belongs to</li>
+ * <li>the genres and the countries, sorted, each one with its list of stations</li>
+ * <li>the lists of stations of the genres and countries</li>
+ * <li>the strings, in UTF-8, each one stored once</li>
+ * </ul>
+ * The words, the genres and the countries are compared in lower case, without the accents of the
+ * latin letters, so "Café" is found with "cafe".
+ * <p/>
+ * Thread safe. {@link #open(File)} blocks on the file system and the searches may: call them on a
+ * background thread.
+ */
+public final class StationCatalog {
+
+    /*package*/ static final int MAGIC = 0x53504331;
+    /*package*/ static final int VERSION = 1;
+    /*package*/ static final int HEADER_SIZE = 13 * 4;
+    // name, url, genres, country, bitrate
+    /*package*/ static final int RECORD_SIZE = 5 * 4;
+    // word, station
+    /*package*/ static final int WORD_SIZE = 2 * 4;
+    // display name, key, first station, station count
+    /*package*/ static final int GROUP_SIZE = 4 * 4;
+    /*package*/ static final int NO_COUNTRY = -1;
+    /*package*/ static final int MAX_STRING_LENGTH = 0xFFFF;
+    /*package*/ static final String CHARSET = "UTF-8";
+
+    // the accented latin letters from U+00E0 to U+00FF, without their accents
+    private static final String LATIN_FOLDING = "aaaaaa\u00e6ceeeeiiiidnooooo\u00f7ouuuuy\u00fey";
+    private static final char LATIN_FOLDING_START = '\u00e0';
+
+    private final ByteBuffer mBuffer;
+    private final int mStationCount;
+    private final int mWordCount;
+    private final int mGenreCount;
+    private final int mCountryCount;
+    private final int mStationsOffset;
+    private final int mWordsOffset;
+    private final int mGenresOffset;
+    private final int mCountriesOffset;
+    private final int mListsOffset;
+    private final int mStringsOffset;
+
+    // decoded when asked for
+    private List<String> mGenres;
+    private List<String> mCountries;
+
+    private StationCatalog(final ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a station catalog");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported station catalog version " + buffer.getInt(4));
+        }
+        mStationCount = buffer.getInt(8);
+        mWordCount = buffer.getInt(12);
+        mGenreCount = buffer.getInt(16);
+        mCountryCount = buffer.getInt(20);
+        mStationsOffset = buffer.getInt(24);
+        mWordsOffset = buffer.getInt(28);
+        mGenresOffset = buffer.getInt(32);
+        mCountriesOffset = buffer.getInt(36);
+        mListsOffset = buffer.getInt(40);
+        mStringsOffset = buffer.getInt(44);
+        int stringsLength = buffer.getInt(48);
+
+        checkSection(mStationsOffset, mStationCount, RECORD_SIZE);
+        checkSection(mWordsOffset, mWordCount, WORD_SIZE);
+        checkSection(mGenresOffset, mGenreCount, GROUP_SIZE);
+        checkSection(mCountriesOffset, mCountryCount, GROUP_SIZE);
+        checkSection(mListsOffset, 0, 4);
+        checkSection(mStringsOffset, stringsLength, 1);
+    }
+
+    private void checkSection(final int offset, final int count, final int size)
+            throws IOException {
+        if (offset < HEADER_SIZE || count < 0
+                || (long) offset + (long) count * size > mBuffer.capacity()) {
+            throw new IOException("Corrupted station catalog");
+        }
+    }
+
+    /**
+     * Maps the index file in memory
+     *
+     * @param file the index file written by a {@link StationCatalogWriter}
+     * @return the catalog
+     * @throws IOException if the file cannot be read or isn't a catalog
+     */
+    public static StationCatalog open(@NonNull final File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            // the mapping stays valid after the file is closed
+            return new StationCatalog(randomAccessFile.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length()));
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * @return the number of stations
+     */
+    public int getStationCount() {
+        return mStationCount;
+    }
+
+    /**
+     * @param index the index of the station, the stations are sorted by name
+     * @return the station
+     */
+    public CatalogEntry getStation(final int index) {
+        if (index < 0 || index >= mStationCount) {
+            throw new IndexOutOfBoundsException("Invalid station " + index);
+        }
+        int record = mStationsOffset + index * RECORD_SIZE;
+        int genresRef = mBuffer.getInt(record + 8);
+        int genreCount = mBuffer.getShort(mStringsOffset + genresRef) & 0xFFFF;
+        List<String> genres = new ArrayList<String>(genreCount);
+        for (int i = 0; i < genreCount; i++) {
+            int genre = mBuffer.getShort(mStringsOffset + genresRef + 2 + i * 2) & 0xFFFF;
+            genres.add(readString(mBuffer.getInt(mGenresOffset + genre * GROUP_SIZE)));
+        }
+        int country = mBuffer.getInt(record + 12);
+        return new CatalogEntry(readString(mBuffer.getInt(record)),
+                readString(mBuffer.getInt(record + 4)),
+                genres,
+                country != NO_COUNTRY
+                        ? readString(mBuffer.getInt(mCountriesOffset + country * GROUP_SIZE))
+                        : null,
+                mBuffer.getInt(record + 16));
+    }
+
+    /**
+     * Finds the stations whose names contain words starting with the words of the query, in the
+     * genre and the country, sorted by name
+     *
+     * @param query   the beginning of the words of the name, e.g. "rad fra" for "Radio France",
+     *                or null to match all the stations
+     * @param genre   the genre of the stations or null for all the genres
+     * @param country the country of the stations or null for all the countries
+     * @param limit   the maximum number of stations returned
+     * @return the stations found, at most limit
+     */
+    public List<CatalogEntry> search(@Nullable final String query, @Nullable final String genre,
+                                     @Nullable final String country, final int limit) {
+        BitSet matches = null;
+        if (query != null) {
+            for (String word : words(query)) {
+                matches = intersect(matches, findWordPrefix(toBytes(word)));
+            }
+        }
+        if (genre != null) {
+            matches = intersect(matches, findGroup(mGenresOffset, mGenreCount, genre));
+        }
+        if (country != null) {
+            matches = intersect(matches, findGroup(mCountriesOffset, mCountryCount, country));
+        }
+
+        List<CatalogEntry> stations = new ArrayList<CatalogEntry>();
+        if (matches == null) {
+            for (int i = 0; i < mStationCount && stations.size() < limit; i++) {
+                stations.add(getStation(i));
+            }
+        } else {
+            for (int i = matches.nextSetBit(0); i >= 0 && stations.size() < limit;
+                 i = matches.nextSetBit(i + 1)) {
+                stations.add(getStation(i));
+            }
+        }
+        return stations;
+    }
+
+    /**
+     * @return the genres of the stations, sorted
+     */
+    public synchronized List<String> getGenres() {
+        if (mGenres == null) {
+            mGenres = readGroupNames(mGenresOffset, mGenreCount);
+        }
+        return mGenres;
+    }
+
+    /**
+     * @return the countries of the stations, sorted
+     */
+    public synchronized List<String> getCountries() {
+        if (mCountries == null) {
+            mCountries = readGroupNames(mCountriesOffset, mCountryCount);
+        }
+        return mCountries;
+    }
+
+    private List<String> readGroupNames(final int offset, final int count) {
+        List<String> names = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(readString(mBuffer.getInt(offset + i * GROUP_SIZE)));
+        }
+        return Collections.unmodifiableList(names);
+    }
+
+    private static BitSet intersect(final BitSet matches, final BitSet other) {
+        if (matches == null) {
+            return other;
+        }
+        matches.and(other);
+        return matches;
+    }
+
+    /**
+     * @return the stations having a word starting with the prefix
+     */
+    private BitSet findWordPrefix(final byte[] prefix) {
+        BitSet stations = new BitSet(mStationCount);
+        // the first word not before the prefix, the words starting with it follow
+        int low = 0;
+        int high = mWordCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compare(mBuffer.getInt(mWordsOffset + middle * WORD_SIZE), prefix) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        for (int i = low; i < mWordCount; i++) {
+            int word = mWordsOffset + i * WORD_SIZE;
+            if (!startsWith(mBuffer.getInt(word), prefix)) {
+                break;
+            }
+            stations.set(mBuffer.getInt(word + 4));
+        }
+        return stations;
+    }
+
+    /**
+     * @return the stations of the genre or country, none if it's unknown
+     */
+    private BitSet findGroup(final int offset, final int count, final String name) {
+        BitSet stations = new BitSet(mStationCount);
+        byte[] key = toBytes(normalize(name).trim());
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int group = offset + middle * GROUP_SIZE;
+            int comparison = compare(mBuffer.getInt(group + 4), key);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                int first = mBuffer.getInt(group + 8);
+                int size = mBuffer.getInt(group + 12);
+                for (int i = 0; i < size; i++) {
+                    stations.set(mBuffer.getInt(mListsOffset + (first + i) * 4));
+                }
+                break;
+            }
+        }
+        return stations;
+    }
+
+    /**
+     * Compares the string stored at the reference with the bytes, byte by byte
+     */
+    private int compare(final int ref, final byte[] bytes) {
+        int position = mStringsOffset + ref;
+        int length = mBuffer.getShort(position) & 0xFFFF;
+        int common = Math.min(length, bytes.length);
+        for (int i = 0; i < common; i++) {
+            int difference = (mBuffer.get(position + 2 + i) & 0xFF) - (bytes[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length - bytes.length;
+    }
+
+    private boolean startsWith(final int ref, final byte[] prefix) {
+        int position = mStringsOffset + ref;
+        if ((mBuffer.getShort(position) & 0xFFFF) < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (mBuffer.get(position + 2 + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readString(final int ref) {
+        int position = mStringsOffset + ref;
+        byte[] bytes = new byte[mBuffer.getShort(position) & 0xFFFF];
+        // a view, the position of the shared buffer isn't changed
+        ByteBuffer view = mBuffer.duplicate();
+        view.position(position + 2);
+        view.get(bytes);
+        try {
+            return new String(bytes, CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * @return the string in lower case, without the accents of the latin letters
+     */
+    /*package*/ static String normalize(final String string) {
+        char[] chars = string.toLowerCase(Locale.US).toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            int folded = chars[i] - LATIN_FOLDING_START;
+            if (folded >= 0 && folded < LATIN_FOLDING.length()) {
+                chars[i] = LATIN_FOLDING.charAt(folded);
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @return the normalized words of the string: its runs of letters and digits
+     */
+    /*package*/ static List<String> words(final String string) {
+        String normalized = normalize(string);
+        List<String> words = new ArrayList<String>();
+        int start = -1;
+        for (int i = 0; i <= normalized.length(); i++) {
+            boolean inWord = i < normalized.length()
+                    && Character.isLetterOrDigit(normalized.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                words.add(normalized.substring(start, i));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /*package*/ static byte[] toBytes(final String string) {
+        try {
+            return string.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
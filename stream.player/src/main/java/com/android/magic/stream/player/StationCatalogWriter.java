@@ -0,0 +1,309 @@
+package com.android.magic.stream.player;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes the index file of a {@link StationCatalog}, e.g. when the directory of stations is
+ * downloaded, or when the application is built, since the writer doesn't depend on the Android
+ * framework.
+ * <p/>
+ * The file is written next to the destination and renamed, so a catalog mapping the previous
+ * version of the file keeps working and a catalog opened afterwards sees the new one.
+ * <p/>
+ * Not thread safe.
+ */
+public final class StationCatalogWriter {
+
+    private static final Comparator<byte[]> BYTES_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(final byte[] lhs, final byte[] rhs) {
+            int common = Math.min(lhs.length, rhs.length);
+            for (int i = 0; i < common; i++) {
+                int difference = (lhs[i] & 0xFF) - (rhs[i] & 0xFF);
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+            return lhs.length - rhs.length;
+        }
+    };
+
+    private final List<CatalogEntry> mEntries = new ArrayList<CatalogEntry>();
+
+    /**
+     * A genre or a country and its stations
+     */
+    private static final class Group {
+        final String mName;
+        final String mKey;
+        final byte[] mKeyBytes;
+        final List<Integer> mStations = new ArrayList<Integer>();
+        int mIndex;
+
+        Group(final String name, final String key) {
+            mName = name;
+            mKey = key;
+            mKeyBytes = StationCatalog.toBytes(key);
+        }
+    }
+
+    /**
+     * A word of the name of a station
+     */
+    private static final class Word {
+        final byte[] mKey;
+        final String mWord;
+        final int mStation;
+
+        Word(final String word, final int station) {
+            mKey = StationCatalog.toBytes(word);
+            mWord = word;
+            mStation = station;
+        }
+    }
+
+    /**
+     * The strings of the file, each one stored once, and the lists of genres of the stations
+     */
+    private static final class Strings {
+        final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        final Map<String, Integer> mRefs = new HashMap<String, Integer>();
+
+        int add(final String string) {
+            Integer ref = mRefs.get(string);
+            if (ref == null) {
+                byte[] bytes = StationCatalog.toBytes(string);
+                if (bytes.length > StationCatalog.MAX_STRING_LENGTH) {
+                    throw new IllegalArgumentException("String too long: " + string);
+                }
+                ref = mBytes.size();
+                writeShort(bytes.length);
+                mBytes.write(bytes, 0, bytes.length);
+                mRefs.put(string, ref);
+            }
+            return ref;
+        }
+
+        int addList(final List<Integer> values) {
+            int ref = mBytes.size();
+            writeShort(values.size());
+            for (int value : values) {
+                writeShort(value);
+            }
+            return ref;
+        }
+
+        private void writeShort(final int value) {
+            mBytes.write(value >>> 8);
+            mBytes.write(value);
+        }
+    }
+
+    /**
+     * @param entry a station of the catalog
+     */
+    public void add(@NonNull final CatalogEntry entry) {
+        mEntries.add(entry);
+    }
+
+    /**
+     * Writes the stations added into the index file
+     *
+     * @param file the index file
+     * @throws IOException if the file cannot be written
+     */
+    public void write(@NonNull final File file) throws IOException {
+        final List<CatalogEntry> stations = sortByName(mEntries);
+
+        Map<String, Group> genres = new HashMap<String, Group>();
+        Map<String, Group> countries = new HashMap<String, Group>();
+        List<Word> words = new ArrayList<Word>();
+        List<List<Group>> stationGenres = new ArrayList<List<Group>>(stations.size());
+        List<Group> stationCountries = new ArrayList<Group>(stations.size());
+        for (int i = 0; i < stations.size(); i++) {
+            CatalogEntry station = stations.get(i);
+            // a word or a genre appearing twice is listed once
+            for (String word : new LinkedHashSet<String>(StationCatalog.words(station.getName()))) {
+                words.add(new Word(word, i));
+            }
+            Set<Group> groups = new LinkedHashSet<Group>();
+            for (String genre : station.getGenres()) {
+                groups.add(addToGroup(genres, genre, i));
+            }
+            stationGenres.add(new ArrayList<Group>(groups));
+            stationCountries.add(station.getCountry() != null
+                    ? addToGroup(countries, station.getCountry(), i)
+                    : null);
+        }
+        if (genres.size() > StationCatalog.MAX_STRING_LENGTH) {
+            throw new IllegalArgumentException("Too many genres: " + genres.size());
+        }
+        List<Group> sortedGenres = sortGroups(genres);
+        List<Group> sortedCountries = sortGroups(countries);
+        Collections.sort(words, new Comparator<Word>() {
+            @Override
+            public int compare(final Word lhs, final Word rhs) {
+                int comparison = BYTES_ORDER.compare(lhs.mKey, rhs.mKey);
+                return comparison != 0 ? comparison : lhs.mStation - rhs.mStation;
+            }
+        });
+
+        Strings strings = new Strings();
+        int stationsOffset = StationCatalog.HEADER_SIZE;
+        int wordsOffset = stationsOffset + stations.size() * StationCatalog.RECORD_SIZE;
+        int genresOffset = wordsOffset + words.size() * StationCatalog.WORD_SIZE;
+        int countriesOffset = genresOffset + sortedGenres.size() * StationCatalog.GROUP_SIZE;
+        int listsOffset = countriesOffset + sortedCountries.size() * StationCatalog.GROUP_SIZE;
+        int listsLength = 4 * (countStations(sortedGenres) + countStations(sortedCountries));
+        int stringsOffset = listsOffset + listsLength;
+
+        File temporary = new File(file.getPath() + ".tmp");
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temporary)));
+        try {
+            output.writeInt(StationCatalog.MAGIC);
+            output.writeInt(StationCatalog.VERSION);
+            output.writeInt(stations.size());
+            output.writeInt(words.size());
+            output.writeInt(sortedGenres.size());
+            output.writeInt(sortedCountries.size());
+            output.writeInt(stationsOffset);
+            output.writeInt(wordsOffset);
+            output.writeInt(genresOffset);
+            output.writeInt(countriesOffset);
+            output.writeInt(listsOffset);
+            output.writeInt(stringsOffset);
+            // the length of the strings, known once all the sections refer to them
+            ByteArrayOutputStream sections = new ByteArrayOutputStream();
+            DataOutputStream sectionsOutput = new DataOutputStream(sections);
+
+            for (int i = 0; i < stations.size(); i++) {
+                CatalogEntry station = stations.get(i);
+                List<Integer> genreIndexes = new ArrayList<Integer>();
+                for (Group genre : stationGenres.get(i)) {
+                    genreIndexes.add(genre.mIndex);
+                }
+                Group country = stationCountries.get(i);
+                sectionsOutput.writeInt(strings.add(station.getName()));
+                sectionsOutput.writeInt(strings.add(station.getUrl()));
+                sectionsOutput.writeInt(strings.addList(genreIndexes));
+                sectionsOutput.writeInt(country != null ? country.mIndex
+                        : StationCatalog.NO_COUNTRY);
+                sectionsOutput.writeInt(station.getBitrateKbps());
+            }
+            for (Word word : words) {
+                sectionsOutput.writeInt(strings.add(word.mWord));
+                sectionsOutput.writeInt(word.mStation);
+            }
+            int listIndex = writeGroups(sectionsOutput, sortedGenres, strings, 0);
+            writeGroups(sectionsOutput, sortedCountries, strings, listIndex);
+            for (Group group : sortedGenres) {
+                writeStations(sectionsOutput, group);
+            }
+            for (Group group : sortedCountries) {
+                writeStations(sectionsOutput, group);
+            }
+
+            output.writeInt(strings.mBytes.size());
+            sections.writeTo(output);
+            strings.mBytes.writeTo(output);
+        } finally {
+            output.close();
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Cannot rename " + temporary + " to " + file);
+        }
+    }
+
+    private static List<CatalogEntry> sortByName(final List<CatalogEntry> entries) {
+        final Map<CatalogEntry, byte[]> keys = new HashMap<CatalogEntry, byte[]>();
+        for (CatalogEntry entry : entries) {
+            keys.put(entry, StationCatalog.toBytes(StationCatalog.normalize(entry.getName())));
+        }
+        List<CatalogEntry> sorted = new ArrayList<CatalogEntry>(entries);
+        Collections.sort(sorted, new Comparator<CatalogEntry>() {
+            @Override
+            public int compare(final CatalogEntry lhs, final CatalogEntry rhs) {
+                int comparison = BYTES_ORDER.compare(keys.get(lhs), keys.get(rhs));
+                return comparison != 0 ? comparison : lhs.getName().compareTo(rhs.getName());
+            }
+        });
+        return sorted;
+    }
+
+    private static Group addToGroup(final Map<String, Group> groups, final String name,
+                                    final int station) {
+        String key = StationCatalog.normalize(name).trim();
+        Group group = groups.get(key);
+        if (group == null) {
+            // the first spelling of the name is displayed
+            group = new Group(name.trim(), key);
+            groups.put(key, group);
+        }
+        List<Integer> stations = group.mStations;
+        if (stations.isEmpty() || stations.get(stations.size() - 1) != station) {
+            stations.add(station);
+        }
+        return group;
+    }
+
+    private static List<Group> sortGroups(final Map<String, Group> groups) {
+        List<Group> sorted = new ArrayList<Group>(groups.values());
+        Collections.sort(sorted, new Comparator<Group>() {
+            @Override
+            public int compare(final Group lhs, final Group rhs) {
+                return BYTES_ORDER.compare(lhs.mKeyBytes, rhs.mKeyBytes);
+            }
+        });
+        for (int i = 0; i < sorted.size(); i++) {
+            sorted.get(i).mIndex = i;
+        }
+        return sorted;
+    }
+
+    private static int countStations(final List<Group> groups) {
+        int count = 0;
+        for (Group group : groups) {
+            count += group.mStations.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return the index of the list of stations following the lists of these groups
+     */
+    private static int writeGroups(final DataOutputStream output, final List<Group> groups,
+                                   final Strings strings, int listIndex) throws IOException {
+        for (Group group : groups) {
+            output.writeInt(strings.add(group.mName));
+            output.writeInt(strings.add(group.mKey));
+            output.writeInt(listIndex);
+            output.writeInt(group.mStations.size());
+            listIndex += group.mStations.size();
+        }
+        return listIndex;
+    }
+
+    private static void writeStations(final DataOutputStream output, final Group group)
+            throws IOException {
+        for (int station : group.mStations) {
+            output.writeInt(station);
+        }
+    }
+}
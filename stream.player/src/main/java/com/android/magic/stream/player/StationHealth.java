@@ -0,0 +1,147 @@
+package com.android.magic.stream.player;
+
+import android.support.annotation.Nullable;
+
+import java.util.Locale;
+
+/**
+ * The result of probing a station with the {@link StationProber}: whether the stream answered,
+ * how fast, and what it announced in its headers.
+ * <p/>
+ * Instances are immutable.
+ */
+public final class StationHealth {
+
+    /**
+     * The value of the times when they weren't measured, e.g. the connection failed
+     */
+    public static final long UNKNOWN = -1;
+
+    private final String mUrl;
+    private final long mProbedAt;
+    private final int mStatusCode;
+    private final long mConnectTimeMs;
+    private final long mTimeToFirstByteMs;
+    private final String mContentType;
+    private final int mBitrateKbps;
+    private final int mMetaInterval;
+    private final String mError;
+
+    /*package*/ StationHealth(final String url, final long probedAt, final int statusCode,
+                              final long connectTimeMs, final long timeToFirstByteMs,
+                              final String contentType, final int bitrateKbps,
+                              final int metaInterval, final String error) {
+        mUrl = url;
+        mProbedAt = probedAt;
+        mStatusCode = statusCode;
+        mConnectTimeMs = connectTimeMs;
+        mTimeToFirstByteMs = timeToFirstByteMs;
+        mContentType = contentType;
+        mBitrateKbps = bitrateKbps;
+        mMetaInterval = metaInterval;
+        mError = error;
+    }
+
+    /**
+     * @return the health of a station that couldn't be reached
+     */
+    /*package*/ static StationHealth failed(final String url, final long probedAt,
+                                            final long connectTimeMs, final String error) {
+        return new StationHealth(url, probedAt, 0, connectTimeMs, UNKNOWN, null, 0, 0, error);
+    }
+
+    /**
+     * @return the url probed
+     */
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * @return when the station was probed, in milliseconds since the epoch
+     */
+    public long getProbedAt() {
+        return mProbedAt;
+    }
+
+    /**
+     * @return true if the station answered with a 2xx status and sent the first byte of its body
+     */
+    public boolean isReachable() {
+        return mStatusCode >= 200 && mStatusCode < 300 && mTimeToFirstByteMs != UNKNOWN;
+    }
+
+    /**
+     * @return true if the content type announced is audio, false if it's something else, e.g. a
+     * web page, or missing
+     */
+    public boolean isAudio() {
+        if (mContentType == null) {
+            return false;
+        }
+        String type = mContentType.toLowerCase(Locale.US);
+        return type.startsWith("audio/") || type.startsWith("application/ogg");
+    }
+
+    /**
+     * @return the status code of the response or 0 if there was no response
+     */
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+
+    /**
+     * @return how long the lookup of the host and the connection took, in milliseconds, or
+     * {@link #UNKNOWN} if the station couldn't be connected to
+     */
+    public long getConnectTimeMs() {
+        return mConnectTimeMs;
+    }
+
+    /**
+     * @return how long it took from the start of the probe until the first byte of the body was
+     * received, in milliseconds, or {@link #UNKNOWN} if none was
+     */
+    public long getTimeToFirstByteMs() {
+        return mTimeToFirstByteMs;
+    }
+
+    /**
+     * @return the Content-Type header or null if it wasn't sent
+     */
+    @Nullable
+    public String getContentType() {
+        return mContentType;
+    }
+
+    /**
+     * @return the bitrate announced in the icy-br header, in kbps, or 0 if it wasn't sent
+     */
+    public int getBitrateKbps() {
+        return mBitrateKbps;
+    }
+
+    /**
+     * @return the icy-metaint header, the number of audio bytes between two metadata blocks, or 0
+     * if the station doesn't send metadata
+     */
+    public int getMetaInterval() {
+        return mMetaInterval;
+    }
+
+    /**
+     * @return why the probe failed or null if it didn't
+     */
+    @Nullable
+    public String getError() {
+        return mError;
+    }
+
+    @Override
+    public String toString() {
+        return "StationHealth " + mUrl + " status " + mStatusCode + " connect " + mConnectTimeMs
+                + " ms, first byte " + mTimeToFirstByteMs + " ms, " + mContentType + " "
+                + mBitrateKbps + " kbps, metaint " + mMetaInterval
+                + (mError != null ? ", " + mError : "");
+    }
+}
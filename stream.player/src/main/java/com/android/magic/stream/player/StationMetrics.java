@@ -0,0 +1,132 @@
+package com.android.magic.stream.player;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The playback metrics of one station at the time of the snapshot. All the durations are in
+ * milliseconds.
+ * <p/>
+ * Instances are immutable.
+ */
+public final class StationMetrics {
+
+    private final String mUrl;
+    private final long mPlayCount;
+    private final HistogramSnapshot mTimeToFirstAudio;
+    private final HistogramSnapshot mPrepareTime;
+    private final long mRebufferCount;
+    private final HistogramSnapshot mRebufferDuration;
+    private final HistogramSnapshot mMetadataLag;
+    private final Map<StreamPlayerError, Long> mErrorCounts;
+
+    /*package*/ StationMetrics(final String url, final long playCount,
+                               final HistogramSnapshot timeToFirstAudio,
+                               final HistogramSnapshot prepareTime, final long rebufferCount,
+                               final HistogramSnapshot rebufferDuration,
+                               final HistogramSnapshot metadataLag,
+                               final Map<StreamPlayerError, Long> errorCounts) {
+        mUrl = url;
+        mPlayCount = playCount;
+        mTimeToFirstAudio = timeToFirstAudio;
+        mPrepareTime = prepareTime;
+        mRebufferCount = rebufferCount;
+        mRebufferDuration = rebufferDuration;
+        mMetadataLag = metadataLag;
+        mErrorCounts = Collections.unmodifiableMap(errorCounts);
+    }
+
+    /**
+     * @return the url of the station
+     */
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * @return the number of times the station was requested to play
+     */
+    public long getPlayCount() {
+        return mPlayCount;
+    }
+
+    /**
+     * @return the time from the request to play the station until the audio starts
+     */
+    public HistogramSnapshot getTimeToFirstAudio() {
+        return mTimeToFirstAudio;
+    }
+
+    /**
+     * @return the time the player takes to connect and prepare, when it's not prepared in
+     * advance
+     */
+    public HistogramSnapshot getPrepareTime() {
+        return mPrepareTime;
+    }
+
+    /**
+     * @return the number of times the playback stalled, waiting for data
+     */
+    public long getRebufferCount() {
+        return mRebufferCount;
+    }
+
+    /**
+     * @return the duration of the stalls
+     */
+    public HistogramSnapshot getRebufferDuration() {
+        return mRebufferDuration;
+    }
+
+    /**
+     * @return the upper bound of the time between a track change and its detection: the time
+     * since the previous metadata received with the old track, by the previous poll or, for the
+     * metadata received in the stream, in the previous metadata block
+     */
+    public HistogramSnapshot getMetadataLag() {
+        return mMetadataLag;
+    }
+
+    /**
+     * @return the number of errors of every type, only the types that happened are present
+     */
+    public Map<StreamPlayerError, Long> getErrorCounts() {
+        return mErrorCounts;
+    }
+
+    /**
+     * Appends the metrics as a JSON object
+     */
+    /*package*/ void appendJson(final StringBuilder json) {
+        json.append("{\"url\":");
+        PlaybackMetrics.appendJsonString(json, mUrl);
+        json.append(",\"plays\":").append(mPlayCount);
+        json.append(",\"timeToFirstAudioMs\":");
+        mTimeToFirstAudio.appendJson(json);
+        json.append(",\"prepareTimeMs\":");
+        mPrepareTime.appendJson(json);
+        json.append(",\"rebuffers\":").append(mRebufferCount);
+        json.append(",\"rebufferDurationMs\":");
+        mRebufferDuration.appendJson(json);
+        json.append(",\"metadataLagMs\":");
+        mMetadataLag.appendJson(json);
+        json.append(",\"errors\":{");
+        boolean first = true;
+        for (Map.Entry<StreamPlayerError, Long> error : mErrorCounts.entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append('"').append(error.getKey().name()).append("\":").append(error.getValue());
+        }
+        json.append("}}");
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder json = new StringBuilder();
+        appendJson(json);
+        return json.toString();
+    }
+}
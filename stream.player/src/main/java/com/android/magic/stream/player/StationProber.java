@@ -0,0 +1,207 @@
+package com.android.magic.stream.player;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks which stations are alive before they are played: connects to each one, measures how
+ * long the connection and the first byte of the stream took and reads the headers the station
+ * announces, e.g. its bitrate. The application can then hide the dead stations or rank them.
+ * <p/>
+ * A batch of stations is probed by at most {@link #getMaxParallel()} connections at a time, so a
+ * large batch doesn't flood the network. The results are kept for a limited time and a station
+ * probed recently isn't probed again. The least recently used results are dropped when
+ * {@link #MAX_ENTRIES} are kept.
+ * <p/>
+ * Doesn't depend on the Android framework. Thread safe. The probes block on the network: call
+ * them on a background thread.
+ */
+public final class StationProber {
+
+    public static final int DEFAULT_MAX_PARALLEL = 4;
+    public static final long DEFAULT_TTL_MS = 30 * 60 * 1000;
+    public static final int MAX_ENTRIES = 10000;
+
+    private static final Map<String, String> ICY_HEADERS =
+            Collections.singletonMap("Icy-MetaData", "1");
+    private static final long NANOS_PER_MILLI = 1000 * 1000;
+
+    private final HttpTransport mTransport;
+    private final int mMaxParallel;
+    private final long mTtlMs;
+    private final Map<String, StationHealth> mResults =
+            new LinkedHashMap<String, StationHealth>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        final Map.Entry<String, StationHealth> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    /**
+     * Creates a prober using {@link #DEFAULT_MAX_PARALLEL} connections and keeping the results
+     * for {@link #DEFAULT_TTL_MS}
+     */
+    public StationProber() {
+        this(DEFAULT_MAX_PARALLEL, DEFAULT_TTL_MS);
+    }
+
+    /**
+     * @param maxParallel the maximum number of stations probed at the same time
+     * @param ttlMs       how long the result of a probe is used, in milliseconds
+     */
+    public StationProber(final int maxParallel, final long ttlMs) {
+        this(HttpTransport.shared(), maxParallel, ttlMs);
+    }
+
+    /*package*/ StationProber(final HttpTransport transport, final int maxParallel,
+                              final long ttlMs) {
+        if (maxParallel <= 0) {
+            throw new IllegalArgumentException("Invalid parallelism " + maxParallel);
+        }
+        mTransport = transport;
+        mMaxParallel = maxParallel;
+        mTtlMs = ttlMs;
+    }
+
+    public int getMaxParallel() {
+        return mMaxParallel;
+    }
+
+    /**
+     * @param url the url of the station
+     * @return the result of the last probe of the station or null if it wasn't probed or the
+     * result expired
+     */
+    @Nullable
+    public synchronized StationHealth getHealth(@NonNull final String url) {
+        StationHealth health = mResults.get(url);
+        if (health != null && health.getProbedAt() + mTtlMs <= System.currentTimeMillis()) {
+            mResults.remove(url);
+            return null;
+        }
+        return health;
+    }
+
+    /**
+     * Forgets the results of the probes
+     */
+    public synchronized void clear() {
+        mResults.clear();
+    }
+
+    /**
+     * Probes the stations not probed recently. Blocks until all of them are probed.
+     *
+     * @param urls the urls of the stations
+     * @return the health of the stations, in the order of the urls
+     * @throws InterruptedException if the thread is interrupted while waiting for the probes
+     */
+    public Map<String, StationHealth> probe(@NonNull final List<String> urls)
+            throws InterruptedException {
+        final List<String> pending = new ArrayList<String>();
+        for (String url : urls) {
+            if (getHealth(url) == null && !pending.contains(url)) {
+                pending.add(url);
+            }
+        }
+
+        if (!pending.isEmpty()) {
+            // each thread probes the next pending station until none is left
+            final AtomicInteger next = new AtomicInteger();
+            Runnable worker = new Runnable() {
+                @Override
+                public void run() {
+                    int index;
+                    while (!Thread.currentThread().isInterrupted()
+                            && (index = next.getAndIncrement()) < pending.size()) {
+                        probe(pending.get(index));
+                    }
+                }
+            };
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < Math.min(mMaxParallel, pending.size()); i++) {
+                Thread thread = new Thread(worker, StationProber.class.getSimpleName() + "-" + i);
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+            try {
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+            } catch (InterruptedException e) {
+                for (Thread thread : threads) {
+                    thread.interrupt();
+                }
+                throw e;
+            }
+        }
+
+        Map<String, StationHealth> results = new LinkedHashMap<String, StationHealth>();
+        synchronized (this) {
+            for (String url : urls) {
+                StationHealth health = mResults.get(url);
+                if (health != null) {
+                    results.put(url, health);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Probes the station, even if it was probed recently
+     *
+     * @param url the url of the station
+     * @return the health of the station
+     */
+    public StationHealth probe(@NonNull final String url) {
+        StationHealth health = connect(url);
+        synchronized (this) {
+            mResults.put(url, health);
+        }
+        return health;
+    }
+
+    private StationHealth connect(final String url) {
+        long probedAt = System.currentTimeMillis();
+        long start = System.nanoTime();
+        HttpResponse response;
+        try {
+            response = mTransport.get(url, ICY_HEADERS);
+        } catch (IOException e) {
+            return StationHealth.failed(url, probedAt, StationHealth.UNKNOWN, e.toString());
+        } catch (IllegalArgumentException e) {
+            // an invalid url, e.g. with an invalid port
+            return StationHealth.failed(url, probedAt, StationHealth.UNKNOWN, e.toString());
+        }
+        try {
+            long timeToFirstByteMs = StationHealth.UNKNOWN;
+            String error = null;
+            try {
+                if (response.getBody().read() != -1) {
+                    timeToFirstByteMs = (System.nanoTime() - start) / NANOS_PER_MILLI;
+                } else {
+                    error = "Empty response";
+                }
+            } catch (IOException e) {
+                error = e.toString();
+            }
+            return new StationHealth(url, probedAt, response.getStatusCode(),
+                    response.getConnectTimeMs(), timeToFirstByteMs, response.getContentType(),
+                    response.getBitrateKbps(), response.getIntHeader("icy-metaint"), error);
+        } finally {
+            // the stream isn't read further, the connection is closed
+            response.close();
+        }
+    }
+}
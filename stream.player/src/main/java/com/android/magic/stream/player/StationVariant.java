@@ -0,0 +1,63 @@
+package com.android.magic.stream.player;
+
+import android.support.annotation.NonNull;
+
+/**
+ * One encoding of a station's program, e.g. the 64 kbps stream of a station that also publishes
+ * 32 and 128 kbps streams.
+ * <p/>
+ * Instances are immutable.
+ */
+public final class StationVariant {
+
+    private final String mUrl;
+    private final int mBitrateKbps;
+
+    /**
+     * @param url         the url of the stream
+     * @param bitrateKbps the bitrate of the stream, in kbps
+     */
+    public StationVariant(@NonNull final String url, final int bitrateKbps) {
+        if (bitrateKbps <= 0) {
+            throw new IllegalArgumentException("Invalid bitrate " + bitrateKbps);
+        }
+        mUrl = url;
+        mBitrateKbps = bitrateKbps;
+    }
+
+    /**
+     * @return the url of the stream
+     */
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * @return the bitrate of the stream, in kbps
+     */
+    public int getBitrateKbps() {
+        return mBitrateKbps;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof StationVariant)) {
+            return false;
+        }
+        StationVariant other = (StationVariant) o;
+        return mBitrateKbps == other.mBitrateKbps && mUrl.equals(other.mUrl);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * mUrl.hashCode() + mBitrateKbps;
+    }
+
+    @Override
+    public String toString() {
+        return mBitrateKbps + " kbps " + mUrl;
+    }
+}
@@ -1,6 +1,13 @@
 package com.android.magic.stream.player;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import rx.Observable;
 
 /**
  * Stream Player that creates a service and a thread and handles the
@@ -37,12 +44,42 @@ import android.support.annotation.NonNull;
 public interface StreamPlayer {
 
     /**
-     * Plays the stream
+     * Plays the stream. The url can also be a PLS, M3U, M3U8 or XSPF playlist: the first stream
+     * listed is played. The streams listed in a playlist are remembered for a few hours, even
+     * after a restart, so playing the url again doesn't download the playlist again.
      *
-     * @param url the stream that will be played
+     * @param url the stream or the playlist that will be played
      */
     public void play(@NonNull final String url);
 
+    /**
+     * Plays a station published in several bitrates. The player starts with the bitrate the
+     * network allowed for the previous streams, or with the lowest one, and switches between the
+     * variants as the measured throughput changes, without restarting the playback.
+     *
+     * @param station the station that will be played
+     */
+    public void play(@NonNull final Station station);
+
+    /**
+     * Prepares a player for the stream in advance, so that {@link #play(String)} starts it without
+     * waiting for the connection and the prepare. The prepared players are kept in a small pool,
+     * sized by the memory of the device, and the least recently used one is released when the
+     * pool is full. Not available when playing through the local proxy.
+     *
+     * @param url the stream likely to be played next
+     */
+    public void prepare(@NonNull final String url);
+
+    /**
+     * Prepares players for the streams in advance, in order, as many as the pool allows, and
+     * releases the players prepared for other streams. E.g. preload the next and the previous
+     * stations of a list.
+     *
+     * @param urls the streams likely to be played next
+     */
+    public void preload(@NonNull final List<String> urls);
+
     /**
      * Pauses the currently playing stream
      */
@@ -66,26 +103,244 @@ public interface StreamPlayer {
     public String getPlayingUrl();
 
     /**
-     * Register a listener to be notified about player states
+     * Register a listener to be notified about player states, on the main thread. Any number of
+     * listeners can be registered. A listener that also implements {@link BufferingListener}
+     * receives the buffering updates.
      *
      * @param listener
      */
     public void registerStreamPlayerListener(StreamPlayerListener listener);
 
+    /**
+     * Register a listener to be notified about player states, on the given executor
+     *
+     * @param listener the listener
+     * @param executor the executor notifying the listener, e.g. to be notified on a background
+     *                 thread
+     */
+    public void registerStreamPlayerListener(StreamPlayerListener listener, Executor executor);
+
     /**
      * Unregister the {@link com.android.magic.stream.player.StreamPlayerListener}
+     *
+     * @param listener the listener registered before
      */
+    public void unregisterStreamPlayerListener(StreamPlayerListener listener);
+
+    /**
+     * Unregister all the {@link com.android.magic.stream.player.StreamPlayerListener}s
+     *
+     * @deprecated use {@link #unregisterStreamPlayerListener(StreamPlayerListener)}
+     */
+    @Deprecated
     public void unregisterStreamPlayerListener();
 
     /**
-     * Register a listener to be notified about track changes for the current stream
+     * Register a listener to be notified about track changes for the current stream, on the main
+     * thread. Any number of listeners can be registered. When the track changes several times
+     * before the listener is notified, only the latest track is delivered.
      */
     public void registerTrackListener(MetadataListener listener);
 
     /**
-     * Unregister the track listener
+     * Register a listener to be notified about track changes for the current stream, on the given
+     * executor
+     *
+     * @param listener the listener
+     * @param executor the executor notifying the listener
+     */
+    public void registerTrackListener(MetadataListener listener, Executor executor);
+
+    /**
+     * Unregister the track listener. The metadata stops being requested when no track listener
+     * is registered.
+     *
+     * @param listener the listener registered before
+     */
+    public void unregisterTrackListener(MetadataListener listener);
+
+    /**
+     * Unregister all the track listeners
+     *
+     * @deprecated use {@link #unregisterTrackListener(MetadataListener)}
      */
+    @Deprecated
     public void unregisterTrackListener();
 
+    /**
+     * Observes the state of the player. A subscriber receives the current state and then every
+     * change, on the main thread. All the subscribers share one registration in the player, made
+     * when the first one subscribes and removed when the last one unsubscribes.
+     *
+     * @return the observable of the player states
+     */
+    public Observable<PlayerState> observePlayerState();
+
+    /**
+     * Observes the metadata of the track playing. A subscriber receives the latest metadata, if
+     * already received, and then every track change, on the main thread. All the subscribers
+     * share one metadata request loop: it runs while at least one subscriber or
+     * {@link MetadataListener} is registered and stops when the last one leaves. A stream without
+     * metadata emits {@link TrackMetadata#EMPTY}.
+     *
+     * @return the observable of the track metadata
+     */
+    public Observable<TrackMetadata> observeTrackMetadata();
+
+    /**
+     * Retrieves the quality of experience metrics of the playback, per station: the time to first
+     * audio, the prepare time, the stalls, the errors and the delay of the track changes
+     *
+     * @return a snapshot of the metrics recorded since the player was created or reset
+     */
+    public PlaybackMetrics getPlaybackMetrics();
+
+    /**
+     * Drops the playback metrics recorded so far, e.g. after exporting them
+     */
+    public void resetPlaybackMetrics();
+
+    /**
+     * Retrieves the tracks played recently on a station, e.g. to show what was played before the
+     * station was opened. The tracks are recorded from the metadata received while playing: the
+     * metadata read from the audio, see {@link #setInStreamMetadataEnabled(boolean)}, or else the
+     * metadata requested while a track listener is registered. They are kept after the
+     * application is restarted and read from memory, so this can be called on the main thread;
+     * none are known until the history is loaded, shortly after the service starts.
+     *
+     * @param url       the url of the station
+     * @param maxTracks the maximum number of tracks returned
+     * @return the tracks played, most recent first, maybe none
+     */
+    public List<PlayedTrack> getRecentTracks(@NonNull String url, int maxTracks);
+
+    /**
+     * Retrieves the last track played on a station, e.g. to show a title as soon as the station
+     * is opened, before the metadata is received
+     *
+     * @param url the url of the station
+     * @return the last track played or null if none is known, e.g. before the history is loaded
+     */
+    @Nullable
+    public PlayedTrack getLastKnownTrack(@NonNull String url);
+
+    /**
+     * Enables reading the track metadata from the audio connection. Instead of requesting the
+     * metadata over a second connection every 15 seconds, the stream is played through a local
+     * proxy that removes the metadata from the audio and notifies the {@link MetadataListener} as
+     * soon as the stream sends a new track. Disabled by default. Applies from the next
+     * {@link #play(String)}.
+     *
+     * @param enabled true to read the metadata from the audio connection
+     */
+    public void setInStreamMetadataEnabled(boolean enabled);
+
+    /**
+     * Plays the stream through a local proxy that holds the connection to the stream and buffers
+     * the audio in a fixed size, off-heap buffer. When the buffer is full, the stream is read only
+     * as fast as the audio is played. Disabled by default. Applies from the next
+     * {@link #play(String)}.
+     *
+     * @param enabled true to play the stream through the local proxy
+     */
+    public void setLocalProxyEnabled(boolean enabled);
+
+    /**
+     * Retrieves how much audio is buffered by the local proxy
+     *
+     * @return the seconds of audio received and not yet played or 0 if the stream isn't played
+     * through the local proxy
+     */
+    public float getBufferedSeconds();
+
+    /**
+     * Enables the time-shift of live streams: while paused, the stream keeps being recorded in a
+     * bounded file mapped in memory, so the playback resumes instantly from where it was paused,
+     * without reconnecting. When paused for longer than the window, the oldest audio is dropped.
+     * Disabled by default. Applies from the next {@link #play(String)}.
+     *
+     * @param maxSeconds the maximum time-shift window, in seconds, or 0 to disable the time-shift
+     */
+    public void setTimeShiftWindow(int maxSeconds);
+
+    /**
+     * Reconnects automatically when the stream fails with a temporary error, like a network error
+     * or a time out, instead of reporting it to the {@link StreamPlayerListener}. The
+     * reconnections are delayed with an exponential backoff and the error is reported when all
+     * the attempts failed. When the stream is played through the local proxy, the proxy
+     * reconnects while the buffered audio is still playing, so short outages aren't heard.
+     * Disabled by default.
+     *
+     * @param policy the policy of the reconnections, e.g. {@link ReconnectPolicy#DEFAULT}, or null
+     *               to disable the reconnections
+     */
+    public void setReconnectPolicy(@Nullable ReconnectPolicy policy);
+
+    /**
+     * Gives up on a stream that connected but doesn't play, instead of waiting for the
+     * {@link android.media.MediaPlayer} to time out: when the player isn't prepared in time, waits
+     * for data for too long or, through the local proxy, receives the stream well below the
+     * bitrate it announced. The stream then fails with {@link StreamPlayerError#STREAM_STALLED},
+     * which is retried by the {@link ReconnectPolicy}, trying another mirror of a playlist.
+     * Applies from the next stream played. Disabled by default.
+     *
+     * @param policy the deadlines and the minimum rate, e.g. {@link StallPolicy#DEFAULT}, or null
+     *               to disable the stall detection
+     */
+    public void setStallPolicy(@Nullable StallPolicy policy);
+
+    /**
+     * Sets the timeouts of the connections to the streams, the playlists and the metadata. The
+     * connections are shared by all the players of the application, so are the timeouts. By
+     * default, a connection times out after 10 seconds and a read after 15 seconds.
+     *
+     * @param connectTimeoutMs the timeout of a connection, in milliseconds
+     * @param readTimeoutMs    how long a read waits for data, in milliseconds
+     */
+    public void setNetworkTimeouts(int connectTimeoutMs, int readTimeoutMs);
+
+    /**
+     * Connects to the station played last as soon as the player starts, and buffers its audio in
+     * the background, so that playing it again starts at once. The station and the stream it was
+     * resolved to are remembered across restarts. The stream isn't read further after the budget
+     * until the station is played: the connection is closed after a few seconds, before the
+     * server drops it, and made again when the station is played, while the buffered audio
+     * plays. The buffered audio is dropped after a minute or when another station is played. Enabling it starts the service of the player. Disabled by default.
+     *
+     * @param maxBytes the maximum number of bytes received before the station is played, e.g.
+     *                 64 KB for 4 seconds of a 128 kbps stream, or 0 to disable the pre-connect
+     */
+    public void setPreconnectBudget(int maxBytes);
+
+    /**
+     * Records the station playing, and the next ones played, until {@link #stopRecording()}. The
+     * audio is written as it's received by the player, without a second connection to the
+     * station, and without the metadata. A new file starts at every track change announced by the
+     * station and is named after the track. The oldest recordings of the directory are deleted
+     * when the recordings use more than the budget. The stream is played through the local proxy
+     * while recording: a stream played directly is connected to again. A recording that can't be
+     * written, e.g. because the disk is full, is stopped and reported to the
+     * {@link StreamPlayerListener}s that implement {@link RecordingListener}.
+     *
+     * @param directory the directory of the recordings, used for the recordings only
+     * @param maxBytes  the maximum number of bytes used by the recordings
+     */
+    public void startRecording(@NonNull File directory, long maxBytes);
+
+    /**
+     * Stops recording, the file of the track recorded is complete up to now
+     */
+    public void stopRecording();
+
+    /**
+     * @return true if the stream is recorded, false if it isn't or the recording failed, e.g.
+     * because the disk is full
+     */
+    public boolean isRecording();
+
+    /**
+     * Drops the time-shifted audio, so the playback continues close to the live edge of the stream
+     */
+    public void jumpToLive();
 
 }
@@ -22,5 +22,19 @@ public enum StreamPlayerError {
     /**
      * Unknown player error
      */
-    PLAYER_UNKNOWN_ERROR
+    PLAYER_UNKNOWN_ERROR,
+
+    /**
+     * The stream connected but doesn't play: the player wasn't prepared in time, waited for data
+     * for too long or the stream is received well below its bitrate, see {@link StallPolicy}
+     */
+    STREAM_STALLED;
+
+    /**
+     * @return true if the error is likely to be temporary, e.g. a network error, and playing the
+     * stream again may succeed
+     */
+    public boolean isRetryable() {
+        return this == PLAYER_IO_ERROR || this == PLAYER_TIMED_OUT || this == STREAM_STALLED;
+    }
 }
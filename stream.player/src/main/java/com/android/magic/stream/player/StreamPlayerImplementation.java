@@ -1,35 +1,71 @@
 package com.android.magic.stream.player;
 
-import android.app.ActivityManager;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.IBinder;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
+
 /**
  * Handles the playing, stopping and pausing of url streams, notifying observers of changes in
  * stream playing or track changing
+ * <p/>
+ * Binds to the {@link MediaPlayerService} when it's created without starting the service, so a
+ * service already running, e.g. playing for a previous instance of the application, is connected
+ * to. The service is only started by the commands that need it: playing, preparing or connecting
+ * in advance. The commands given until the service is connected are queued in
+ * {@link PendingCommands} and replayed in order once it's connected; pausing and stopping don't
+ * start the service, they only run if it's running.
  */
 /*package*/ class StreamPlayerImplementation implements StreamPlayer {
 
     private static final String LOG_TAG = StreamPlayerImplementation.class.getSimpleName();
 
-    private StreamPlayerListener mStreamPlayerListener;
-    private MetadataListener mMetadataListener;
+    private final ListenerDispatcher mDispatcher = new ListenerDispatcher();
+    private final Observable<PlayerState> mPlayerStates;
+    private final Observable<TrackMetadata> mTrackMetadata;
+
+    private final PendingCommands mPendingCommands = new PendingCommands();
 
     private MediaPlayerService mService;
+    // true from the binding to the service until the unbinding, even while it's disconnected
     private boolean mBound;
+    // true once the service was started and bound to with BIND_AUTO_CREATE
+    private boolean mStarted;
 
     private Context mContext;
 
     private String mURL;
+    private Station mStation;
+    private boolean mInStreamMetadataEnabled;
+    private boolean mLocalProxyEnabled;
+    private int mTimeShiftSeconds;
+    private ReconnectPolicy mReconnectPolicy;
+    private StallPolicy mStallPolicy;
+    private int mPreconnectBytes;
+    private File mRecordingDirectory;
+    private long mRecordingMaxBytes;
 
     StreamPlayerImplementation(Context context) {
         mContext = context;
-        bindToService();
+        mPlayerStates = createPlayerStates();
+        mTrackMetadata = createTrackMetadata();
+        // connected only if the service is running
+        mBound = mContext.bindService(new Intent(mContext, MediaPlayerService.class),
+                mConnection, 0);
     }
 
     /**
@@ -38,25 +74,107 @@ import android.util.Log;
      * @param url the stream that will be played
      */
     @Override
-    public void play(@NonNull String url) {
+    public void play(@NonNull final String url) {
+        startService();
+        if (mService == null) {
+            queue(PendingCommands.Kind.PLAYBACK, null, new Runnable() {
+                @Override
+                public void run() {
+                    play(url);
+                }
+            });
+            return;
+        }
         // if it's paused just start it
-        if (mURL != null && mURL.equals(url) && !mService.isStopped() && !mService.isPlaying()) {
+        if (mURL != null && mURL.equals(url) && mService.isPaused()) {
             mService.startMediaPlayer();
         } else {
             // need to initialize again the player
             mURL = url;
+            mStation = null;
             mService.initializePlayer(url);
         }
     }
 
+    @Override
+    public void play(@NonNull final Station station) {
+        startService();
+        if (mService == null) {
+            queue(PendingCommands.Kind.PLAYBACK, null, new Runnable() {
+                @Override
+                public void run() {
+                    play(station);
+                }
+            });
+            return;
+        }
+        // if it's paused just start it
+        if (station.equals(mStation) && mService.isPaused()) {
+            mService.startMediaPlayer();
+        } else {
+            mStation = station;
+            mURL = null;
+            mService.initializePlayer(station);
+        }
+    }
+
+    /**
+     * Prepares a player for the stream in advance
+     *
+     * @param url the stream likely to be played next
+     */
+    @Override
+    public void prepare(@NonNull final String url) {
+        startService();
+        if (mService == null) {
+            queue(PendingCommands.Kind.PREPARE, url, new Runnable() {
+                @Override
+                public void run() {
+                    prepare(url);
+                }
+            });
+            return;
+        }
+        mService.preparePlayer(url);
+    }
+
+    /**
+     * Prepares players for the streams in advance
+     *
+     * @param urls the streams likely to be played next
+     */
+    @Override
+    public void preload(@NonNull final List<String> urls) {
+        startService();
+        if (mService == null) {
+            queue(PendingCommands.Kind.PRELOAD, null, new Runnable() {
+                @Override
+                public void run() {
+                    preload(urls);
+                }
+            });
+            return;
+        }
+        mService.preparePlayers(urls);
+    }
+
     /**
      * Pauses the currently playing stream
      */
     @Override
     public void pause() {
-        if (mService.getMediaPlayer() != null && mService.getMediaPlayer().isPlaying()) {
-            mService.pauseMediaPlayer();
+        if (mService == null) {
+            queueIfRunning(PendingCommands.Kind.PLAYBACK, new Runnable() {
+                @Override
+                public void run() {
+                    pause();
+                }
+            });
+            return;
         }
+        // the player thread ignores it if nothing plays, the state read here may be late, e.g.
+        // while the play command is still queued
+        mService.pauseMediaPlayer();
     }
 
     /**
@@ -64,10 +182,18 @@ import android.util.Log;
      */
     @Override
     public void stop() {
-        if (mService!= null && mService.getMediaPlayer() != null &&
-                mService.getMediaPlayer().isPlaying()) {
-            mService.stopMediaPlayer();
+        if (mService == null) {
+            // the service may still be playing, e.g. for a previous instance of the application
+            queueIfRunning(PendingCommands.Kind.PLAYBACK, new Runnable() {
+                @Override
+                public void run() {
+                    stop();
+                }
+            });
+            return;
         }
+        // like pause(), not filtered by the state read here
+        mService.stopMediaPlayer();
     }
 
     /**
@@ -75,13 +201,18 @@ import android.util.Log;
      */
     @Override
     public void shutDown() {
+        mPendingCommands.clear();
         if (mBound) {
-            mService.stopMediaPlayer();
-            mService.removeListener();
+            if (mService != null) {
+                mService.stopMediaPlayer();
+                mService.removeListener();
+            }
             // Detach existing connection.
             mContext.unbindService(mConnection);
             mBound = false;
+            mService = null;
         }
+        mStarted = false;
 
         Intent intent = new Intent(mContext, MediaPlayerService.class);
         mContext.stopService(intent);
@@ -106,19 +237,31 @@ import android.util.Log;
      */
     @Override
     public void registerStreamPlayerListener(StreamPlayerListener listener) {
-        mStreamPlayerListener = listener;
-        if (mService != null) {
-            mService.addListener(listener);
-        }
+        registerStreamPlayerListener(listener, ListenerDispatcher.MAIN_THREAD);
+    }
+
+    /**
+     * Register a listener to be notified about player states, on the executor
+     */
+    @Override
+    public void registerStreamPlayerListener(StreamPlayerListener listener, Executor executor) {
+        mDispatcher.addPlayerListener(listener, executor);
     }
 
     /**
      * Unregister the {@link com.android.magic.stream.player.StreamPlayerListener}
      */
     @Override
+    public void unregisterStreamPlayerListener(StreamPlayerListener listener) {
+        mDispatcher.removePlayerListener(listener);
+    }
+
+    /**
+     * Unregister all the {@link com.android.magic.stream.player.StreamPlayerListener}s
+     */
+    @Override
     public void unregisterStreamPlayerListener() {
-        mService.removeListener();
-        mStreamPlayerListener = null;
+        mDispatcher.removePlayerListeners();
     }
 
     /**
@@ -126,9 +269,18 @@ import android.util.Log;
      */
     @Override
     public void registerTrackListener(MetadataListener listener) {
-        mMetadataListener = listener;
-        if (mService != null) {
-            mService.addTrackListener(listener);
+        registerTrackListener(listener, ListenerDispatcher.MAIN_THREAD);
+    }
+
+    /**
+     * Register a listener to be notified about track changes, on the executor
+     */
+    @Override
+    public void registerTrackListener(MetadataListener listener, Executor executor) {
+        boolean first = !mDispatcher.hasMetadataListeners();
+        mDispatcher.addMetadataListener(listener, executor);
+        if (first && mService != null) {
+            mService.addTrackListener(mDispatcher);
         }
     }
 
@@ -136,33 +288,375 @@ import android.util.Log;
      * Unregister the track listener
      */
     @Override
+    public void unregisterTrackListener(MetadataListener listener) {
+        mDispatcher.removeMetadataListener(listener);
+        if (!mDispatcher.hasMetadataListeners() && mService != null) {
+            mService.removeTrackListener();
+        }
+    }
+
+    /**
+     * Unregister all the track listeners
+     */
+    @Override
     public void unregisterTrackListener() {
-        mService.stopRetrievingMetadata();
+        mDispatcher.removeMetadataListeners();
+        if (mService != null) {
+            mService.removeTrackListener();
+        }
     }
 
+    /**
+     * Retrieves the playback metrics
+     *
+     * @return the metrics or empty metrics if the service isn't connected yet
+     */
+    @Override
+    public PlaybackMetrics getPlaybackMetrics() {
+        if (mService != null) {
+            return mService.getPlaybackMetrics();
+        }
+        long now = System.currentTimeMillis();
+        return new PlaybackMetrics(now, now, Collections.<String, StationMetrics>emptyMap());
+    }
 
     /**
-     * Binds to the instance of MediaPlayerService. If no instance of MediaPlayerService exists,
-     * it first starts
-     * a new instance of the service.
+     * Drops the playback metrics recorded so far
      */
-    private void bindToService() {
-        Intent intent = new Intent(mContext, MediaPlayerService.class);
+    @Override
+    public void resetPlaybackMetrics() {
+        if (mService != null) {
+            mService.resetPlaybackMetrics();
+        }
+    }
+
+    /**
+     * Retrieves the tracks played recently on the station
+     */
+    @Override
+    public List<PlayedTrack> getRecentTracks(@NonNull String url, int maxTracks) {
+        if (mService != null) {
+            return mService.getRecentTracks(url, maxTracks);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Retrieves the last track played on the station
+     */
+    @Override
+    @Nullable
+    public PlayedTrack getLastKnownTrack(@NonNull String url) {
+        if (mService != null) {
+            return mService.getLastKnownTrack(url);
+        }
+        return null;
+    }
+
+    /**
+     * Observes the state of the player
+     */
+    @Override
+    public Observable<PlayerState> observePlayerState() {
+        return mPlayerStates;
+    }
+
+    /**
+     * Observes the metadata of the track playing
+     */
+    @Override
+    public Observable<TrackMetadata> observeTrackMetadata() {
+        return mTrackMetadata;
+    }
+
+    /**
+     * Enables reading the track metadata from the audio connection
+     *
+     * @param enabled true to read the metadata from the audio connection
+     */
+    @Override
+    public void setInStreamMetadataEnabled(boolean enabled) {
+        mInStreamMetadataEnabled = enabled;
+        if (mService != null) {
+            mService.setInStreamMetadataEnabled(enabled);
+        }
+    }
+
+    /**
+     * Plays the stream through a local proxy that buffers the audio
+     *
+     * @param enabled true to play the stream through the local proxy
+     */
+    @Override
+    public void setLocalProxyEnabled(boolean enabled) {
+        mLocalProxyEnabled = enabled;
+        if (mService != null) {
+            mService.setLocalProxyEnabled(enabled);
+        }
+    }
+
+    /**
+     * Retrieves how much audio is buffered by the local proxy
+     *
+     * @return the seconds of audio buffered or 0
+     */
+    @Override
+    public float getBufferedSeconds() {
+        return mService != null ? mService.getBufferedSeconds() : 0;
+    }
+
+    /**
+     * Enables the time-shift of live streams
+     *
+     * @param maxSeconds the maximum time-shift window, in seconds, or 0 to disable the time-shift
+     */
+    @Override
+    public void setTimeShiftWindow(int maxSeconds) {
+        mTimeShiftSeconds = maxSeconds;
+        if (mService != null) {
+            mService.setTimeShiftWindow(maxSeconds);
+        }
+    }
+
+    /**
+     * Reconnects automatically after the temporary errors
+     *
+     * @param policy the policy of the reconnections or null to disable the reconnections
+     */
+    @Override
+    public void setReconnectPolicy(@Nullable ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+        if (mService != null) {
+            mService.setReconnectPolicy(policy);
+        }
+    }
+
+    /**
+     * Detects the streams that connected but don't play
+     *
+     * @param policy the deadlines and the minimum rate or null to disable the stall detection
+     */
+    @Override
+    public void setStallPolicy(@Nullable StallPolicy policy) {
+        mStallPolicy = policy;
+        if (mService != null) {
+            mService.setStallPolicy(policy);
+        }
+    }
+
+    /**
+     * Sets the timeouts of the network connections of the library
+     *
+     * @param connectTimeoutMs the timeout of a connection, in milliseconds
+     * @param readTimeoutMs    how long a read waits for data, in milliseconds
+     */
+    @Override
+    public void setNetworkTimeouts(int connectTimeoutMs, int readTimeoutMs) {
+        HttpTransport.shared().setTimeouts(connectTimeoutMs, readTimeoutMs);
+    }
+
+    /**
+     * Connects to the station played last in advance
+     *
+     * @param maxBytes the maximum number of bytes received before the station is played or 0
+     */
+    @Override
+    public void setPreconnectBudget(int maxBytes) {
+        mPreconnectBytes = maxBytes;
+        if (maxBytes > 0) {
+            // the service pre-connects once it's connected
+            startService();
+        }
+        if (mService != null) {
+            mService.setPreconnectBudget(maxBytes);
+        }
+    }
+
+    /**
+     * Records the stream playing and the next ones
+     *
+     * @param directory the directory of the recordings
+     * @param maxBytes  the maximum number of bytes used by the recordings
+     */
+    @Override
+    public void startRecording(@NonNull File directory, long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Invalid recording budget " + maxBytes);
+        }
+        mRecordingDirectory = directory;
+        mRecordingMaxBytes = maxBytes;
+        if (mService != null) {
+            mService.startRecording(directory, maxBytes);
+        }
+    }
+
+    /**
+     * Stops recording
+     */
+    @Override
+    public void stopRecording() {
+        mRecordingDirectory = null;
+        if (mService != null) {
+            mService.stopRecording();
+        }
+    }
+
+    /**
+     * @return true if the stream is recorded
+     */
+    @Override
+    public boolean isRecording() {
+        if (mService != null) {
+            return mService.isRecording();
+        }
+        return mRecordingDirectory != null;
+    }
+
+    /**
+     * Drops the time-shifted audio
+     */
+    @Override
+    public void jumpToLive() {
+        if (mService != null) {
+            mService.jumpToLive();
+        }
+    }
+
+    /**
+     * @return the states of the player, emitted by one listener shared by all the subscribers
+     */
+    private Observable<PlayerState> createPlayerStates() {
+        return Observable.create(new Observable.OnSubscribe<PlayerState>() {
+            @Override
+            public void call(final Subscriber<? super PlayerState> subscriber) {
+                final PlayerStateObserver observer = new PlayerStateObserver(subscriber);
+                subscriber.add(Subscriptions.create(new Action0() {
+                    @Override
+                    public void call() {
+                        unregisterStreamPlayerListener(observer);
+                    }
+                }));
+                subscriber.onNext(mService != null ? mService.getPlayerState() : PlayerState.IDLE);
+                registerStreamPlayerListener(observer, ListenerDispatcher.MAIN_THREAD);
+            }
+        }).distinctUntilChanged().replay(1).refCount();
+    }
+
+    /**
+     * @return the metadata of the tracks, requested by one loop shared by all the subscribers
+     */
+    private Observable<TrackMetadata> createTrackMetadata() {
+        return Observable.create(new Observable.OnSubscribe<TrackMetadata>() {
+            @Override
+            public void call(final Subscriber<? super TrackMetadata> subscriber) {
+                final TrackMetadataObserver observer = new TrackMetadataObserver(subscriber);
+                subscriber.add(Subscriptions.create(new Action0() {
+                    @Override
+                    public void call() {
+                        unregisterTrackListener(observer);
+                    }
+                }));
+                TrackMetadata lastMetadata = mDispatcher.getLastMetadata();
+                if (lastMetadata != null) {
+                    subscriber.onNext(lastMetadata);
+                }
+                registerTrackListener(observer, ListenerDispatcher.MAIN_THREAD);
+            }
+        }).replay(1).refCount();
+    }
+
+    /**
+     * Emits the states of the player to a subscriber
+     */
+    private static final class PlayerStateObserver implements StreamPlayerListener,
+            PlayerStateListener {
+
+        private final Subscriber<? super PlayerState> mSubscriber;
+
+        PlayerStateObserver(final Subscriber<? super PlayerState> subscriber) {
+            mSubscriber = subscriber;
+        }
+
+        @Override
+        public void onPlayerStateChanged(final PlayerState state) {
+            mSubscriber.onNext(state);
+        }
+
+        @Override
+        public void onPlaying(final String url) {
+            // emitted as a state
+        }
+
+        @Override
+        public void onError(final StreamPlayerError error) {
+            // emitted as a state
+        }
+
+        @Override
+        public void onPlayerStop() {
+            // emitted as a state
+        }
+    }
+
+    /**
+     * Emits the metadata of the tracks to a subscriber
+     */
+    private static final class TrackMetadataObserver implements MetadataListener,
+            TrackMetadataListener {
+
+        private final Subscriber<? super TrackMetadata> mSubscriber;
 
-        if (mediaPlayerServiceRunning()) {
-            Log.d(LOG_TAG, "player running");
-            // Bind to Service
-            mContext.bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
+        TrackMetadataObserver(final Subscriber<? super TrackMetadata> subscriber) {
+            mSubscriber = subscriber;
         }
-        //no instance of service
-        else {
-            Log.d(LOG_TAG, "new instance of service");
-            //start service and bind to it
-            mContext.startService(intent);
-            mContext.bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
 
+        @Override
+        public void onTrackMetadata(final TrackMetadata metadata) {
+            mSubscriber.onNext(metadata);
         }
 
+        @Override
+        public void onMetadataChanged(final String metadata) {
+            // emitted as a TrackMetadata
+        }
+    }
+
+    /**
+     * Queues the command until the service, started by the command, is connected
+     */
+    private void queue(final PendingCommands.Kind kind, final String key, final Runnable command) {
+        mPendingCommands.add(kind, key, command);
+    }
+
+    /**
+     * Queues the command until the service is connected, without starting the service: the
+     * command is dropped if the service isn't bound to and never runs if it isn't running
+     */
+    private void queueIfRunning(final PendingCommands.Kind kind, final Runnable command) {
+        if (mBound) {
+            mPendingCommands.add(kind, null, command);
+        }
+    }
+
+    /**
+     * Starts the MediaPlayerService, so it keeps playing when unbound, and binds to it with
+     * BIND_AUTO_CREATE, unless it was already. Binding again with the connection of the passive
+     * binding doesn't connect it twice. Both return at once, the service is connected later on
+     * the main thread.
+     */
+    private void startService() {
+        if (mStarted) {
+            return;
+        }
+        Intent intent = new Intent(mContext, MediaPlayerService.class);
+        mContext.startService(intent);
+        mStarted = mContext.bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
+        if (mStarted) {
+            mBound = true;
+        } else {
+            Log.e(LOG_TAG, "cannot bind to " + MediaPlayerService.class.getName());
+            mPendingCommands.clear();
+        }
     }
 
     /**
@@ -180,45 +674,43 @@ import android.util.Log;
 
             //send this instance to the service, so it can make callbacks on this instance as a
             // client
-            mBound = true;
-            mService.addListener(mStreamPlayerListener);
-            if (mMetadataListener != null) {
-                mService.addTrackListener(mMetadataListener);
+            mService.addListener(mDispatcher);
+            mService.setInStreamMetadataEnabled(mInStreamMetadataEnabled);
+            mService.setLocalProxyEnabled(mLocalProxyEnabled);
+            mService.setTimeShiftWindow(mTimeShiftSeconds);
+            mService.setReconnectPolicy(mReconnectPolicy);
+            mService.setStallPolicy(mStallPolicy);
+            if (mRecordingDirectory != null && !mService.isRecording()) {
+                mService.startRecording(mRecordingDirectory, mRecordingMaxBytes);
+            }
+            if (mDispatcher.hasMetadataListeners()) {
+                mService.addTrackListener(mDispatcher);
             }
+            mPendingCommands.replay();
+            // with the settings above, ignored if a station was played by the commands
+            mService.setPreconnectBudget(mPreconnectBytes);
         }
 
         @Override
         public void onServiceDisconnected(ComponentName arg0) {
-            mBound = false;
+            // still bound: the service is connected again when it's restarted, the commands
+            // given meanwhile are queued
             mService = null;
+            // started again by the next command, in case it was stopped
+            mStarted = false;
         }
     };
 
-    /**
-     * Determines if the MediaPlayerService is already running.
-     *
-     * @return true if the service is running, false otherwise.
-     */
-    private boolean mediaPlayerServiceRunning() {
-        ActivityManager manager = (ActivityManager) mContext.getSystemService(
-                mContext.ACTIVITY_SERVICE);
-
-        for (ActivityManager.RunningServiceInfo service : manager.getRunningServices(
-                Integer.MAX_VALUE)) {
-            if (MediaPlayerService.MEDIA_PLAYER_SERVICE.equals(service.service.getClassName())) {
-                return true;
-            }
-        }
-
-        return false;
-    }
-
-
     public void disconnect() {
+        mPendingCommands.clear();
         if (mBound) {
-            mService.unRegister();
+            if (mService != null) {
+                mService.unRegister();
+            }
             mContext.unbindService(mConnection);
             mBound = false;
+            mService = null;
         }
+        mStarted = false;
     }
 }
@@ -0,0 +1,77 @@
+package com.android.magic.stream.player;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
+
+/**
+ * The scheduler shared by the background work of the library, e.g. the metadata polling.
+ * <p/>
+ * The work runs on a small, fixed number of daemon threads, created when first needed, instead of
+ * a new thread for every stream played. Create a {@link rx.Scheduler.Worker} for every task and
+ * unsubscribe it to cancel the pending actions.
+ * <p/>
+ * The connections to the streams, which can block for seconds while a playlist is resolved and
+ * its mirrors are raced, run on their own executor, so they don't wait behind the background
+ * work and the background work doesn't wait behind them.
+ */
+/*package*/ final class StreamPlayerSchedulers {
+
+    private static final int THREAD_COUNT = 2;
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private static Scheduler sBackground;
+    private static ExecutorService sConnect;
+
+    private StreamPlayerSchedulers() {
+    }
+
+    /**
+     * @return the scheduler for the blocking background work, e.g. network requests
+     */
+    public static synchronized Scheduler background() {
+        if (sBackground == null) {
+            sBackground = Schedulers.from(new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new BackgroundThreadFactory("StreamPlayer-")));
+        }
+        return sBackground;
+    }
+
+    /**
+     * @return the executor of the connections to the streams. A connection cancelled while it
+     * blocks keeps its thread until it fails, the next connection gets another thread.
+     */
+    public static synchronized ExecutorService connect() {
+        if (sConnect == null) {
+            sConnect = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    new BackgroundThreadFactory("StreamPlayer-connect-"));
+        }
+        return sConnect;
+    }
+
+    private static final class BackgroundThreadFactory implements ThreadFactory {
+
+        private final String mPrefix;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        BackgroundThreadFactory(final String prefix) {
+            mPrefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(runnable, mPrefix + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,620 @@
+package com.android.magic.stream.player;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local HTTP server that sits between the {@link android.media.MediaPlayer} and the stream.
+ * <p/>
+ * The proxy holds the connection to the stream and copies the audio into a fixed size
+ * {@link ByteRingBuffer}, from which the player reads through the local connection. When the
+ * buffer is full the proxy stops reading the stream until the player catches up, so the memory
+ * used never grows. The proxy knows how many bytes it received and how much audio is buffered.
+ * <p/>
+ * When a {@link TrackMetadataListener} is given, the proxy also requests the ICY metadata and
+ * passes the bytes through an {@link IcyMetadataDemuxer}. This way the metadata is received
+ * in-line, as soon as the server sends it, without opening a second connection to the stream.
+ * <p/>
+ * With time-shift, the buffer is a file mapped in memory, sized for the maximum time-shift window,
+ * and the proxy keeps reading the stream while the player is paused. The oldest audio is
+ * overwritten when the window is full. When the player resumes, it continues from where it was
+ * paused, or from the live edge after {@link #jumpToLive()}.
+ * <p/>
+ * With a {@link BitrateSelector}, the proxy measures the throughput of the stream and, when
+ * another variant of the station is selected, connects to it and continues writing in the same
+ * buffer. The player keeps its connection to the proxy and plays the buffered audio meanwhile, so
+ * the switch isn't audible as a gap. For MP3 and AAC streams, the switch is cut at the frame
+ * boundaries with an {@link AudioFrameAligner}, so the player doesn't get a broken frame.
+ * <p/>
+ * With a {@link ReconnectPolicy}, the proxy reconnects to the stream when the connection is lost
+ * after it was established, while the player plays the buffered audio. If the stream is back
+ * before the buffer is empty, the player doesn't notice the outage. The proxy also reconnects at
+ * once when asked with {@link #reconnect()}, e.g. when the stream is received too slowly.
+ * <p/>
+ * With a pre-buffering budget, the proxy can be started before the player needs the stream: it
+ * stops reading the stream after the budget until the player connects, which then gets the
+ * audio buffered meanwhile at once. The servers drop a client that doesn't read for long, so
+ * the connection is closed after a few seconds without reading and made again when the player
+ * connects, while the player plays the buffered audio.
+ * <p/>
+ * With a {@link StreamRecorder}, the audio received is also written to files, without the
+ * metadata and split at the track changes, from the same buffer it's received in.
+ * <p/>
+ * The proxy listens on 127.0.0.1 only. Give the URL returned by {@link #start()} to the player
+ * instead of the URL of the stream. The proxy doesn't depend on the Android framework.
+ */
+/*package*/ class StreamProxy {
+
+    /**
+     * Default size of the buffer: 32 seconds of a 128 kbps stream
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 512 * 1024;
+
+    private static final String LOCALHOST = "127.0.0.1";
+    private static final String ICY_METAINT = "icy-metaint";
+    private static final String DEFAULT_CONTENT_TYPE = "audio/mpeg";
+    private static final int DEFAULT_BITRATE_KBPS = 128;
+
+    private static final int LIVE_EDGE_SECONDS = 1;
+    // how long the connection is kept without reading once the pre-buffering budget is used
+    private static final long DEFAULT_PREBUFFER_IDLE_MS = 5 * 1000;
+
+    private static final int TRANSFER_SIZE = 8 * 1024;
+    private static final int THROUGHPUT_SAMPLE_SIZE = 16 * 1024;
+    private static final long NANOS_PER_MILLI = 1000 * 1000;
+    private static final int MAX_REQUEST_HEADERS_LENGTH = 8 * 1024;
+
+    private final String mStreamUrl;
+    private final TrackMetadataListener mMetadataListener;
+    private final int mBufferSize;
+    private final CountDownLatch mConnected = new CountDownLatch(1);
+    private final CountDownLatch mPlayerConnected = new CountDownLatch(1);
+
+    private ServerSocket mServerSocket;
+    private Thread mUpstreamThread;
+    private Thread mServerThread;
+    private volatile Socket mClient;
+    private volatile HttpResponse mUpstream;
+    private volatile boolean mRunning;
+    // created when the bitrate of the stream is known
+    private volatile ByteRingBuffer mBuffer;
+
+    private File mTimeShiftFile;
+    private int mTimeShiftSeconds;
+    private BitrateSelector mBitrateSelector;
+    private ReconnectPolicy mReconnectPolicy;
+    private long mPrebufferBudget;
+    private long mPrebufferIdleMs = DEFAULT_PREBUFFER_IDLE_MS;
+    // bytes received before the player connected, only used by the upstream thread
+    private long mPrebufferedBytes;
+    // cuts the variant switches between two frames, only used by the upstream thread
+    private AudioFrameAligner mAligner;
+
+    private volatile String mContentType;
+    private volatile int mBitrateKbps = DEFAULT_BITRATE_KBPS;
+    private volatile int mAnnouncedBitrateKbps;
+    private volatile IOException mUpstreamError;
+    private volatile boolean mReconnectRequested;
+    private volatile StreamRecorder mRecorder;
+
+    /**
+     * @param streamUrl        the url of the stream
+     * @param bufferSize       the size of the buffer between the stream and the player, in bytes
+     * @param metadataListener listener notified when a metadata block is received in the stream
+     *                         or null if the metadata isn't needed
+     */
+    public StreamProxy(final String streamUrl, final int bufferSize,
+                       final TrackMetadataListener metadataListener) {
+        mStreamUrl = streamUrl;
+        mMetadataListener = metadataListener;
+        mBufferSize = bufferSize;
+    }
+
+    /**
+     * Keeps recording the stream while the player is paused. Call it before {@link #start()}.
+     *
+     * @param file       the file storing the buffer
+     * @param maxSeconds the maximum time-shift window, in seconds
+     */
+    public void setTimeShift(final File file, final int maxSeconds) {
+        mTimeShiftFile = file;
+        mTimeShiftSeconds = maxSeconds;
+    }
+
+    /**
+     * Switches between the variants of a station, depending on the throughput of the connection.
+     * The stream url given to the constructor must be the url of the variant currently selected.
+     * Call it before {@link #start()}.
+     *
+     * @param selector the selector of the variants
+     */
+    public void setBitrateSelector(final BitrateSelector selector) {
+        mBitrateSelector = selector;
+    }
+
+    /**
+     * Reconnects to the stream when the connection fails or ends, after the delays of the policy.
+     * The player keeps playing the buffered audio meanwhile. Call it before {@link #start()}.
+     *
+     * @param policy the policy of the reconnections or null to end the stream when the connection
+     *               is lost
+     */
+    public void setReconnectPolicy(final ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+    }
+
+    /**
+     * Stops reading the stream after the budget until the player connects, e.g. to connect to
+     * the stream in advance without using much data. Call it before {@link #start()}.
+     *
+     * @param maxBytes the maximum number of bytes received before the player connects, including
+     *                 the metadata, or 0 for no limit
+     */
+    public void setPrebufferBudget(final long maxBytes) {
+        setPrebufferBudget(maxBytes, DEFAULT_PREBUFFER_IDLE_MS);
+    }
+
+    /**
+     * @param maxBytes   the maximum number of bytes received before the player connects,
+     *                   including the metadata, or 0 for no limit
+     * @param idleMillis how long the connection is kept without reading once the budget is
+     *                   used, before it's closed until the player connects
+     * @see #setPrebufferBudget(long)
+     */
+    public void setPrebufferBudget(final long maxBytes, final long idleMillis) {
+        mPrebufferBudget = maxBytes;
+        mPrebufferIdleMs = idleMillis;
+    }
+
+    /**
+     * Records the audio received from now on. Can be called while the proxy runs. The ICY
+     * metadata is requested when the recorder is set before the proxy connects to the stream,
+     * otherwise the recording is only split at the track changes after a reconnection.
+     *
+     * @param recorder the recorder or null to stop recording, the recorder isn't closed
+     */
+    public void setRecorder(final StreamRecorder recorder) {
+        if (recorder != null) {
+            recorder.onStreamStart(mContentType);
+        }
+        mRecorder = recorder;
+    }
+
+    /**
+     * @return true if the stream failed and won't be reconnected, the player only gets the audio
+     * buffered before
+     */
+    public boolean hasFailed() {
+        return mUpstreamError != null;
+    }
+
+    /**
+     * Connects to the stream and starts listening for the player's connections
+     *
+     * @return the url that should be played instead of the stream url
+     * @throws IOException if the local server socket cannot be opened
+     */
+    public String start() throws IOException {
+        mServerSocket = new ServerSocket(0, 1, InetAddress.getByName(LOCALHOST));
+        mRunning = true;
+
+        mUpstreamThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readUpstream();
+            }
+        }, StreamProxy.class.getSimpleName() + "-upstream");
+        mUpstreamThread.setDaemon(true);
+        mUpstreamThread.start();
+
+        mServerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serveClients();
+            }
+        }, StreamProxy.class.getSimpleName() + "-server");
+        mServerThread.setDaemon(true);
+        mServerThread.start();
+
+        return "http://" + LOCALHOST + ":" + mServerSocket.getLocalPort() + "/";
+    }
+
+    /**
+     * Stops the proxy and closes the connection to the stream
+     */
+    public void stop() {
+        mRunning = false;
+        mPlayerConnected.countDown();
+        ByteRingBuffer buffer = mBuffer;
+        if (buffer != null) {
+            buffer.close();
+        }
+        IoUtils.closeQuietly(mServerSocket);
+        IoUtils.closeQuietly(mClient);
+        HttpResponse upstream = mUpstream;
+        if (upstream != null) {
+            upstream.close();
+        }
+        if (mUpstreamThread != null) {
+            mUpstreamThread.interrupt();
+        }
+        if (mServerThread != null) {
+            mServerThread.interrupt();
+        }
+        if (mTimeShiftFile != null) {
+            mTimeShiftFile.delete();
+        }
+    }
+
+    /**
+     * Drops the connection to the stream and connects to it again at once, whatever the
+     * {@link ReconnectPolicy}. The player keeps playing the buffered audio meanwhile.
+     */
+    public void reconnect() {
+        mReconnectRequested = true;
+        HttpResponse upstream = mUpstream;
+        if (upstream != null) {
+            upstream.close();
+        }
+    }
+
+    /**
+     * Drops the time-shifted audio, so the player continues close to the live edge of the stream
+     */
+    public void jumpToLive() {
+        ByteRingBuffer buffer = mBuffer;
+        if (buffer != null) {
+            buffer.keepLatest(LIVE_EDGE_SECONDS * getBytesPerSecond());
+        }
+    }
+
+    /**
+     * @return the seconds of audio received from the stream and not yet read by the player,
+     * estimated from the bitrate announced by the stream
+     */
+    public float getBufferedSeconds() {
+        ByteRingBuffer buffer = mBuffer;
+        return buffer != null ? buffer.available() / (float) getBytesPerSecond() : 0;
+    }
+
+    /**
+     * @return the number of audio bytes received from the stream
+     */
+    public long getReceivedBytes() {
+        ByteRingBuffer buffer = mBuffer;
+        return buffer != null ? buffer.getWrittenBytes() : 0;
+    }
+
+    /**
+     * @return the bitrate announced by the stream, in kbps, or a default bitrate if the stream
+     * didn't announce it
+     */
+    public int getBitrateKbps() {
+        return mBitrateKbps;
+    }
+
+    /**
+     * @return the bitrate announced by the stream or by the variant of the station, in kbps, or 0
+     * if it isn't known yet
+     */
+    public int getAnnouncedBitrateKbps() {
+        return mAnnouncedBitrateKbps;
+    }
+
+    private int getBytesPerSecond() {
+        return mBitrateKbps * 1000 / 8;
+    }
+
+    private ByteRingBuffer createBuffer() {
+        if (mTimeShiftFile != null) {
+            try {
+                return ByteRingBuffer.mapFile(mTimeShiftFile,
+                        mTimeShiftSeconds * getBytesPerSecond());
+            } catch (IOException e) {
+                // no time-shift
+            }
+        }
+        return new ByteRingBuffer(mBufferSize);
+    }
+
+    private void readUpstream() {
+        try {
+            String url = mStreamUrl;
+            int attempts = 0;
+            while (mRunning) {
+                if (mPrebufferBudget > 0 && mPrebufferedBytes >= mPrebufferBudget) {
+                    // closed while idle, connected again once the player needs the stream
+                    mPlayerConnected.await();
+                    if (!mRunning) {
+                        return;
+                    }
+                }
+                long received = getReceivedBytes();
+                IOException error = null;
+                try {
+                    String next = copyUpstream(url);
+                    if (next != null) {
+                        url = next;
+                        continue;
+                    }
+                } catch (IOException e) {
+                    error = e;
+                }
+                if (mReconnectRequested && mBuffer != null) {
+                    // closed by reconnect(), not counted as a failure
+                    mReconnectRequested = false;
+                    continue;
+                }
+                // the stream ended or failed
+                if (getReceivedBytes() > received) {
+                    attempts = 0;
+                }
+                ReconnectPolicy policy = mReconnectPolicy;
+                // the first connection failing is reported to the player, which reconnects
+                if (!mRunning || policy == null || mBuffer == null
+                        || attempts >= policy.getMaxAttempts()) {
+                    if (error != null) {
+                        throw error;
+                    }
+                    return;
+                }
+                // the player plays the buffered audio meanwhile
+                Thread.sleep(policy.getDelayMillis(attempts++));
+            }
+        } catch (IOException e) {
+            mUpstreamError = e;
+        } catch (InterruptedException e) {
+            // stopped
+        } finally {
+            mConnected.countDown();
+            // the player gets the buffered audio and then the end of the stream
+            if (mBuffer != null) {
+                mBuffer.close();
+            }
+        }
+    }
+
+    /**
+     * Copies the audio of the stream into the buffer, until the stream ends or the
+     * {@link BitrateSelector} selects another variant
+     *
+     * @return the url of the variant to switch to or null if the stream ended
+     */
+    private String copyUpstream(final String url) throws IOException, InterruptedException {
+        boolean metadataNeeded = mMetadataListener != null || mRecorder != null;
+        Map<String, String> headers = metadataNeeded
+                ? Collections.singletonMap("Icy-MetaData", "1")
+                : null;
+        HttpResponse response = HttpTransport.shared().get(url, headers);
+        mUpstream = response;
+        try {
+            if (!mRunning) {
+                // stopped while connecting
+                return null;
+            }
+            if (!response.isSuccessful()) {
+                throw new IOException("Unexpected response " + response.getStatusCode() + " for "
+                        + url);
+            }
+            if (mContentType == null) {
+                mContentType = response.getContentType();
+            }
+            int bitrate = response.getBitrateKbps();
+            if (bitrate > 0) {
+                mBitrateKbps = bitrate;
+                mAnnouncedBitrateKbps = bitrate;
+            } else if (mBitrateSelector != null) {
+                mBitrateKbps = mBitrateSelector.getCurrent().getBitrateKbps();
+                mAnnouncedBitrateKbps = mBitrateKbps;
+            }
+            StreamRecorder recorder = mRecorder;
+            if (recorder != null) {
+                recorder.onStreamStart(mContentType);
+            }
+            if (mBitrateSelector != null && mAligner == null) {
+                mAligner = AudioFrameAligner.forContentType(mContentType);
+            }
+            AudioFrameAligner aligner = mAligner;
+            if (aligner != null) {
+                // the end of the previous stream, if any, is dropped after its last frame
+                aligner.reset();
+            }
+            int metaInterval = response.getIntHeader(ICY_METAINT);
+            MetadataSplitter splitter = new MetadataSplitter();
+            IcyMetadataDemuxer demuxer = metadataNeeded && metaInterval > 0
+                    ? new IcyMetadataDemuxer(metaInterval, splitter)
+                    : null;
+            splitter.mDemuxer = demuxer;
+            ByteRingBuffer buffer = mBuffer;
+            if (buffer == null) {
+                buffer = createBuffer();
+                mBuffer = buffer;
+                mConnected.countDown();
+            }
+
+            InputStream input = response.getBody();
+            byte[] transfer = new byte[TRANSFER_SIZE];
+            // bytes received since the start of the sample
+            long sampleBytes = 0;
+            long sampleStart = System.nanoTime();
+            // bytes received since the last selection
+            long unselectedBytes = 0;
+            int length = TRANSFER_SIZE;
+            int read;
+            while (mRunning && (length = getReadLength()) > 0
+                    && (read = input.read(transfer, 0, length)) != -1) {
+                if (mPlayerConnected.getCount() > 0) {
+                    mPrebufferedBytes += read;
+                }
+                sampleBytes += read;
+                unselectedBytes += read;
+                long position = demuxer != null ? demuxer.getAudioBytes() : 0;
+                int audio = demuxer != null ? demuxer.demux(transfer, 0, read) : read;
+                recorder = mRecorder;
+                if (recorder != null && audio > 0) {
+                    recorder.write(transfer, 0, audio, position);
+                }
+                byte[] frames = transfer;
+                int framesOffset = 0;
+                if (aligner != null && audio > 0) {
+                    audio = aligner.align(transfer, 0, audio);
+                    frames = aligner.getFrames();
+                    framesOffset = aligner.getFramesOffset();
+                }
+                if (audio > 0) {
+                    boolean full = buffer.isFull(audio);
+                    // blocks while the buffer is full, unless time-shifting
+                    buffer.write(frames, framesOffset, audio);
+                    if (full) {
+                        // the stream was read as fast as the audio is played, the sample
+                        // wouldn't measure the network
+                        sampleBytes = 0;
+                        sampleStart = System.nanoTime();
+                    }
+                }
+
+                if (mBitrateSelector != null && unselectedBytes >= THROUGHPUT_SAMPLE_SIZE) {
+                    unselectedBytes = 0;
+                    long now = System.nanoTime();
+                    if (sampleBytes >= THROUGHPUT_SAMPLE_SIZE) {
+                        mBitrateSelector.getEstimator().addSample(sampleBytes,
+                                (now - sampleStart) / NANOS_PER_MILLI);
+                        sampleBytes = 0;
+                        sampleStart = now;
+                    }
+                    StationVariant variant = mBitrateSelector.select(now / NANOS_PER_MILLI,
+                            buffer.available() / (float) buffer.capacity());
+                    if (!variant.getUrl().equals(url)) {
+                        return variant.getUrl();
+                    }
+                }
+            }
+            // idle for too long, the same stream is connected to again for the player
+            return length == 0 ? url : null;
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Passes the metadata found in the stream to the listener and to the recorder, with the
+     * position of the metadata block in the audio
+     */
+    private final class MetadataSplitter implements TrackMetadataListener,
+            IcyMetadataDemuxer.BlockListener {
+
+        IcyMetadataDemuxer mDemuxer;
+
+        @Override
+        public void onTrackMetadata(final TrackMetadata metadata) {
+            if (mMetadataListener != null) {
+                mMetadataListener.onTrackMetadata(metadata);
+            }
+            StreamRecorder recorder = mRecorder;
+            if (recorder != null) {
+                recorder.onTrackMetadata(mDemuxer.getAudioBytes(), metadata.getStreamTitle());
+            }
+        }
+
+        @Override
+        public void onMetadataBlock() {
+            if (mMetadataListener instanceof IcyMetadataDemuxer.BlockListener) {
+                ((IcyMetadataDemuxer.BlockListener) mMetadataListener).onMetadataBlock();
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes to read from the stream, after waiting for the player if the
+     * pre-buffering budget is used, or 0 if the player didn't connect in time to keep the
+     * connection
+     */
+    private int getReadLength() throws InterruptedException {
+        if (mPrebufferBudget <= 0 || mPlayerConnected.getCount() == 0) {
+            return TRANSFER_SIZE;
+        }
+        long remaining = mPrebufferBudget - mPrebufferedBytes;
+        if (remaining <= 0) {
+            if (!mPlayerConnected.await(mPrebufferIdleMs, TimeUnit.MILLISECONDS)) {
+                return 0;
+            }
+            return TRANSFER_SIZE;
+        }
+        return (int) Math.min(TRANSFER_SIZE, remaining);
+    }
+
+    private void serveClients() {
+        while (mRunning) {
+            try {
+                // the player can connect several times, e.g. when it's reset
+                mClient = mServerSocket.accept();
+                serve(mClient);
+            } catch (IOException e) {
+                // the player closed the connection
+            } catch (InterruptedException e) {
+                // stopped
+            } finally {
+                IoUtils.closeQuietly(mClient);
+            }
+        }
+    }
+
+    private void serve(final Socket client) throws IOException, InterruptedException {
+        skipRequest(client.getInputStream());
+        mPlayerConnected.countDown();
+        mConnected.await();
+
+        OutputStream output = client.getOutputStream();
+        ByteRingBuffer buffer = mBuffer;
+        if (buffer == null || (mUpstreamError != null && buffer.available() == 0)) {
+            output.write("HTTP/1.0 502 Bad Gateway\r\n\r\n".getBytes("US-ASCII"));
+            return;
+        }
+        String contentType = mContentType;
+        output.write(("HTTP/1.0 200 OK\r\n"
+                + "Content-Type: " + (contentType != null ? contentType : DEFAULT_CONTENT_TYPE)
+                + "\r\n"
+                + "Connection: close\r\n"
+                + "\r\n").getBytes("US-ASCII"));
+
+        byte[] transfer = new byte[TRANSFER_SIZE];
+        int read;
+        while (mRunning && (read = buffer.read(transfer, 0, transfer.length)) != -1) {
+            output.write(transfer, 0, read);
+        }
+    }
+
+    /**
+     * Reads the HTTP request of the player until the empty line ending the headers. The request
+     * itself is not needed, the proxy always serves the stream.
+     */
+    private static void skipRequest(final InputStream input) throws IOException {
+        int matched = 0;
+        int length = 0;
+        int b;
+        while ((b = input.read()) != -1) {
+            if (++length > MAX_REQUEST_HEADERS_LENGTH) {
+                throw new IOException("Request headers too long");
+            }
+            // looking for "\r\n\r\n"
+            if (b == (matched % 2 == 0 ? '\r' : '\n')) {
+                matched++;
+                if (matched == 4) {
+                    return;
+                }
+            } else {
+                matched = b == '\r' ? 1 : 0;
+            }
+        }
+        throw new IOException("Connection closed before the end of the request");
+    }
+}
@@ -0,0 +1,332 @@
+package com.android.magic.stream.player;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.Locale;
+
+/**
+ * Records the audio received by the {@link StreamProxy} into files, one file per track: a new
+ * file starts where the stream title of the ICY metadata changes, at the exact audio byte where
+ * the metadata block was, and is named after the track. The files only contain the audio, the
+ * metadata blocks are removed by the proxy before.
+ * <p/>
+ * The audio the proxy already received is recorded, so recording doesn't need a second
+ * connection to the stream. It's written in bulk with a {@link FileChannel}, from a direct
+ * buffer allocated once: the proxy reads the stream into an array, and a channel copies an array
+ * into a temporary direct buffer at every write anyway, so the copy into the reused buffer is
+ * the only one, without the temporary buffers. The recordings
+ * use at most the given number of bytes: the oldest files of the directory are deleted when
+ * there are more, and a track longer than the whole budget is split in parts. The budget should
+ * be much larger than a chunk of the stream: a chunk is never split to fit it.
+ * <p/>
+ * The directory must be used for the recordings only. It's scanned before the first write, on
+ * the thread of the proxy. Thread safe: the proxy writes on its thread, the recording can be
+ * closed on any thread. A recording that can't be written is closed and its
+ * {@link RecordingListener} is notified, see {@link #getError()}.
+ */
+/*package*/ class StreamRecorder {
+
+    public static final String DEFAULT_TITLE = "Recording";
+
+    private static final int STAGING_SIZE = 16 * 1024;
+    private static final int MAX_NAME_LENGTH = 80;
+    private static final String ALLOWED_CHARACTERS = " -_.,()&'";
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    private final RecordingListener mListener;
+    private volatile boolean mScanned;
+    // the recordings closed, the oldest first
+    private final LinkedList<File> mRecordings = new LinkedList<File>();
+    private long mRecordingsBytes;
+    private final SimpleDateFormat mDateFormat = new SimpleDateFormat("yyyyMMdd-HHmmss",
+            Locale.US);
+
+    private String mExtension = ".mp3";
+    private String mTitle;
+    // the track changes found in the chunk being demuxed, not written yet
+    private final LinkedList<TrackChange> mTrackChanges = new LinkedList<TrackChange>();
+
+    private File mFile;
+    private FileChannel mChannel;
+    private long mFileBytes;
+    // the audio is copied into it to be written, allocated once
+    private ByteBuffer mStaging;
+    private boolean mClosed;
+    private IOException mError;
+
+    private static final class TrackChange {
+        final long mPosition;
+        final String mTitle;
+
+        TrackChange(final long position, final String title) {
+            mPosition = position;
+            mTitle = title;
+        }
+    }
+
+    /**
+     * @param directory the directory of the recordings, created if needed
+     * @param maxBytes  the maximum number of bytes used by the recordings of the directory
+     * @param listener  the listener notified on the thread of the proxy when the recording
+     *                  fails, or null
+     */
+    public StreamRecorder(final File directory, final long maxBytes,
+                          final RecordingListener listener) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Invalid recording budget " + maxBytes);
+        }
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        mListener = listener;
+    }
+
+    /**
+     * @return the file being written or null if none is open
+     */
+    public synchronized File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return the error that closed the recording or null
+     */
+    public synchronized IOException getError() {
+        return mError;
+    }
+
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Names the files after the track until the stream title changes, e.g. the track playing
+     * when the recording starts
+     *
+     * @param streamTitle the stream title or null if it isn't known
+     */
+    public synchronized void setTitle(final String streamTitle) {
+        mTitle = streamTitle != null && streamTitle.trim().length() > 0
+                ? streamTitle.trim() : null;
+    }
+
+    /**
+     * The stream played changed or reconnected: the next files have the extension of the content
+     * type. The current file is continued if the track doesn't change.
+     *
+     * @param contentType the content type of the stream or null if it isn't known
+     */
+    public synchronized void onStreamStart(final String contentType) {
+        mExtension = toExtension(contentType);
+        mTrackChanges.clear();
+    }
+
+    /**
+     * A metadata block was found in the stream. When the stream title changed, the audio written
+     * from the position on goes to a new file.
+     *
+     * @param position    the number of audio bytes demuxed before the metadata block, counted
+     *                    like the positions given to {@link #write(byte[], int, int, long)}
+     * @param streamTitle the stream title of the metadata, maybe empty
+     */
+    public synchronized void onTrackMetadata(final long position, final String streamTitle) {
+        String title = streamTitle != null && streamTitle.trim().length() > 0
+                ? streamTitle.trim() : null;
+        String current = mTrackChanges.isEmpty() ? mTitle : mTrackChanges.getLast().mTitle;
+        if (title == null ? current == null : title.equals(current)) {
+            return;
+        }
+        mTrackChanges.addLast(new TrackChange(position, title));
+    }
+
+    /**
+     * Writes the audio, starting a new file at the track change found in it
+     *
+     * @param buffer   the audio, without the metadata
+     * @param offset   the offset of the audio in the buffer
+     * @param length   the number of audio bytes
+     * @param position the number of audio bytes demuxed before the first one
+     */
+    public void write(final byte[] buffer, final int offset, final int length,
+                      final long position) {
+        if (!mScanned) {
+            // outside the lock, closing the recording doesn't wait for the scan
+            scanDirectory();
+        }
+        IOException error;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            try {
+                int written = 0;
+                while (!mTrackChanges.isEmpty()) {
+                    TrackChange change = mTrackChanges.removeFirst();
+                    int split = (int) Math.max(written,
+                            Math.min(length, change.mPosition - position));
+                    writeToFile(buffer, offset + written, split - written);
+                    written = split;
+                    closeFile();
+                    mTitle = change.mTitle;
+                }
+                writeToFile(buffer, offset + written, length - written);
+                return;
+            } catch (IOException e) {
+                error = e;
+                mError = e;
+                close();
+            }
+        }
+        if (mListener != null) {
+            mListener.onRecordingFailed(error);
+        }
+    }
+
+    /**
+     * Closes the file being written, no more audio is recorded
+     */
+    public synchronized void close() {
+        mClosed = true;
+        try {
+            closeFile();
+        } catch (IOException e) {
+            if (mError == null) {
+                mError = e;
+            }
+        }
+    }
+
+    /**
+     * Reads the recordings already in the directory, the oldest first
+     */
+    private void scanDirectory() {
+        mDirectory.mkdirs();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            // the names start with the date of the recording
+            Arrays.sort(files);
+        }
+        synchronized (this) {
+            if (mScanned) {
+                return;
+            }
+            mScanned = true;
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                if (file.isFile()) {
+                    mRecordings.add(file);
+                    mRecordingsBytes += file.length();
+                }
+            }
+        }
+    }
+
+    private void writeToFile(final byte[] buffer, final int offset, final int length)
+            throws IOException {
+        if (length == 0) {
+            return;
+        }
+        if (mChannel == null) {
+            openFile();
+        } else if (mFileBytes + length > mMaxBytes) {
+            // a track longer than the budget, continued in another part
+            closeFile();
+            openFile();
+        }
+        if (mStaging == null || mStaging.capacity() < length) {
+            mStaging = ByteBuffer.allocateDirect(Math.max(length, STAGING_SIZE));
+        }
+        mStaging.clear();
+        mStaging.put(buffer, offset, length);
+        mStaging.flip();
+        while (mStaging.hasRemaining()) {
+            mChannel.write(mStaging);
+        }
+        mFileBytes += length;
+        deleteOldest();
+    }
+
+    private void openFile() throws IOException {
+        String name = mDateFormat.format(new Date()) + " "
+                + toFileName(mTitle != null ? mTitle : DEFAULT_TITLE);
+        File file = new File(mDirectory, name + mExtension);
+        for (int i = 2; file.exists(); i++) {
+            file = new File(mDirectory, name + " (" + i + ")" + mExtension);
+        }
+        FileOutputStream output = new FileOutputStream(file);
+        mFile = file;
+        mChannel = output.getChannel();
+        mFileBytes = 0;
+    }
+
+    private void closeFile() throws IOException {
+        FileChannel channel = mChannel;
+        if (channel == null) {
+            return;
+        }
+        mChannel = null;
+        mRecordings.add(mFile);
+        mRecordingsBytes += mFileBytes;
+        mFile = null;
+        mFileBytes = 0;
+        channel.close();
+    }
+
+    /**
+     * Deletes the oldest recordings until the recordings fit in the budget
+     */
+    private void deleteOldest() {
+        while (mRecordingsBytes + mFileBytes > mMaxBytes && !mRecordings.isEmpty()) {
+            File oldest = mRecordings.removeFirst();
+            mRecordingsBytes -= oldest.length();
+            oldest.delete();
+        }
+        if (mRecordings.isEmpty()) {
+            mRecordingsBytes = 0;
+        }
+    }
+
+    /**
+     * @return the title with the characters that can't be in a file name replaced
+     */
+    /*package*/ static String toFileName(final String title) {
+        StringBuilder name = new StringBuilder(Math.min(title.length(), MAX_NAME_LENGTH));
+        for (int i = 0; i < title.length() && name.length() < MAX_NAME_LENGTH; i++) {
+            char c = title.charAt(i);
+            name.append(Character.isLetterOrDigit(c) || ALLOWED_CHARACTERS.indexOf(c) >= 0
+                    ? c : '_');
+        }
+        String trimmed = name.toString().trim();
+        // not hidden, not "." or ".."
+        while (trimmed.startsWith(".")) {
+            trimmed = trimmed.substring(1);
+        }
+        return trimmed.length() > 0 ? trimmed : DEFAULT_TITLE;
+    }
+
+    private static String toExtension(final String contentType) {
+        if (contentType == null) {
+            return ".mp3";
+        }
+        String type = contentType.toLowerCase(Locale.US);
+        if (type.contains("aac")) {
+            return ".aac";
+        } else if (type.contains("ogg")) {
+            return ".ogg";
+        } else if (type.contains("flac")) {
+            return ".flac";
+        } else if (type.contains("opus")) {
+            return ".opus";
+        }
+        return ".mp3";
+    }
+}
@@ -0,0 +1,85 @@
+package com.android.magic.stream.player;
+
+/**
+ * Estimates the throughput of the network from the bytes received over time.
+ * <p/>
+ * The samples are averaged by two exponentially weighted moving averages, weighted by the duration
+ * of the samples: a fast one, reacting within seconds, and a slow one. The estimate is the lowest
+ * of the two, so a drop of the throughput is followed quickly and an increase only when it lasts.
+ * <p/>
+ * Thread safe.
+ */
+/*package*/ class ThroughputEstimator {
+
+    private static final double FAST_HALF_LIFE_MS = 3 * 1000;
+    private static final double SLOW_HALF_LIFE_MS = 10 * 1000;
+
+    // samples shorter than this are mostly the latency of a single read
+    private static final long MIN_SAMPLE_MS = 10;
+
+    private final Average mFast = new Average(FAST_HALF_LIFE_MS);
+    private final Average mSlow = new Average(SLOW_HALF_LIFE_MS);
+    private int mSampleCount;
+
+    private static final class Average {
+        private final double mHalfLifeMs;
+        private double mValue;
+        private double mTotalWeight;
+
+        Average(final double halfLifeMs) {
+            mHalfLifeMs = halfLifeMs;
+        }
+
+        void add(final double durationMs, final double value) {
+            double alpha = Math.pow(0.5, durationMs / mHalfLifeMs);
+            mValue = value * (1 - alpha) + alpha * mValue;
+            mTotalWeight += durationMs;
+        }
+
+        double get() {
+            // corrects the bias towards the initial 0
+            double zeroFactor = 1 - Math.pow(0.5, mTotalWeight / mHalfLifeMs);
+            return mValue / zeroFactor;
+        }
+    }
+
+    /**
+     * Adds a sample
+     *
+     * @param bytes    the number of bytes received
+     * @param duration the time taken to receive them, in milliseconds
+     */
+    public synchronized void addSample(final long bytes, final long duration) {
+        if (duration < MIN_SAMPLE_MS) {
+            return;
+        }
+        double kbps = bytes * 8.0 / duration;
+        mFast.add(duration, kbps);
+        mSlow.add(duration, kbps);
+        mSampleCount++;
+    }
+
+    /**
+     * @return the number of samples added
+     */
+    public synchronized int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * @return true if at least one sample was added
+     */
+    public synchronized boolean hasEstimate() {
+        return mFast.mTotalWeight > 0;
+    }
+
+    /**
+     * @return the estimated throughput, in kbps, or 0 if no sample was added
+     */
+    public synchronized double getEstimateKbps() {
+        if (!hasEstimate()) {
+            return 0;
+        }
+        return Math.min(mFast.get(), mSlow.get());
+    }
+}
@@ -0,0 +1,405 @@
+package com.android.magic.stream.player;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The tracks played on the stations, most recent first, kept in memory for the
+ * {@link #MAX_STATIONS} stations played most recently and in a log file, so they are known after
+ * the application is restarted.
+ * <p/>
+ * The log is only appended to: a track change writes a few bytes, the urls of the stations are
+ * written once and then referred to by their index. When the log holds much more than the tracks
+ * kept, e.g. the tracks of the stations not played any more, it's compacted: rewritten with the
+ * tracks kept only. A record cut by a crash is dropped when the log is loaded.
+ * <p/>
+ * The log is read once, by {@link #load()} or else by the first record, so the log is never
+ * appended to before the tracks of a previous run are known.
+ * <p/>
+ * Thread safe. {@link #load()} and {@link #record(String, String, long)} block on the file
+ * system: call them on a background thread. The tracks are read from memory only, so they can be
+ * read on any thread, e.g. the main thread, but none are known until the log is loaded.
+ */
+/*package*/ class TrackHistory {
+
+    public static final int MAX_STATIONS = 100;
+    public static final int MAX_TRACKS_PER_STATION = 20;
+
+    // the log is compacted when it holds this many times the records kept, and at least
+    // MIN_COMPACTED_RECORDS records
+    private static final int COMPACTION_FACTOR = 2;
+    private static final int MIN_COMPACTED_RECORDS = 256;
+
+    private static final int MAGIC = 0x53505448;
+    private static final int VERSION = 1;
+    private static final int STATION_RECORD = 1;
+    private static final int TRACK_RECORD = 2;
+
+    private final File mFile;
+    // the tracks of the stations, most recent first, the least recently used stations first
+    private final Map<String, LinkedList<PlayedTrack>> mStations = createStations();
+
+    // serializes the reads and writes of the file, guards the fields below
+    private final Object mFileLock = new Object();
+    private DataOutputStream mOutput;
+    // the indexes of the station urls written in the log
+    private final Map<String, Integer> mStationIndexes = new HashMap<String, Integer>();
+    private int mRecordCount;
+    private volatile boolean mLoaded;
+
+    /**
+     * @param file the log file
+     */
+    public TrackHistory(final File file) {
+        mFile = file;
+    }
+
+    private static Map<String, LinkedList<PlayedTrack>> createStations() {
+        return new LinkedHashMap<String, LinkedList<PlayedTrack>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    final Map.Entry<String, LinkedList<PlayedTrack>> eldest) {
+                return size() > MAX_STATIONS;
+            }
+        };
+    }
+
+    /**
+     * @param url       the url of the station
+     * @param maxTracks the maximum number of tracks returned
+     * @return the tracks played on the station, most recent first, maybe none, none before the
+     * log is loaded
+     */
+    public synchronized List<PlayedTrack> getRecentTracks(final String url, final int maxTracks) {
+        LinkedList<PlayedTrack> tracks = mStations.get(url);
+        if (tracks == null) {
+            return Collections.emptyList();
+        }
+        List<PlayedTrack> recent = new ArrayList<PlayedTrack>(Math.min(maxTracks, tracks.size()));
+        for (PlayedTrack track : tracks) {
+            if (recent.size() == maxTracks) {
+                break;
+            }
+            recent.add(track);
+        }
+        return recent;
+    }
+
+    /**
+     * @param url the url of the station
+     * @return the last track played on the station or null if none is known, e.g. before the log
+     * is loaded
+     */
+    public synchronized PlayedTrack getLastKnownTrack(final String url) {
+        return getLast(url);
+    }
+
+    /**
+     * @return true once the log is read
+     */
+    public boolean isLoaded() {
+        return mLoaded;
+    }
+
+    private PlayedTrack getLast(final String url) {
+        LinkedList<PlayedTrack> tracks = mStations.get(url);
+        return tracks != null ? tracks.getFirst() : null;
+    }
+
+    /**
+     * Records a track change, unless the track is the last one recorded for the station, e.g.
+     * when the station is resumed
+     *
+     * @param url         the url of the station
+     * @param streamTitle the stream title of the track
+     * @param playedAt    when the track started, in milliseconds since the epoch
+     */
+    public void record(final String url, final String streamTitle, final long playedAt) {
+        // the log is appended to with the indexes of the stations it holds
+        load();
+        PlayedTrack track = new PlayedTrack(streamTitle, playedAt);
+        synchronized (this) {
+            PlayedTrack last = getLast(url);
+            if (last != null && streamTitle.equals(last.getStreamTitle())) {
+                return;
+            }
+            add(mStations, url, track);
+        }
+
+        synchronized (mFileLock) {
+            try {
+                append(url, track);
+                if (mRecordCount > MIN_COMPACTED_RECORDS
+                        && mRecordCount > COMPACTION_FACTOR * countKeptRecords()) {
+                    compact();
+                }
+            } catch (IOException e) {
+                // the track is known until the application is restarted, the log is written
+                // again from scratch at the next track
+                closeOutput();
+                mFile.delete();
+            }
+        }
+    }
+
+    private static void add(final Map<String, LinkedList<PlayedTrack>> stations,
+                            final String url, final PlayedTrack track) {
+        LinkedList<PlayedTrack> tracks = stations.get(url);
+        if (tracks == null) {
+            tracks = new LinkedList<PlayedTrack>();
+            stations.put(url, tracks);
+        }
+        tracks.addFirst(track);
+        if (tracks.size() > MAX_TRACKS_PER_STATION) {
+            tracks.removeLast();
+        }
+    }
+
+    /**
+     * Reads the log, unless it was read already
+     */
+    public void load() {
+        if (mLoaded) {
+            return;
+        }
+        synchronized (mFileLock) {
+            if (mLoaded) {
+                return;
+            }
+            Map<String, LinkedList<PlayedTrack>> stations = createStations();
+            readLog(stations);
+
+            synchronized (this) {
+                mStations.putAll(stations);
+            }
+            mLoaded = true;
+        }
+    }
+
+    /**
+     * Reads the tracks of the log into the stations
+     */
+    private void readLog(final Map<String, LinkedList<PlayedTrack>> stations) {
+        CountingInputStream counter;
+        try {
+            counter = new CountingInputStream(new FileInputStream(mFile));
+        } catch (FileNotFoundException e) {
+            // nothing recorded yet
+            return;
+        }
+        // the length of the records read entirely
+        long valid = 0;
+        try {
+            DataInputStream input = new DataInputStream(counter);
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Unknown track history");
+            }
+            List<String> urls = new ArrayList<String>();
+            valid = counter.getCount();
+            int type;
+            while ((type = input.read()) != -1) {
+                if (type == STATION_RECORD) {
+                    String url = input.readUTF();
+                    mStationIndexes.put(url, urls.size());
+                    urls.add(url);
+                } else if (type == TRACK_RECORD) {
+                    int index = input.readUnsignedShort();
+                    long playedAt = input.readLong();
+                    String streamTitle = input.readUTF();
+                    if (index >= urls.size()) {
+                        throw new IOException("Unknown station " + index);
+                    }
+                    add(stations, urls.get(index), new PlayedTrack(streamTitle, playedAt));
+                } else {
+                    throw new IOException("Unknown record " + type);
+                }
+                mRecordCount++;
+                valid = counter.getCount();
+            }
+        } catch (IOException e) {
+            // the last record was cut, e.g. by a crash, or the records after the last valid
+            // one are lost
+            truncate(valid);
+        } finally {
+            IoUtils.closeQuietly(counter);
+        }
+    }
+
+    private void truncate(final long length) {
+        if (length == 0) {
+            mFile.delete();
+            mStationIndexes.clear();
+            mRecordCount = 0;
+            return;
+        }
+        try {
+            RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            try {
+                file.setLength(length);
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            mFile.delete();
+            mStationIndexes.clear();
+            mRecordCount = 0;
+        }
+    }
+
+    /**
+     * Appends the track, and the url of its station if it isn't in the log yet, to the log
+     */
+    private void append(final String url, final PlayedTrack track) throws IOException {
+        if (mOutput == null) {
+            boolean empty = !mFile.exists() || mFile.length() == 0;
+            if (empty) {
+                mStationIndexes.clear();
+                mRecordCount = 0;
+            }
+            mOutput = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(mFile, true)));
+            if (empty) {
+                mOutput.writeInt(MAGIC);
+                mOutput.writeInt(VERSION);
+            }
+        }
+        writeTrack(mOutput, mStationIndexes, url, track);
+        mOutput.flush();
+        mRecordCount++;
+    }
+
+    /**
+     * @return the number of records written
+     */
+    private static int writeTrack(final DataOutputStream output,
+                                  final Map<String, Integer> stationIndexes, final String url,
+                                  final PlayedTrack track) throws IOException {
+        int records = 1;
+        Integer index = stationIndexes.get(url);
+        if (index == null) {
+            index = stationIndexes.size();
+            stationIndexes.put(url, index);
+            output.writeByte(STATION_RECORD);
+            output.writeUTF(url);
+            records++;
+        }
+        output.writeByte(TRACK_RECORD);
+        output.writeShort(index);
+        output.writeLong(track.getPlayedAt());
+        output.writeUTF(track.getStreamTitle());
+        return records;
+    }
+
+    private synchronized int countKeptRecords() {
+        int count = 0;
+        for (LinkedList<PlayedTrack> tracks : mStations.values()) {
+            // the station and its tracks
+            count += 1 + tracks.size();
+        }
+        return count;
+    }
+
+    /**
+     * Rewrites the log with the tracks kept in memory only
+     */
+    private void compact() throws IOException {
+        Map<String, List<PlayedTrack>> stations = new LinkedHashMap<String, List<PlayedTrack>>();
+        synchronized (this) {
+            for (Map.Entry<String, LinkedList<PlayedTrack>> station : mStations.entrySet()) {
+                stations.put(station.getKey(), new ArrayList<PlayedTrack>(station.getValue()));
+            }
+        }
+        closeOutput();
+
+        File compacted = new File(mFile.getPath() + ".tmp");
+        Map<String, Integer> stationIndexes = new HashMap<String, Integer>();
+        int recordCount = 0;
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(compacted)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            // the least recently used stations and the oldest tracks first, as they were played
+            for (Map.Entry<String, List<PlayedTrack>> station : stations.entrySet()) {
+                List<PlayedTrack> tracks = station.getValue();
+                for (int i = tracks.size() - 1; i >= 0; i--) {
+                    recordCount += writeTrack(output, stationIndexes, station.getKey(),
+                            tracks.get(i));
+                }
+            }
+        } finally {
+            output.close();
+        }
+        if (!compacted.renameTo(mFile)) {
+            compacted.delete();
+            throw new IOException("Cannot rename " + compacted + " to " + mFile);
+        }
+        mStationIndexes.clear();
+        mStationIndexes.putAll(stationIndexes);
+        mRecordCount = recordCount;
+    }
+
+    private void closeOutput() {
+        IoUtils.closeQuietly(mOutput);
+        mOutput = null;
+    }
+
+    /**
+     * Counts the bytes read, to know where the last valid record ends
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private long mCount;
+
+        CountingInputStream(final InputStream input) {
+            super(new BufferedInputStream(input));
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read != -1) {
+                mCount++;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length)
+                throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(final long count) throws IOException {
+            long skipped = super.skip(count);
+            mCount += skipped;
+            return skipped;
+        }
+    }
+}
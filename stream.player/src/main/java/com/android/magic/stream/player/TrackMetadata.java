@@ -0,0 +1,136 @@
+package com.android.magic.stream.player;
+
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The metadata of the track currently playing on a stream, as sent by the shoutcast/icecast
+ * server, e.g. "StreamTitle='Miles Davis - So What';StreamUrl='http://example.com';"
+ * <p/>
+ * The stream title usually contains the artist's name and the track title separated by " - ".
+ * When the separator is missing, the whole stream title is considered to be the title.
+ * <p/>
+ * Instances are immutable.
+ */
+public final class TrackMetadata {
+
+    /**
+     * Key of the stream title, usually "artist - title"
+     */
+    public static final String STREAM_TITLE = "StreamTitle";
+
+    /**
+     * Key of the url sent with the stream title, usually the web site of the station
+     */
+    public static final String STREAM_URL = "StreamUrl";
+
+    private static final String ARTIST_TITLE_SEPARATOR = " - ";
+
+    /**
+     * The metadata of a stream that doesn't send metadata or that sent an empty block
+     */
+    public static final TrackMetadata EMPTY =
+            new TrackMetadata(Collections.<String, String>emptyMap());
+
+    private final Map<String, String> mValues;
+    private final String mArtist;
+    private final String mTitle;
+
+    /**
+     * @param values the keys and values of the metadata. The map is not copied, it must not be
+     *               changed afterwards.
+     */
+    /*package*/ TrackMetadata(final Map<String, String> values) {
+        mValues = Collections.unmodifiableMap(values);
+
+        String streamTitle = mValues.get(STREAM_TITLE);
+        int separator = streamTitle != null ? streamTitle.indexOf(ARTIST_TITLE_SEPARATOR) : -1;
+        if (separator > 0) {
+            mArtist = streamTitle.substring(0, separator).trim();
+            mTitle = streamTitle.substring(separator + ARTIST_TITLE_SEPARATOR.length()).trim();
+        } else {
+            mArtist = null;
+            mTitle = streamTitle;
+        }
+    }
+
+    /**
+     * @param streamTitle the stream title or null
+     * @return the metadata containing only the stream title
+     */
+    /*package*/ static TrackMetadata ofStreamTitle(final String streamTitle) {
+        return streamTitle == null ? EMPTY
+                : new TrackMetadata(Collections.singletonMap(STREAM_TITLE, streamTitle));
+    }
+
+    /**
+     * @return the stream title, as sent by the server, or null if the server didn't send it
+     */
+    @Nullable
+    public String getStreamTitle() {
+        return mValues.get(STREAM_TITLE);
+    }
+
+    /**
+     * @return the artist's name or null if the stream title doesn't contain it
+     */
+    @Nullable
+    public String getArtist() {
+        return mArtist;
+    }
+
+    /**
+     * @return the title of the track or null if the server didn't send the stream title
+     */
+    @Nullable
+    public String getTitle() {
+        return mTitle;
+    }
+
+    /**
+     * @return the stream url or null if the server didn't send it
+     */
+    @Nullable
+    public String getStreamUrl() {
+        return mValues.get(STREAM_URL);
+    }
+
+    /**
+     * @param key the key of the metadata, e.g. {@link #STREAM_TITLE}
+     * @return the value sent for the key or null
+     */
+    @Nullable
+    public String get(final String key) {
+        return mValues.get(key);
+    }
+
+    /**
+     * @return all the keys and values sent by the server, in the order they were sent
+     */
+    public Map<String, String> getValues() {
+        return mValues;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TrackMetadata)) {
+            return false;
+        }
+        return mValues.equals(((TrackMetadata) o).mValues);
+    }
+
+    @Override
+    public int hashCode() {
+        return mValues.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "TrackMetadata" + mValues;
+    }
+}
@@ -0,0 +1,14 @@
+package com.android.magic.stream.player;
+
+/**
+ * Listener of the metadata blocks parsed from a stream
+ */
+/*package*/ interface TrackMetadataListener {
+
+    /**
+     * Called every time a metadata block is received, even if the track didn't change
+     *
+     * @param metadata the parsed metadata
+     */
+    public void onTrackMetadata(final TrackMetadata metadata);
+}
@@ -0,0 +1,160 @@
+package com.android.magic.stream.player;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class AudioFrameAlignerTest {
+
+    /**
+     * The header of an MPEG 1 layer III frame at 128 kbps and 44.1 kHz, 417 bytes long
+     */
+    static final int[] HEADER_128_KBPS = {0xff, 0xfb, 0x90, 0x64};
+    static final int LENGTH_128_KBPS = 417;
+    /**
+     * The header of an MPEG 1 layer III frame at 32 kbps and 44.1 kHz, 104 bytes long
+     */
+    static final int[] HEADER_32_KBPS = {0xff, 0xfb, 0x10, 0x64};
+    static final int LENGTH_32_KBPS = 104;
+
+    /**
+     * @return the frames, whose payload bytes follow each other from a different value in
+     * every frame and are never 0xff, so a frame cut and followed by another one is noticed
+     */
+    static byte[] frames(final int[] header, final int frameLength, final int count) {
+        byte[] frames = new byte[frameLength * count];
+        for (int frame = 0; frame < count; frame++) {
+            int start = frame * frameLength;
+            for (int i = 0; i < header.length; i++) {
+                frames[start + i] = (byte) header[i];
+            }
+            for (int i = header.length; i < frameLength; i++) {
+                frames[start + i] = (byte) ((frame * 7 + i) % 250);
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Checks that the bytes are whole frames of the two kinds, the last one excepted
+     *
+     * @return the number of frames of the 32 kbps kind
+     */
+    static int assertWholeFrames(final byte[] bytes, final int length) {
+        int position = 0;
+        int lowFrames = 0;
+        while (position + 4 <= length) {
+            int frameLength;
+            if (hasHeader(bytes, position, HEADER_128_KBPS)) {
+                frameLength = LENGTH_128_KBPS;
+            } else if (hasHeader(bytes, position, HEADER_32_KBPS)) {
+                frameLength = LENGTH_32_KBPS;
+                lowFrames++;
+            } else {
+                throw new AssertionError("No frame header at " + position);
+            }
+            int first = bytes[position + 4] & 0xff;
+            for (int i = 5; i < frameLength && position + i < length; i++) {
+                if ((bytes[position + i] & 0xff) != (first + i - 4) % 250) {
+                    throw new AssertionError("Frame at " + position + " cut at " + i);
+                }
+            }
+            position += frameLength;
+        }
+        return lowFrames;
+    }
+
+    private static boolean hasHeader(final byte[] bytes, final int position, final int[] header) {
+        for (int i = 0; i < header.length; i++) {
+            if ((bytes[position + i] & 0xff) != header[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Test
+    public void passesWholeFramesOnly() {
+        AudioFrameAligner aligner = AudioFrameAligner.forContentType("audio/mpeg");
+        byte[] stream = frames(HEADER_128_KBPS, LENGTH_128_KBPS, 50);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int offset = 0;
+        for (int chunk = 1; offset < stream.length; chunk = chunk * 3 % 1000 + 1) {
+            int length = Math.min(chunk, stream.length - offset);
+            int frames = aligner.align(stream, offset, length);
+            assertEquals(0, frames % LENGTH_128_KBPS);
+            output.write(aligner.getFrames(), aligner.getFramesOffset(), frames);
+            offset += length;
+        }
+        assertEquals(stream.length, output.size());
+        assertWholeFrames(output.toByteArray(), output.size());
+    }
+
+    @Test
+    public void cutsTheSwitchBetweenTwoFrames() {
+        AudioFrameAligner aligner = AudioFrameAligner.forContentType("audio/mpeg");
+        byte[] high = frames(HEADER_128_KBPS, LENGTH_128_KBPS, 10);
+        byte[] low = frames(HEADER_32_KBPS, LENGTH_32_KBPS, 20);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        // the first stream is left inside a frame
+        int frames = aligner.align(high, 0, 5 * LENGTH_128_KBPS + 100);
+        output.write(aligner.getFrames(), aligner.getFramesOffset(), frames);
+        aligner.reset();
+        // the second stream starts inside a frame
+        frames = aligner.align(low, 50, low.length - 50);
+        output.write(aligner.getFrames(), aligner.getFramesOffset(), frames);
+
+        byte[] bytes = output.toByteArray();
+        // the first frame of the second stream is dropped
+        assertEquals(19, assertWholeFrames(bytes, bytes.length));
+        assertEquals(5 * LENGTH_128_KBPS + 19 * LENGTH_32_KBPS, bytes.length);
+    }
+
+    @Test
+    public void dropsTheBytesBeforeTheFirstFrame() {
+        AudioFrameAligner aligner = AudioFrameAligner.forContentType("audio/mpeg");
+        byte[] stream = frames(HEADER_128_KBPS, LENGTH_128_KBPS, 10);
+        // a false header in the garbage isn't confirmed by a following one
+        stream[3] = (byte) 0xff;
+        stream[4] = (byte) 0xfb;
+        stream[5] = (byte) 0x90;
+
+        int frames = aligner.align(stream, 3, stream.length - 3);
+        assertEquals(LENGTH_128_KBPS - 3, aligner.getFramesOffset());
+        assertEquals(9 * LENGTH_128_KBPS, frames);
+    }
+
+    @Test
+    public void alignsAdtsFrames() {
+        AudioFrameAligner aligner = AudioFrameAligner.forContentType("audio/aacp");
+        int length = 300;
+        // AAC LC, 44.1 kHz, stereo, no CRC, 300 bytes
+        int[] header = {0xff, 0xf1, 0x50, 0x80 | (length >> 11), (length >> 3) & 0xff,
+                ((length & 0x07) << 5) | 0x1f, 0xfc};
+        byte[] stream = frames(header, length, 10);
+
+        int frames = aligner.align(stream, 120, stream.length - 120);
+        assertEquals(length - 120, aligner.getFramesOffset());
+        assertEquals(9 * length, frames);
+    }
+
+    @Test
+    public void passesTheAudioWithoutFrames() {
+        AudioFrameAligner aligner = AudioFrameAligner.forContentType("audio/mpeg");
+        byte[] audio = new byte[AudioFrameAligner.MAX_SYNC_SEARCH];
+        assertEquals(0, aligner.align(audio, 0, 1000));
+        assertEquals(audio.length, aligner.align(audio, 0, audio.length - 1000));
+        assertEquals(0, aligner.getFramesOffset());
+        assertEquals(500, aligner.align(audio, 0, 500));
+    }
+
+    @Test
+    public void onlyAlignsTheKnownFormats() {
+        assertNull(AudioFrameAligner.forContentType("application/ogg"));
+        assertNull(AudioFrameAligner.forContentType(null));
+    }
+}
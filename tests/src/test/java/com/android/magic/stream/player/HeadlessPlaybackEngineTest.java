@@ -0,0 +1,276 @@
+package com.android.magic.stream.player;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class HeadlessPlaybackEngineTest {
+
+    // 2000 bytes per second, so a few seconds of audio are received quickly
+    private static final int BITRATE_KBPS = 16;
+    private static final int BYTES_PER_SECOND = BITRATE_KBPS * 1000 / 8;
+    private static final long TIMEOUT_MS = 10 * 1000;
+    // the number of engines playing at the same time in the load test
+    private static final int LOAD_STREAMS = 50;
+
+    private static final String PREPARED = "prepared";
+    private static final String PLAYING = "playing";
+    private static final String STOP = "stop";
+    private static final String REBUFFER_START = "rebuffer start";
+    private static final String REBUFFER_END = "rebuffer end";
+    private static final String ERROR_IO = "error " + HeadlessPlaybackEngine.MEDIA_ERROR_IO;
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            command.run();
+        }
+    };
+
+    private final byte[] mAudio = StandInStream.pattern(4096);
+    private final List<HeadlessPlaybackEngine> mEngines = new ArrayList<HeadlessPlaybackEngine>();
+    private StandInServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StandInServer();
+    }
+
+    @After
+    public void tearDown() {
+        for (HeadlessPlaybackEngine engine : mEngines) {
+            engine.quit();
+        }
+        mServer.stop();
+    }
+
+    @Test
+    public void playsAfterThePrepareBuffer() throws InterruptedException {
+        mServer.setHandler("/stream", new StandInStream(mAudio).setBitrateKbps(BITRATE_KBPS)
+                .setBytesPerSecond(BYTES_PER_SECOND * 4));
+        EventRecorder client = new EventRecorder();
+        HeadlessPlaybackEngine engine = createEngine(client);
+
+        long start = System.currentTimeMillis();
+        engine.initializePlayer(mServer.getUrl("/stream"));
+        client.await(PREPARED);
+        client.await(PLAYING);
+        // the prepare buffer is received at 4 times the bitrate, the first chunk at once
+        long elapsed = System.currentTimeMillis() - start;
+        assertEquals(PlayerState.PLAYING, engine.getPlayerState());
+        if (elapsed < HeadlessPlaybackEngine.PREPARE_SECONDS * 1000 / 8) {
+            fail("Prepared after " + elapsed + " ms");
+        }
+    }
+
+    @Test
+    public void pausesAndResumes() throws InterruptedException {
+        mServer.setHandler("/stream", new StandInStream(mAudio).setBitrateKbps(BITRATE_KBPS));
+        EventRecorder client = new EventRecorder();
+        HeadlessPlaybackEngine engine = createEngine(client);
+
+        engine.initializePlayer(mServer.getUrl("/stream"));
+        client.await(PLAYING);
+        engine.pauseMediaPlayer(false);
+        client.await(STOP);
+        assertEquals(PlayerState.PAUSED, engine.getPlayerState());
+        engine.startMediaPlayer();
+        client.await(PLAYING);
+        engine.stopMediaPlayer();
+        client.await(STOP);
+        assertEquals(PlayerState.IDLE, engine.getPlayerState());
+    }
+
+    @Test
+    public void reportsTheStallsOfTheStream() throws InterruptedException {
+        // the prepare buffer, then nothing for longer than it lasts
+        long stallMs = HeadlessPlaybackEngine.PREPARE_SECONDS * 1000 + 1000;
+        mServer.setHandler("/stream",
+                stalling(HeadlessPlaybackEngine.PREPARE_SECONDS * BYTES_PER_SECOND, stallMs));
+        EventRecorder client = new EventRecorder();
+        HeadlessPlaybackEngine engine = createEngine(client);
+
+        engine.initializePlayer(mServer.getUrl("/stream"));
+        client.await(PLAYING);
+        client.await(REBUFFER_START);
+        client.await(REBUFFER_END);
+        assertEquals(PlayerState.PLAYING, engine.getPlayerState());
+    }
+
+    @Test
+    public void playsAShortStreamUntilItsEnd() throws InterruptedException {
+        // shorter than the prepare buffer
+        mServer.setHandler("/stream", new StandInStream(mAudio).setBitrateKbps(BITRATE_KBPS)
+                .setLength(BYTES_PER_SECOND));
+        EventRecorder client = new EventRecorder();
+        HeadlessPlaybackEngine engine = createEngine(client);
+
+        engine.initializePlayer(mServer.getUrl("/stream"));
+        client.await(PLAYING);
+        client.await(ERROR_IO);
+        assertEquals(PlayerState.ERROR, engine.getPlayerState());
+    }
+
+    @Test
+    public void reportsADeadStation() throws InterruptedException {
+        mServer.setHandler("/dead", StandInServer.status(404));
+        EventRecorder client = new EventRecorder();
+        HeadlessPlaybackEngine engine = createEngine(client);
+
+        engine.initializePlayer(mServer.getUrl("/dead"));
+        client.await(ERROR_IO);
+        assertEquals(PlayerState.ERROR, engine.getPlayerState());
+        assertNull(client.find(PLAYING));
+    }
+
+    /**
+     * A load test: many engines play throttled streams of the same server at the same time,
+     * each one without a stall
+     */
+    @Test
+    public void playsManyStreamsAtOnce() throws InterruptedException {
+        mServer.setHandler("/stream", new StandInStream(mAudio).setBitrateKbps(BITRATE_KBPS)
+                .setBytesPerSecond(BYTES_PER_SECOND * 2));
+        List<EventRecorder> clients = new ArrayList<EventRecorder>();
+        for (int i = 0; i < LOAD_STREAMS; i++) {
+            EventRecorder client = new EventRecorder();
+            createEngine(client).initializePlayer(mServer.getUrl("/stream"));
+            clients.add(client);
+        }
+
+        for (EventRecorder client : clients) {
+            client.await(PLAYING);
+        }
+        // the streams are received faster than they are played
+        Thread.sleep(HeadlessPlaybackEngine.PREPARE_SECONDS * 1000);
+        for (int i = 0; i < LOAD_STREAMS; i++) {
+            assertNull("Stream " + i, clients.get(i).find(REBUFFER_START));
+            assertEquals(PlayerState.PLAYING, mEngines.get(i).getPlayerState());
+        }
+        assertEquals(LOAD_STREAMS, mServer.getRequestCount("/stream"));
+    }
+
+    private HeadlessPlaybackEngine createEngine(final EventRecorder client) {
+        HeadlessPlaybackEngine engine = new HeadlessPlaybackEngine(client, DIRECT,
+                HttpTransport.shared());
+        engine.start();
+        mEngines.add(engine);
+        return engine;
+    }
+
+    /**
+     * @return a handler sending the audio at once, then nothing for the duration of the stall,
+     * then enough audio to play again
+     */
+    private StandInServer.Handler stalling(final int length, final long stallMs) {
+        return new StandInServer.Handler() {
+            @Override
+            public void handle(final StandInServer.Request request, final OutputStream output)
+                    throws IOException, InterruptedException {
+                output.write(("HTTP/1.0 200 OK\r\n"
+                        + "Content-Type: audio/mpeg\r\n"
+                        + "icy-br: " + BITRATE_KBPS + "\r\n\r\n").getBytes("ISO-8859-1"));
+                byte[] audio = new byte[length];
+                output.write(audio);
+                output.flush();
+                Thread.sleep(stallMs);
+                output.write(new byte[HeadlessPlaybackEngine.BUFFER_SECONDS * BYTES_PER_SECOND]);
+                output.flush();
+                // the connection stays open
+                Thread.sleep(TIMEOUT_MS);
+            }
+        };
+    }
+
+    /**
+     * Records the notifications of an engine
+     */
+    private static final class EventRecorder implements IMediaPlayerThreadClient {
+
+        private final BlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+        // the events received, taken from the queue
+        private final List<String> mReceived = new ArrayList<String>();
+
+        /**
+         * Waits for the event, after the events waited for before
+         */
+        void await(final String event) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                String received = remaining > 0
+                        ? mEvents.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                if (received == null) {
+                    fail("No " + event + " after " + mReceived);
+                }
+                mReceived.add(received);
+                if (received.equals(event)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return the event if it was received, or null
+         */
+        String find(final String event) {
+            mEvents.drainTo(mReceived);
+            return mReceived.contains(event) ? event : null;
+        }
+
+        @Override
+        public void onInitializePlayerStart() {
+        }
+
+        @Override
+        public void onPlaying() {
+            mEvents.add(PLAYING);
+        }
+
+        @Override
+        public void onStop() {
+            mEvents.add(STOP);
+        }
+
+        @Override
+        public void onError(final int what, final int extra) {
+            mEvents.add("error " + extra);
+        }
+
+        @Override
+        public void onBufferingUpdate(final int percent) {
+        }
+
+        @Override
+        public void onStateChanged(final PlayerState state) {
+        }
+
+        @Override
+        public void onPrepared(final long prepareMillis) {
+            mEvents.add(PREPARED);
+        }
+
+        @Override
+        public void onRebufferStart() {
+            mEvents.add(REBUFFER_START);
+        }
+
+        @Override
+        public void onRebufferEnd(final long rebufferMillis) {
+            mEvents.add(REBUFFER_END);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.android.magic.stream.player;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MirrorRacerTest {
+
+    private final byte[] mAudio = AudioFrameAlignerTest.frames(
+            AudioFrameAlignerTest.HEADER_128_KBPS, AudioFrameAlignerTest.LENGTH_128_KBPS, 10);
+    private StandInServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StandInServer();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void skipsTheDeadMirrors() throws IOException {
+        mServer.setHandler("/dead", StandInServer.status(404));
+        mServer.setHandler("/alive", new StandInStream(mAudio));
+
+        String winner = new MirrorRacer(HttpTransport.shared()).race(
+                Arrays.asList(mServer.getUrl("/dead"), mServer.getUrl("/alive")));
+        assertEquals(mServer.getUrl("/alive"), winner);
+    }
+
+    @Test
+    public void skipsTheMirrorsSendingAPage() throws IOException {
+        mServer.setHandler("/portal", StandInServer.text("text/html", "<html>Log in</html>"));
+        mServer.setHandler("/alive", new StandInStream(mAudio));
+
+        String winner = new MirrorRacer(HttpTransport.shared()).race(
+                Arrays.asList(mServer.getUrl("/portal"), mServer.getUrl("/alive")));
+        assertEquals(mServer.getUrl("/alive"), winner);
+    }
+
+    @Test
+    public void startsTheNextMirrorAfterTheStagger() throws IOException {
+        mServer.setHandler("/slow", delayed(MirrorRacer.TIMEOUT_MS / 2));
+        mServer.setHandler("/alive", new StandInStream(mAudio));
+
+        long start = System.currentTimeMillis();
+        String winner = new MirrorRacer(HttpTransport.shared()).race(
+                Arrays.asList(mServer.getUrl("/slow"), mServer.getUrl("/alive")));
+        assertEquals(mServer.getUrl("/alive"), winner);
+        assertTrue(System.currentTimeMillis() - start < MirrorRacer.TIMEOUT_MS / 2);
+    }
+
+    @Test
+    public void failsWhenNoMirrorSendsAudio() {
+        mServer.setHandler("/dead", StandInServer.status(503));
+        mServer.setHandler("/portal", StandInServer.text("text/html", "<html>Log in</html>"));
+
+        try {
+            new MirrorRacer(HttpTransport.shared()).race(
+                    Arrays.asList(mServer.getUrl("/dead"), mServer.getUrl("/portal")));
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void stopsWhenCancelled() throws Exception {
+        mServer.setHandler("/slow", delayed(MirrorRacer.TIMEOUT_MS));
+        final MirrorRacer racer = new MirrorRacer(HttpTransport.shared());
+        Thread canceller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(MirrorRacer.STAGGER_MS * 2);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                racer.cancel();
+            }
+        });
+        canceller.start();
+
+        long start = System.currentTimeMillis();
+        try {
+            racer.race(Arrays.asList(mServer.getUrl("/slow"), mServer.getUrl("/slow")));
+            fail();
+        } catch (InterruptedIOException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start < MirrorRacer.TIMEOUT_MS / 2);
+    }
+
+    @Test
+    public void stopsWhenInterrupted() throws Exception {
+        mServer.setHandler("/slow", delayed(MirrorRacer.TIMEOUT_MS));
+        final Thread racing = Thread.currentThread();
+        Thread interrupter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(MirrorRacer.STAGGER_MS * 2);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                racing.interrupt();
+            }
+        });
+        interrupter.start();
+
+        long start = System.currentTimeMillis();
+        try {
+            new MirrorRacer(HttpTransport.shared()).race(
+                    Arrays.asList(mServer.getUrl("/slow"), mServer.getUrl("/slow")));
+            fail();
+        } catch (InterruptedIOException e) {
+            // expected
+        }
+        assertTrue(Thread.interrupted());
+        assertTrue(System.currentTimeMillis() - start < MirrorRacer.TIMEOUT_MS / 2);
+    }
+
+    /**
+     * @return a handler answering after the delay, like a mirror that is slow to connect
+     */
+    private StandInServer.Handler delayed(final long delayMs) {
+        return new StandInServer.Handler() {
+            @Override
+            public void handle(final StandInServer.Request request, final OutputStream output)
+                    throws IOException, InterruptedException {
+                Thread.sleep(delayMs);
+                new StandInStream(mAudio).handle(request, output);
+            }
+        };
+    }
+}
@@ -0,0 +1,224 @@
+package com.android.magic.stream.player;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A stand-in for the servers of the stations, listening on the loopback interface: serves the
+ * response given for each path, e.g. a {@link StandInStream}, so the network code of the library
+ * can be tested without the network. Every connection is served on its own thread and closed
+ * after the response, like an HTTP/1.0 server.
+ */
+/*package*/ class StandInServer {
+
+    private static final String CHARSET = "ISO-8859-1";
+
+    /**
+     * Writes the response to a request, status line and headers included
+     */
+    public interface Handler {
+        void handle(Request request, OutputStream output)
+                throws IOException, InterruptedException;
+    }
+
+    /**
+     * A request received by the server
+     */
+    public static final class Request {
+        private final String mPath;
+        private final Map<String, String> mHeaders;
+
+        Request(final String path, final Map<String, String> headers) {
+            mPath = path;
+            mHeaders = headers;
+        }
+
+        public String getPath() {
+            return mPath;
+        }
+
+        /**
+         * @param name the name of the header, in any case
+         * @return the value of the header or null if the request doesn't have it
+         */
+        public String getHeader(final String name) {
+            return mHeaders.get(name.toLowerCase(Locale.US));
+        }
+    }
+
+    private final ServerSocket mServerSocket;
+    private final Map<String, Handler> mHandlers = new ConcurrentHashMap<String, Handler>();
+    private final List<Request> mRequests =
+            Collections.synchronizedList(new ArrayList<Request>());
+    private final List<Socket> mClients = Collections.synchronizedList(new ArrayList<Socket>());
+    private volatile boolean mRunning = true;
+
+    public StandInServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptClients();
+            }
+        }, StandInServer.class.getSimpleName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param path    the path of the requests handled, e.g. "/stream"
+     * @param handler writes the responses
+     */
+    public void setHandler(final String path, final Handler handler) {
+        mHandlers.put(path, handler);
+    }
+
+    /**
+     * @return the url of the path on the server
+     */
+    public String getUrl(final String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    /**
+     * @return the number of requests received for the path so far
+     */
+    public int getRequestCount(final String path) {
+        int count = 0;
+        synchronized (mRequests) {
+            for (Request request : mRequests) {
+                if (request.getPath().equals(path)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Closes the server and all the connections
+     */
+    public void stop() {
+        mRunning = false;
+        IoUtils.closeQuietly(mServerSocket);
+        synchronized (mClients) {
+            for (Socket client : mClients) {
+                IoUtils.closeQuietly(client);
+            }
+        }
+    }
+
+    /**
+     * @return a handler responding with the status code and no body
+     */
+    public static Handler status(final int code) {
+        return new Handler() {
+            @Override
+            public void handle(final Request request, final OutputStream output)
+                    throws IOException {
+                output.write(("HTTP/1.0 " + code + " Status\r\n"
+                        + "Content-Length: 0\r\n\r\n").getBytes(CHARSET));
+            }
+        };
+    }
+
+    /**
+     * @return a handler responding with the text
+     */
+    public static Handler text(final String contentType, final String body) {
+        return new Handler() {
+            @Override
+            public void handle(final Request request, final OutputStream output)
+                    throws IOException {
+                byte[] bytes = body.getBytes("UTF-8");
+                output.write(("HTTP/1.0 200 OK\r\n"
+                        + "Content-Type: " + contentType + "\r\n"
+                        + "Content-Length: " + bytes.length + "\r\n\r\n").getBytes(CHARSET));
+                output.write(bytes);
+            }
+        };
+    }
+
+    private void acceptClients() {
+        while (mRunning) {
+            final Socket client;
+            try {
+                client = mServerSocket.accept();
+            } catch (IOException e) {
+                // stopped
+                return;
+            }
+            mClients.add(client);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(client);
+                    } catch (IOException e) {
+                        // the client closed the connection
+                    } catch (InterruptedException e) {
+                        // stopped
+                    } finally {
+                        IoUtils.closeQuietly(client);
+                        mClients.remove(client);
+                    }
+                }
+            }, StandInServer.class.getSimpleName() + "-client");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(final Socket client) throws IOException, InterruptedException {
+        InputStream input = client.getInputStream();
+        String requestLine = readLine(input);
+        if (requestLine == null) {
+            return;
+        }
+        // "GET /path HTTP/1.1"
+        String[] parts = requestLine.split(" ");
+        String path = parts.length > 1 ? parts[1] : "/";
+        Map<String, String> headers = new HashMap<String, String>();
+        String line;
+        while ((line = readLine(input)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        Request request = new Request(path, headers);
+        mRequests.add(request);
+
+        OutputStream output = client.getOutputStream();
+        Handler handler = mHandlers.get(path);
+        if (handler == null) {
+            status(404).handle(request, output);
+        } else {
+            handler.handle(request, output);
+        }
+        output.flush();
+    }
+
+    private static String readLine(final InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = input.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return b == -1 && line.length() == 0 ? null : line.toString();
+    }
+}
@@ -0,0 +1,197 @@
+package com.android.magic.stream.player;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An ICY stream served by a {@link StandInServer}: the audio given, repeated, with a metadata
+ * block every metadata interval when the client requests the metadata. The stream can be
+ * throttled and can end after a number of audio bytes, like a connection that is lost.
+ * <p/>
+ * The audio byte at a position of the stream is the byte of the audio at the position modulo its
+ * length, see {@link #audioAt(byte[], long)}, so a client can check what it received.
+ */
+/*package*/ class StandInStream implements StandInServer.Handler {
+
+    private static final String CHARSET = "ISO-8859-1";
+    private static final int CHUNK_SIZE = 1024;
+    private static final int METADATA_LENGTH_MULTIPLIER = 16;
+    private static final long NANOS_PER_SECOND = 1000L * 1000 * 1000;
+
+    private final byte[] mAudio;
+    private volatile String mContentType = "audio/mpeg";
+    private volatile String mBitrate;
+    private volatile int mMetaInterval;
+    private volatile int mBlocksPerTitle = 1;
+    private volatile String[] mTitles = new String[0];
+    private volatile boolean mEmptyBlocks;
+    private volatile long mBytesPerSecond;
+    private volatile long mLength;
+    private volatile int mOffset;
+
+    /**
+     * @param audio the audio sent repeatedly
+     */
+    public StandInStream(final byte[] audio) {
+        mAudio = audio;
+    }
+
+    /**
+     * @return audio bytes that differ from their neighbours, so a shifted or repeated part of the
+     * stream is noticed
+     */
+    public static byte[] pattern(final int length) {
+        byte[] audio = new byte[length];
+        for (int i = 0; i < length; i++) {
+            audio[i] = (byte) (i * 31 + i / 251);
+        }
+        return audio;
+    }
+
+    /**
+     * @return the byte of the audio at the position of the stream
+     */
+    public static byte audioAt(final byte[] audio, final long position) {
+        return audio[(int) (position % audio.length)];
+    }
+
+    public StandInStream setContentType(final String contentType) {
+        mContentType = contentType;
+        return this;
+    }
+
+    /**
+     * @param bitrateKbps the bitrate announced in the icy-br header or 0 for none
+     */
+    public StandInStream setBitrateKbps(final int bitrateKbps) {
+        return setBitrate(bitrateKbps > 0 ? String.valueOf(bitrateKbps) : null);
+    }
+
+    /**
+     * @param bitrate the icy-br header as the server sends it, e.g. "128 kbps", or null for none
+     */
+    public StandInStream setBitrate(final String bitrate) {
+        mBitrate = bitrate;
+        return this;
+    }
+
+    /**
+     * Sends the titles in the metadata blocks, each one for the given number of blocks, the first
+     * one again after the last one
+     *
+     * @param metaInterval  the number of audio bytes between the metadata blocks
+     * @param blocksPerTitle the number of metadata blocks sent with the same title
+     */
+    public StandInStream setMetadata(final int metaInterval, final int blocksPerTitle,
+                                     final String... titles) {
+        mMetaInterval = metaInterval;
+        mBlocksPerTitle = blocksPerTitle;
+        mTitles = titles;
+        return this;
+    }
+
+    /**
+     * @param emptyBlocks true to send an empty metadata block while the title doesn't change,
+     *                    like most servers, false to send the title in every block
+     */
+    public StandInStream setEmptyBlocks(final boolean emptyBlocks) {
+        mEmptyBlocks = emptyBlocks;
+        return this;
+    }
+
+    /**
+     * @param bytesPerSecond the maximum rate of the stream or 0 to send it as fast as possible
+     */
+    public StandInStream setBytesPerSecond(final long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * @param length the number of audio bytes sent before the connection is closed or 0 for an
+     *               endless stream
+     */
+    public StandInStream setLength(final long length) {
+        mLength = length;
+        return this;
+    }
+
+    /**
+     * @param offset the position in the audio the stream starts from, e.g. inside an audio frame
+     */
+    public StandInStream setOffset(final int offset) {
+        mOffset = offset;
+        return this;
+    }
+
+    /**
+     * @return the title sent in the metadata block following the audio byte at the position
+     */
+    public String getTitleAt(final long position) {
+        long block = position / mMetaInterval;
+        return mTitles[(int) ((block / mBlocksPerTitle) % mTitles.length)];
+    }
+
+    @Override
+    public void handle(final StandInServer.Request request, final OutputStream output)
+            throws IOException, InterruptedException {
+        boolean metadata = "1".equals(request.getHeader("Icy-MetaData")) && mMetaInterval > 0;
+        StringBuilder headers = new StringBuilder("HTTP/1.0 200 OK\r\n")
+                .append("Content-Type: ").append(mContentType).append("\r\n")
+                .append("icy-name: Stand-in Radio\r\n");
+        if (mBitrate != null) {
+            headers.append("icy-br: ").append(mBitrate).append("\r\n");
+        }
+        if (metadata) {
+            headers.append("icy-metaint: ").append(mMetaInterval).append("\r\n");
+        }
+        output.write(headers.append("\r\n").toString().getBytes(CHARSET));
+
+        long start = System.nanoTime();
+        long position = 0;
+        byte[] chunk = new byte[CHUNK_SIZE];
+        while (mLength == 0 || position < mLength) {
+            int length = CHUNK_SIZE;
+            if (mLength > 0) {
+                length = (int) Math.min(length, mLength - position);
+            }
+            if (metadata) {
+                length = (int) Math.min(length, mMetaInterval - position % mMetaInterval);
+            }
+            for (int i = 0; i < length; i++) {
+                chunk[i] = audioAt(mAudio, mOffset + position + i);
+            }
+            output.write(chunk, 0, length);
+            position += length;
+            if (metadata && position % mMetaInterval == 0) {
+                String title = getTitleAt(position - 1);
+                boolean unchanged = position > mMetaInterval
+                        && title.equals(getTitleAt(position - 1 - mMetaInterval));
+                output.write(mEmptyBlocks && unchanged ? new byte[1] : metadataBlock(title));
+            }
+            throttle(start, position);
+        }
+    }
+
+    private void throttle(final long start, final long position) throws InterruptedException {
+        long rate = mBytesPerSecond;
+        if (rate <= 0) {
+            return;
+        }
+        long due = start + position * NANOS_PER_SECOND / rate;
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+    }
+
+    private static byte[] metadataBlock(final String title) throws IOException {
+        byte[] metadata = ("StreamTitle='" + title + "';").getBytes("UTF-8");
+        int blocks = (metadata.length + METADATA_LENGTH_MULTIPLIER - 1)
+                / METADATA_LENGTH_MULTIPLIER;
+        byte[] block = new byte[1 + blocks * METADATA_LENGTH_MULTIPLIER];
+        block[0] = (byte) blocks;
+        System.arraycopy(metadata, 0, block, 1, metadata.length);
+        return block;
+    }
+}
@@ -0,0 +1,130 @@
+package com.android.magic.stream.player;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StationProberTest {
+
+    private static final int META_INTERVAL = 8192;
+
+    private final byte[] mAudio = StandInStream.pattern(4096);
+    private StandInServer mServer;
+    private StationProber mProber;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StandInServer();
+        mProber = new StationProber(HttpTransport.shared(), 2, StationProber.DEFAULT_TTL_MS);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void readsWhatTheStationAnnounces() {
+        mServer.setHandler("/stream", new StandInStream(mAudio).setBitrate("128")
+                .setMetadata(META_INTERVAL, 1, "Title"));
+
+        StationHealth health = mProber.probe(mServer.getUrl("/stream"));
+        assertTrue(health.isReachable());
+        assertTrue(health.isAudio());
+        assertEquals(200, health.getStatusCode());
+        assertEquals("audio/mpeg", health.getContentType());
+        assertEquals(128, health.getBitrateKbps());
+        assertEquals(META_INTERVAL, health.getMetaInterval());
+        assertTrue(health.getConnectTimeMs() >= 0);
+        assertTrue(health.getTimeToFirstByteMs() >= health.getConnectTimeMs());
+        assertNull(health.getError());
+    }
+
+    @Test
+    public void readsTheBitrateFollowedByText() {
+        mServer.setHandler("/unit", new StandInStream(mAudio).setBitrate("128 kbps"));
+        mServer.setHandler("/list", new StandInStream(mAudio).setBitrate("64,128"));
+        mServer.setHandler("/text", new StandInStream(mAudio).setBitrate("unknown"));
+
+        assertEquals(128, mProber.probe(mServer.getUrl("/unit")).getBitrateKbps());
+        assertEquals(64, mProber.probe(mServer.getUrl("/list")).getBitrateKbps());
+        assertEquals(0, mProber.probe(mServer.getUrl("/text")).getBitrateKbps());
+    }
+
+    @Test
+    public void reportsADeadStation() {
+        mServer.setHandler("/dead", StandInServer.status(404));
+
+        StationHealth health = mProber.probe(mServer.getUrl("/dead"));
+        assertFalse(health.isReachable());
+        assertEquals(404, health.getStatusCode());
+    }
+
+    @Test
+    public void reportsAStationThatCannotBeConnectedTo() {
+        String url = mServer.getUrl("/stream");
+        mServer.stop();
+
+        StationHealth health = mProber.probe(url);
+        assertFalse(health.isReachable());
+        assertEquals(0, health.getStatusCode());
+        assertEquals(StationHealth.UNKNOWN, health.getTimeToFirstByteMs());
+        assertNotNull(health.getError());
+    }
+
+    @Test
+    public void reportsAPageAsNotAudio() {
+        mServer.setHandler("/portal", StandInServer.text("text/html", "<html>Log in</html>"));
+
+        StationHealth health = mProber.probe(mServer.getUrl("/portal"));
+        assertTrue(health.isReachable());
+        assertFalse(health.isAudio());
+    }
+
+    @Test
+    public void probesABatchOnceInTheOrderOfTheUrls() throws InterruptedException {
+        List<String> urls = new ArrayList<String>();
+        for (int i = 0; i < 5; i++) {
+            String path = "/stream" + i;
+            mServer.setHandler(path, new StandInStream(mAudio).setBitrateKbps(32 * (i + 1)));
+            urls.add(mServer.getUrl(path));
+        }
+        urls.add(mServer.getUrl("/stream0"));
+
+        Map<String, StationHealth> results = mProber.probe(urls);
+        assertEquals(urls.subList(0, 5), new ArrayList<String>(results.keySet()));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(32 * (i + 1), results.get(urls.get(i)).getBitrateKbps());
+            assertEquals(1, mServer.getRequestCount("/stream" + i));
+        }
+
+        // probed recently, the results are reused
+        mProber.probe(urls);
+        assertEquals(1, mServer.getRequestCount("/stream0"));
+        assertNotNull(mProber.getHealth(urls.get(0)));
+    }
+
+    @Test
+    public void probesAgainAfterTheResultsExpired() throws InterruptedException {
+        mProber = new StationProber(HttpTransport.shared(), 1, 0);
+        mServer.setHandler("/stream", new StandInStream(mAudio));
+        List<String> urls = Arrays.asList(mServer.getUrl("/stream"));
+
+        mProber.probe(urls);
+        assertNull(mProber.getHealth(urls.get(0)));
+        mProber.probe(urls);
+        assertEquals(2, mServer.getRequestCount("/stream"));
+    }
+}
@@ -0,0 +1,296 @@
+package com.android.magic.stream.player;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StreamProxyTest {
+
+    private static final String STREAM = "/stream";
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final long TIMEOUT_MS = 5000;
+
+    private final byte[] mAudio = StandInStream.pattern(10000);
+    private StandInServer mServer;
+    private StreamProxy mProxy;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StandInServer();
+    }
+
+    @After
+    public void tearDown() {
+        if (mProxy != null) {
+            mProxy.stop();
+        }
+        mServer.stop();
+    }
+
+    @Test
+    public void servesTheStreamToThePlayer() throws Exception {
+        mServer.setHandler(STREAM, new StandInStream(mAudio).setBitrateKbps(96));
+        mProxy = new StreamProxy(mServer.getUrl(STREAM), BUFFER_SIZE, null);
+
+        HttpURLConnection player = connect(mProxy.start());
+        assertEquals(200, player.getResponseCode());
+        assertEquals("audio/mpeg", player.getContentType());
+        assertAudio(readFully(player.getInputStream(), 100 * 1000), 0);
+        assertEquals(96, mProxy.getAnnouncedBitrateKbps());
+        assertTrue(mProxy.getReceivedBytes() >= 100 * 1000);
+    }
+
+    @Test
+    public void removesTheMetadataFromTheAudio() throws Exception {
+        mServer.setHandler(STREAM, new StandInStream(mAudio).setMetadata(1000, 5, "One", "Two"));
+        final List<String> titles = new ArrayList<String>();
+        mProxy = new StreamProxy(mServer.getUrl(STREAM), BUFFER_SIZE,
+                new TrackMetadataListener() {
+                    @Override
+                    public void onTrackMetadata(final TrackMetadata metadata) {
+                        synchronized (titles) {
+                            titles.add(metadata.getStreamTitle());
+                        }
+                    }
+                });
+
+        HttpURLConnection player = connect(mProxy.start());
+        assertAudio(readFully(player.getInputStream(), 20 * 1000), 0);
+        synchronized (titles) {
+            assertEquals("One", titles.get(0));
+            assertEquals("One", titles.get(4));
+            assertEquals("Two", titles.get(5));
+        }
+    }
+
+    @Test
+    public void notifiesTheEmptyMetadataBlocks() throws Exception {
+        mServer.setHandler(STREAM, new StandInStream(mAudio).setMetadata(1000, 5, "One", "Two")
+                .setEmptyBlocks(true));
+        final List<String> events = new ArrayList<String>();
+        mProxy = new StreamProxy(mServer.getUrl(STREAM), BUFFER_SIZE, new BlockCounter(events));
+
+        HttpURLConnection player = connect(mProxy.start());
+        assertAudio(readFully(player.getInputStream(), 20 * 1000), 0);
+        synchronized (events) {
+            assertEquals("One", events.get(0));
+            assertEquals("block", events.get(1));
+            for (int i = 2; i < 6; i++) {
+                assertEquals("block", events.get(i));
+            }
+            assertEquals("Two", events.get(6));
+            assertEquals("block", events.get(7));
+        }
+    }
+
+    @Test
+    public void stopsAtThePrebufferBudgetUntilThePlayerConnects() throws Exception {
+        mServer.setHandler(STREAM, new StandInStream(mAudio));
+        mProxy = new StreamProxy(mServer.getUrl(STREAM), BUFFER_SIZE, null);
+        mProxy.setPrebufferBudget(32 * 1024);
+
+        String url = mProxy.start();
+        waitForReceivedBytes(32 * 1024);
+        Thread.sleep(200);
+        assertEquals(32 * 1024, mProxy.getReceivedBytes());
+
+        HttpURLConnection player = connect(url);
+        assertAudio(readFully(player.getInputStream(), 100 * 1000), 0);
+    }
+
+    @Test
+    public void closesAnIdleConnectionUntilThePlayerConnects() throws Exception {
+        mServer.setHandler(STREAM, new StandInStream(mAudio));
+        mProxy = new StreamProxy(mServer.getUrl(STREAM), BUFFER_SIZE, null);
+        mProxy.setPrebufferBudget(32 * 1024, 100);
+
+        String url = mProxy.start();
+        waitForReceivedBytes(32 * 1024);
+        Thread.sleep(500);
+        // closed, not connected again before the player needs the stream
+        assertEquals(32 * 1024, mProxy.getReceivedBytes());
+        assertEquals(1, mServer.getRequestCount(STREAM));
+
+        HttpURLConnection player = connect(url);
+        byte[] received = readFully(player.getInputStream(), 100 * 1000);
+        assertAudio(Arrays.copyOf(received, 32 * 1024), 0);
+        assertEquals(2, mServer.getRequestCount(STREAM));
+    }
+
+    @Test
+    public void reconnectsWhileThePlayerPlaysTheBuffer() throws Exception {
+        // the connection is lost after 30000 bytes, a multiple of the audio
+        mServer.setHandler(STREAM, new StandInStream(mAudio).setLength(30 * 1000));
+        mProxy = new StreamProxy(mServer.getUrl(STREAM), BUFFER_SIZE, null);
+        mProxy.setReconnectPolicy(new ReconnectPolicy(3, 10, 100));
+
+        HttpURLConnection player = connect(mProxy.start());
+        assertAudio(readFully(player.getInputStream(), 100 * 1000), 0);
+        assertTrue(mServer.getRequestCount(STREAM) >= 4);
+        assertTrue(!mProxy.hasFailed());
+    }
+
+    @Test
+    public void reconnectsWhenAskedWithoutPolicy() throws Exception {
+        // received too slowly
+        mServer.setHandler(STREAM, new StandInStream(mAudio).setBytesPerSecond(20 * 1000));
+        mProxy = new StreamProxy(mServer.getUrl(STREAM), BUFFER_SIZE, null);
+
+        HttpURLConnection player = connect(mProxy.start());
+        readFully(player.getInputStream(), 10 * 1000);
+        mProxy.reconnect();
+        waitForReceivedBytes(mProxy.getReceivedBytes() + 20 * 1000);
+        assertEquals(2, mServer.getRequestCount(STREAM));
+        assertTrue(!mProxy.hasFailed());
+    }
+
+    @Test
+    public void endsTheStreamWhenTheConnectionIsLostWithoutPolicy() throws Exception {
+        mServer.setHandler(STREAM, new StandInStream(mAudio).setLength(30 * 1000));
+        mProxy = new StreamProxy(mServer.getUrl(STREAM), BUFFER_SIZE, null);
+
+        HttpURLConnection player = connect(mProxy.start());
+        byte[] received = readAll(player.getInputStream());
+        assertEquals(30 * 1000, received.length);
+        assertAudio(received, 0);
+        assertEquals(1, mServer.getRequestCount(STREAM));
+    }
+
+    @Test
+    public void switchesToALowerVariantBetweenTwoFrames() throws Exception {
+        // the network can't sustain the 128 kbps variant, which starts first
+        mServer.setHandler("/high", new StandInStream(AudioFrameAlignerTest.frames(
+                AudioFrameAlignerTest.HEADER_128_KBPS, AudioFrameAlignerTest.LENGTH_128_KBPS, 100))
+                .setBitrateKbps(128).setBytesPerSecond(12 * 1000));
+        // the 32 kbps variant starts inside a frame
+        mServer.setHandler("/low", new StandInStream(AudioFrameAlignerTest.frames(
+                AudioFrameAlignerTest.HEADER_32_KBPS, AudioFrameAlignerTest.LENGTH_32_KBPS, 100))
+                .setBitrateKbps(32).setOffset(50));
+        List<StationVariant> variants = new ArrayList<StationVariant>();
+        variants.add(new StationVariant(mServer.getUrl("/low"), 32));
+        variants.add(new StationVariant(mServer.getUrl("/high"), 128));
+        ThroughputEstimator estimator = new ThroughputEstimator();
+        estimator.addSample(5000, 100);
+        BitrateSelector selector = new BitrateSelector(variants, estimator);
+        assertEquals(128, selector.getCurrent().getBitrateKbps());
+        mProxy = new StreamProxy(mServer.getUrl("/high"), BUFFER_SIZE, null);
+        mProxy.setBitrateSelector(selector);
+
+        HttpURLConnection player = connect(mProxy.start());
+        player.setReadTimeout((int) BitrateSelector.MIN_DOWN_SWITCH_INTERVAL_MS * 3);
+        InputStream input = player.getInputStream();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        byte[] transfer = new byte[8192];
+        long deadline = System.currentTimeMillis()
+                + BitrateSelector.MIN_DOWN_SWITCH_INTERVAL_MS * 3;
+        while (received.size() < 200 * 1000 && System.currentTimeMillis() < deadline) {
+            int read = input.read(transfer);
+            assertTrue(read != -1);
+            received.write(transfer, 0, read);
+        }
+
+        assertEquals(1, mServer.getRequestCount("/low"));
+        byte[] bytes = received.toByteArray();
+        assertTrue(AudioFrameAlignerTest.assertWholeFrames(bytes, bytes.length) > 0);
+    }
+
+    @Test
+    public void reportsAStreamThatCannotBeConnectedTo() throws Exception {
+        mServer.setHandler(STREAM, StandInServer.status(404));
+        mProxy = new StreamProxy(mServer.getUrl(STREAM), BUFFER_SIZE, null);
+
+        HttpURLConnection player = connect(mProxy.start());
+        assertEquals(502, player.getResponseCode());
+        assertTrue(mProxy.hasFailed());
+    }
+
+    /**
+     * Lists the titles and the ends of the metadata blocks received
+     */
+    private static final class BlockCounter implements TrackMetadataListener,
+            IcyMetadataDemuxer.BlockListener {
+        private final List<String> mEvents;
+
+        BlockCounter(final List<String> events) {
+            mEvents = events;
+        }
+
+        @Override
+        public void onTrackMetadata(final TrackMetadata metadata) {
+            synchronized (mEvents) {
+                mEvents.add(metadata.getStreamTitle());
+            }
+        }
+
+        @Override
+        public void onMetadataBlock() {
+            synchronized (mEvents) {
+                mEvents.add("block");
+            }
+        }
+    }
+
+    /**
+     * Checks that the bytes are the audio of the stand-in stream from the position
+     */
+    /*package*/ void assertAudio(final byte[] received, final long position) {
+        for (int i = 0; i < received.length; i++) {
+            if (received[i] != StandInStream.audioAt(mAudio, position + i)) {
+                throw new AssertionError("Unexpected audio at " + (position + i));
+            }
+        }
+    }
+
+    private void waitForReceivedBytes(final long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (mProxy.getReceivedBytes() < count) {
+            assertTrue("received " + mProxy.getReceivedBytes(),
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /*package*/ static HttpURLConnection connect(final String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout((int) TIMEOUT_MS);
+        connection.setReadTimeout((int) TIMEOUT_MS);
+        return connection;
+    }
+
+    /*package*/ static byte[] readFully(final InputStream input, final int length)
+            throws IOException {
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = input.read(bytes, offset, length - offset);
+            if (read == -1) {
+                throw new EOFException("Stream ended after " + offset + " bytes");
+            }
+            offset += read;
+        }
+        return bytes;
+    }
+
+    /*package*/ static byte[] readAll(final InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+}
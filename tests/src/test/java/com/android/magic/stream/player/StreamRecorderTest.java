@@ -0,0 +1,63 @@
+package com.android.magic.stream.player;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class StreamRecorderTest {
+
+    private final byte[] mAudio = StandInStream.pattern(1000);
+    private final List<IOException> mErrors = new ArrayList<IOException>();
+    private final RecordingListener mListener = new RecordingListener() {
+        @Override
+        public void onRecordingFailed(final IOException error) {
+            mErrors.add(error);
+        }
+    };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void scansTheDirectoryOnTheFirstWrite() throws IOException {
+        File directory = new File(mFolder.getRoot(), "recordings");
+        StreamRecorder recorder = new StreamRecorder(directory, 1500, mListener);
+        assertFalse(directory.exists());
+
+        directory.mkdirs();
+        File previous = new File(directory, "20000101-000000 Previous.mp3");
+        FileOutputStream output = new FileOutputStream(previous);
+        output.write(mAudio);
+        output.close();
+        // the recording of the previous run is deleted to fit in the budget
+        recorder.write(mAudio, 0, mAudio.length, 0);
+        assertFalse(previous.exists());
+        assertTrue(recorder.getFile().exists());
+        recorder.close();
+        assertTrue(mErrors.isEmpty());
+    }
+
+    @Test
+    public void notifiesTheFailureOfTheRecording() throws IOException {
+        // a file where the directory should be
+        File directory = mFolder.newFile("recordings");
+        StreamRecorder recorder = new StreamRecorder(directory, 1500, mListener);
+
+        recorder.write(mAudio, 0, mAudio.length, 0);
+        assertTrue(recorder.isClosed());
+        assertNotNull(recorder.getError());
+        assertEquals(1, mErrors.size());
+        assertEquals(recorder.getError(), mErrors.get(0));
+    }
+}
@@ -0,0 +1,77 @@
+package com.android.magic.stream.player;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TrackHistoryTest {
+
+    private static final String STATION = "http://example.com/stream";
+    private static final String OTHER_STATION = "http://example.com/other";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(mFolder.getRoot(), "tracks");
+    }
+
+    @Test
+    public void readsTheTracksOfThePreviousRunOnceLoaded() {
+        TrackHistory history = new TrackHistory(mFile);
+        history.record(STATION, "First", 1000);
+        history.record(STATION, "Second", 2000);
+
+        // read from memory only, e.g. on the main thread before the service loaded the log
+        TrackHistory restarted = new TrackHistory(mFile);
+        assertNull(restarted.getLastKnownTrack(STATION));
+        assertTrue(restarted.getRecentTracks(STATION, 10).isEmpty());
+
+        restarted.load();
+        assertTrue(restarted.isLoaded());
+        assertEquals("Second", restarted.getLastKnownTrack(STATION).getStreamTitle());
+        List<PlayedTrack> tracks = restarted.getRecentTracks(STATION, 10);
+        assertEquals(2, tracks.size());
+        assertEquals("First", tracks.get(1).getStreamTitle());
+        assertNull(restarted.getLastKnownTrack(OTHER_STATION));
+    }
+
+    @Test
+    public void recordsAfterThePreviousRunBeforeLoad() {
+        TrackHistory history = new TrackHistory(mFile);
+        history.record(STATION, "First", 1000);
+
+        // the station of the previous run keeps its index in the log
+        TrackHistory restarted = new TrackHistory(mFile);
+        restarted.record(OTHER_STATION, "Other", 2000);
+        restarted.record(STATION, "Second", 3000);
+
+        TrackHistory reloaded = new TrackHistory(mFile);
+        reloaded.load();
+        assertEquals("Second", reloaded.getLastKnownTrack(STATION).getStreamTitle());
+        assertEquals("Other", reloaded.getLastKnownTrack(OTHER_STATION).getStreamTitle());
+        assertEquals(2, reloaded.getRecentTracks(STATION, 10).size());
+    }
+
+    @Test
+    public void skipsTheTrackRecordedLast() {
+        TrackHistory history = new TrackHistory(mFile);
+        history.record(STATION, "First", 1000);
+        // the station is resumed
+        history.record(STATION, "First", 2000);
+
+        TrackHistory restarted = new TrackHistory(mFile);
+        restarted.load();
+        assertEquals(1, restarted.getRecentTracks(STATION, 10).size());
+    }
+}